@@ -2,6 +2,7 @@ package simpledb.common;
 
 import simpledb.storage.DbFile;
 import simpledb.storage.HeapFile;
+import simpledb.storage.SlottedHeapFile;
 import simpledb.storage.TupleDesc;
 
 import java.io.BufferedReader;
@@ -183,6 +184,8 @@ public class Catalog {
 
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * Each table is stored in a HeapFile, or in a SlottedHeapFile if its line
+     * ends with "slotted", as in "users (id int pk, name string) slotted".
      *
      * @param catalogFile
      */
@@ -193,7 +196,7 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(catalogFile));
 
             while ((line = br.readLine()) != null) {
-                //assume line is of the format name (field type, field type, ...)
+                //assume line is of the format name (field type, field type, ...) [slotted]
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
                 String fields = line.substring(line.indexOf("(") + 1, line.indexOf(")")).trim();
@@ -224,7 +227,18 @@ public class Catalog {
                 Type[] typeAr = types.toArray(new Type[0]);
                 String[] namesAr = names.toArray(new String[0]);
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
-                HeapFile tabHf = new HeapFile(new File(baseFolder + "/" + name + ".dat"), t);
+                File tabFile = new File(baseFolder + "/" + name + ".dat");
+                String format = line.substring(line.indexOf(")") + 1).trim();
+                DbFile tabHf;
+                if (format.equalsIgnoreCase("slotted")) {
+                    tabHf = new SlottedHeapFile(tabFile, t);
+                } else {
+                    if (!format.isEmpty()) {
+                        System.out.println("Unknown table format " + format);
+                        System.exit(0);
+                    }
+                    tabHf = new HeapFile(tabFile, t);
+                }
                 addTable(tabHf, name, primaryKey);
                 System.out.println("Added table : " + name + " with schema " + t);
             }
@@ -28,6 +28,7 @@ public class Database {
     private Database() {
         _catalog = new Catalog();
         _bufferpool = new BufferPool(BufferPool.DEFAULT_PAGES);
+        _bufferpool.getLockManager().registerMBean();
         LogFile tmp = null;
         try {
             tmp = new LogFile(new File(LOGFILENAME));
@@ -69,7 +70,9 @@ public class Database {
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
+            _instance.get()._bufferpool.stopBackgroundWriter();
             bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            _instance.get()._bufferpool.getLockManager().registerMBean();
             // LockManager.resetLockManager();
         } catch (NoSuchFieldException | IllegalAccessException | IllegalArgumentException | SecurityException e) {
             e.printStackTrace();
@@ -80,6 +83,9 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        // like a crash, this drops whatever the old buffer pool did not write
+        _instance.get()._bufferpool.stopBackgroundWriter();
+        _instance.get()._logfile.setCheckpointInterval(0);
         _instance.set(new Database());
     }
 
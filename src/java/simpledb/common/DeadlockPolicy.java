@@ -0,0 +1,30 @@
+package simpledb.common;
+
+/**
+ * How the LockManager keeps transactions from waiting for each other
+ * forever. Under the timestamp based policies, a transaction with a smaller
+ * {@link simpledb.transaction.TransactionId#getTimestamp timestamp} is
+ * older, and an older transaction never waits for a younger one that waits
+ * for it, so no cycle can form. A transaction retried with the timestamp of
+ * its aborted attempt keeps its age, and is not starved.
+ *
+ * @see LockManager#setDeadlockPolicy
+ */
+public enum DeadlockPolicy {
+    /**
+     * Let transactions wait for anyone, and abort the youngest transaction
+     * of every cycle in the waits-for graph.
+     */
+    DETECT,
+    /**
+     * A transaction may wait for younger transactions only; a transaction
+     * that would wait for an older one is aborted ("dies") instead.
+     */
+    WAIT_DIE,
+    /**
+     * A transaction may wait for older transactions only; a younger
+     * transaction in the way of an older one is aborted ("wounded") at its
+     * next lock request, or right away if it is waiting for a lock.
+     */
+    WOUND_WAIT
+}
@@ -1,326 +1,1430 @@
 package simpledb.common;
 
 import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.LockTimeoutException;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
+import javax.management.ConstructorParameters;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
 
-public class LockManager {
+/**
+ * LockManager keeps the table, page and record locks of transactions.
+ * <p>
+ * Locks form a hierarchy, see {@link LockMode}. Before locking a page, a
+ * transaction takes an intention lock (IS or IX) on its table, unless it
+ * holds a table lock that already covers the page, in which case no page
+ * lock is taken at all. Records are locked the same way below their page;
+ * only heap files with record locking on use them. When a transaction holds more page and
+ * record locks on one table than the escalation threshold, it trades them
+ * for a single S or X lock on the table, so that scanning or deleting a
+ * large table does not take a lock per page or record.
+ * <p>
+ * The lock tables are ConcurrentHashMaps from record, page and table to
+ * {@link Lock}; every Lock has its own monitor, so transactions working on
+ * different pages never contend in here. A Lock is removed from its table
+ * as soon as nobody holds or waits for it, so the tables only grow with the
+ * locks in use; a request that finds a removed Lock retries on a new one. A request that cannot be granted right away joins the
+ * FIFO queue of its Lock, and its thread waits on a CompletableFuture that
+ * is completed when the request is granted or aborted. When a lock is
+ * released, the requests at the head of the queue that are compatible with
+ * the remaining holders are granted and only their threads are woken up. An
+ * upgrade from a shared to an exclusive lock goes ahead of the other waiting
+ * requests, since its transaction already holds the page.
+ * <p>
+ * Locks are reentrant: a transaction holds a count of acquisitions per mode,
+ * and each unlock() gives back one of them.
+ * <p>
+ * Deadlocks are handled according to a {@link DeadlockPolicy}. Under the
+ * default, DETECT, the waiting transactions are the nodes of a
+ * {@link WaitsForGraph}. A change to a Lock only marks it as changed, so
+ * requesting or releasing a lock neither computes edges nor searches the
+ * graph. While any transaction waits, a background thread brings the edges
+ * of the waiters of the changed Locks up to date every few milliseconds,
+ * looks for cycles in the graph and breaks each one by aborting its youngest
+ * transaction, which has done the least work and would otherwise starve the
+ * older ones. WAIT_DIE and WOUND_WAIT instead compare the age of a waiting
+ * transaction with the transactions it waits for whenever more are added,
+ * and need neither the graph nor the thread.
+ * <p>
+ * Since no thread ever blocks while holding a monitor in here, a waiting
+ * thread parks instead of pinning a carrier thread, and {@link #lockAsync}
+ * lets a transaction wait without any thread at all: the returned future
+ * completes when the lock is granted, and its continuations run on the
+ * common pool, never inside a Lock.
+ * <p>
+ * A transaction may bound how long it waits for any one lock, see
+ * {@link #setLockTimeout}; a request that is not granted in time is
+ * withdrawn and the transaction aborted. By default requests wait until they
+ * are granted or a deadlock is broken.
+ * <p>
+ * The number of waits, timeouts and deadlock aborts, the duration of the
+ * waits and the pages waited for most are kept for diagnosing contention.
+ * {@link #getLocks} and {@link #getWaiters} take a snapshot of who holds
+ * and who waits for what; all of this is published over JMX as a
+ * {@link LockManagerMXBean}, see {@link #registerMBean}.
+ */
+public class LockManager implements LockManagerMXBean {
 
-    private Map<PageId, Lock> pidSLock = new HashMap<>();
-    private Map<TransactionId, Map<PageId, Count>> tidSLock = new HashMap<>();
-    private Map<TransactionId, Set<PageId>> dirtyPages = new HashMap<>();
+    /**
+     * The JMX name under which {@link #registerMBean} publishes a lock manager.
+     */
+    public static final String MBEAN_NAME = "simpledb:type=LockManager";
 
-//    public static void resetLockManager() {
-//        pidSLock = new HashMap<>();
-//        tidSLock = new HashMap<>();
-//        dirtyPages = new HashMap<>();
-//    }
+    private final Map<PageId, Lock> locks = new ConcurrentHashMap<>();
+    private final Map<Integer, Lock> tableLocks = new ConcurrentHashMap<>();
+    private final Map<RecordId, Lock> recordLocks = new ConcurrentHashMap<>();
+    // the records on which a transaction holds a lock
+    private final Map<TransactionId, Set<RecordId>> lockedRecords = new ConcurrentHashMap<>();
+    // the pages on which a transaction holds a lock
+    private final Map<TransactionId, Set<PageId>> lockedPages = new ConcurrentHashMap<>();
+    // the number of those pages and records per table
+    private final Map<TransactionId, Map<Integer, Integer>> lockCounts = new ConcurrentHashMap<>();
+    // the mode in which a transaction holds each table it locked
+    private final Map<TransactionId, Map<Integer, LockMode>> tableModes = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Set<PageId>> dirtyPages = new ConcurrentHashMap<>();
+    // the request a transaction is waiting for, if any
+    private final Map<TransactionId, Request> waiting = new ConcurrentHashMap<>();
+
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+    private final WaitsForGraph graph = new WaitsForGraph();
+    // DETECT: the Locks whose waiters may have out of date edges in the graph
+    private final Set<Lock> changedLocks = ConcurrentHashMap.newKeySet();
+    // WOUND_WAIT: the transactions to abort at their next lock request
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    private final LongAdder waits = new LongAdder();
+    // the waits per page, which outlive the page's Lock; see countPageWait()
+    private final Map<PageId, LongAdder> pageWaits = new ConcurrentHashMap<>();
+    private static final int PAGE_WAITS_CAPACITY = 4096;
+    private final LongAdder deadlocks = new LongAdder();
+    private final LongAdder escalations = new LongAdder();
+    private final LongAdder timeouts = new LongAdder();
+    // 0: wait forever
+    private volatile long defaultLockTimeoutMillis = 0;
+    private final Map<TransactionId, Long> lockTimeouts = new ConcurrentHashMap<>();
+    private volatile int escalationThreshold = 1000;
+    private final PercentileRecorder waitTimes = new PercentileRecorder();
+
+    // the deadlock detector runs while some transaction waits
+    private final Object detectorLock = new Object();
+    private Thread detector; // protected by detectorLock
+    private int numWaiting = 0; // protected by detectorLock
+    private volatile long detectionIntervalMillis = 10;
+
+    // expires lock requests and aborts wounded ones, outside of the Lock
+    // monitors that the threads deciding so hold
+    private static final ScheduledThreadPoolExecutor TIMER = newTimer();
 
     public LockManager() {
-        this.pidSLock = new HashMap<>();
-        this.tidSLock = new HashMap<>();
-        this.dirtyPages = new HashMap<>();
-    };
+    }
+
+    private static ScheduledThreadPoolExecutor newTimer() {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "LockManager timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    /**
+     * A lock request, queued until it can be granted. Its future completes
+     * when it is granted, or exceptionally when it is aborted.
+     */
+    private static class Request {
+        final Lock lock;
+        final TransactionId tid;
+        final LockMode mode;
+        final boolean upgrade;
+        final long since = System.nanoTime();
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        boolean granted; // protected by the Lock
+        volatile ScheduledFuture<?> expiry;
+
+        Request(Lock lock, TransactionId tid, LockMode mode, boolean upgrade) {
+            this.lock = lock;
+            this.tid = tid;
+            this.mode = mode;
+            this.upgrade = upgrade;
+        }
+
+        @Override
+        public String toString() {
+            return tid + (upgrade ? " UPGRADE " : " ") + mode;
+        }
+    }
 
+    // returned by Lock.acquire() on a Lock that was removed from its table
+    private static final Request RETIRED = new Request(null, null, null, false);
+
+    /**
+     * How many times a transaction acquired a lock in each mode.
+     */
+    private static class Count {
+        final int[] counts = new int[LockMode.values().length];
+
+        /**
+         * @return the mode of all acquisitions together
+         */
+        LockMode mode() {
+            LockMode mode = null;
+            for (LockMode m : LockMode.values()) {
+                if (this.counts[m.ordinal()] > 0) {
+                    mode = mode == null ? m : mode.combine(m);
+                }
+            }
+            return mode;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (LockMode m : LockMode.values()) {
+                if (this.counts[m.ordinal()] > 0) {
+                    sb.append(sb.length() == 0 ? "" : ", ").append(m).append(": ").append(this.counts[m.ordinal()]);
+                }
+            }
+            return sb.toString();
+        }
+    }
+
+    /**
+     * The lock on a record if rid is set, on a page, or on a whole table if
+     * pid is null.
+     */
     private class Lock {
-        private AtomicInteger read;
-        private AtomicInteger write;
-        private PageId pid;
-        private final List<TransactionId> readLockQueue = new ArrayList<>();
-        private final List<TransactionId> writeLockQueue = new ArrayList<>();
-        private final List<TransactionId> readLockWaitingQueue = new ArrayList<>();
-        private final List<TransactionId> writeLockWaitingQueue = new ArrayList<>();
-
-        public Lock(PageId pid) {
-            this.read = new AtomicInteger();
-            this.write = new AtomicInteger();
+        private final RecordId rid;
+        private final PageId pid;
+        private final int tableId;
+        private final Map<TransactionId, Count> holders = new LinkedHashMap<>();
+        private final Deque<Request> queue = new ArrayDeque<>();
+        // removed from its table; a new Lock takes its place
+        private boolean retired = false;
+
+        Lock(RecordId rid) {
+            this.rid = rid;
+            this.pid = rid.getPageId();
+            this.tableId = this.pid.getTableId();
+        }
+
+        Lock(PageId pid) {
+            this.rid = null;
             this.pid = pid;
+            this.tableId = pid.getTableId();
+        }
+
+        Lock(int tableId) {
+            this.rid = null;
+            this.pid = null;
+            this.tableId = tableId;
+        }
+
+        /**
+         * Grant the request right away, or queue it.
+         *
+         * @return null if the lock was granted, the queued request, or
+         * RETIRED if this Lock was removed from its table
+         */
+        synchronized Request acquire(TransactionId tid, LockMode mode) {
+            if (this.retired) {
+                return RETIRED;
+            }
+            Count held = this.holders.get(tid);
+            if (held != null && held.mode().covers(mode)) {
+                // a reentrant acquisition never waits
+                grant(tid, mode);
+                return null;
+            }
+            boolean upgrade = held != null;
+            if ((upgrade || this.queue.isEmpty()) && isCompatible(tid, mode)) {
+                grant(tid, mode);
+                if (upgrade) {
+                    // a stronger holder: every waiter may wait for it now
+                    updateWaits(this.queue.peekFirst());
+                }
+                return null;
+            }
+            Request request = new Request(this, tid, mode, upgrade);
+            if (upgrade) {
+                // behind other upgrades only
+                List<Request> upgrades = new ArrayList<>();
+                while (!this.queue.isEmpty() && this.queue.peekFirst().upgrade) {
+                    upgrades.add(this.queue.pollFirst());
+                }
+                this.queue.addFirst(request);
+                for (int i = upgrades.size() - 1; i >= 0; i--) {
+                    this.queue.addFirst(upgrades.get(i));
+                }
+            } else {
+                this.queue.addLast(request);
+            }
+            if (this.rid == null && this.pid != null) {
+                countPageWait(this.pid);
+            }
+            updateWaits(request);
+            return request;
+        }
+
+        /**
+         * Withdraw a request that was not granted; nothing happens if it was.
+         */
+        synchronized void cancel(Request request) {
+            if (request.granted || !this.queue.remove(request)) {
+                return;
+            }
+            graph.removeWaits(request.tid);
+            grantWaiters();
         }
 
-        public synchronized int getReadLock() {
-            return this.read.intValue();
+        /**
+         * Withdraw a waiting request and make its thread throw
+         * TransactionAbortedException.
+         *
+         * @return false if the request was not waiting any more
+         */
+        boolean abort(Request request) {
+            return abort(request, new TransactionAbortedException());
         }
 
-        public synchronized int getWriteLock() {
-            return this.write.intValue();
+        /**
+         * Withdraw a waiting request and make its thread throw the given
+         * exception.
+         *
+         * @return false if the request was not waiting any more
+         */
+        synchronized boolean abort(Request request, TransactionAbortedException e) {
+            if (request.granted || !this.queue.remove(request)) {
+                return false;
+            }
+            request.future.completeExceptionally(e);
+            graph.removeWaits(request.tid);
+            grantWaiters();
+            return true;
         }
 
-        public synchronized void rLock(TransactionId tid) throws TransactionAbortedException {
-            while (getWriteLock() != 0 && tidSLock.get(tid).get(pid).getWrite() != getWriteLock()) {
-                try {
-                    readLockWaitingQueue.add(tid);
-                    detectCycle(tid, Permissions.READ_ONLY);
-                    this.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (TransactionAbortedException e) {
-                    readLockWaitingQueue.remove(tid);
-                    throw e;
-                } finally {
-                    this.notifyAll();
+        /**
+         * Give back one acquisition in the given mode.
+         */
+        synchronized void release(TransactionId tid, LockMode mode) {
+            Count held = this.holders.get(tid);
+            if (held == null) {
+                return;
+            }
+            if (held.counts[mode.ordinal()] > 0) {
+                held.counts[mode.ordinal()]--;
+            }
+            if (held.mode() == null) {
+                releaseAll(tid);
+            } else if (this.pid == null) {
+                setTableMode(tid, this.tableId, held.mode());
+            }
+        }
+
+        /**
+         * Give back every acquisition of the transaction.
+         */
+        synchronized void releaseAll(TransactionId tid) {
+            if (this.holders.remove(tid) == null) {
+                return;
+            }
+            if (this.pid == null) {
+                setTableMode(tid, this.tableId, null);
+            } else if (this.rid != null) {
+                Set<RecordId> records = lockedRecords.get(tid);
+                if (records != null && records.remove(this.rid)) {
+                    countLock(tid, this.tableId, -1);
+                }
+            } else {
+                Set<PageId> pages = lockedPages.get(tid);
+                if (pages != null && pages.remove(this.pid)) {
+                    countLock(tid, this.tableId, -1);
                 }
             }
-            this.read.incrementAndGet();
-            tidSLock.get(tid).get(pid).read.incrementAndGet();
-            readLockQueue.add(tid);
-            this.notifyAll();
+            grantWaiters();
         }
 
-        public synchronized void rUnlock(TransactionId tid) {
-            this.read.decrementAndGet();
-            tidSLock.get(tid).get(pid).read.decrementAndGet();
-            readLockQueue.remove(tid);
-            this.notifyAll();
+        /**
+         * Mark this Lock as removed from its table if nobody holds or waits
+         * for it.
+         *
+         * @return true if it may be removed
+         */
+        /**
+         * Bring the edges of the waiters up to date in the waits-for graph.
+         */
+        synchronized void refreshWaits() {
+            for (Request request : this.queue) {
+                graph.setWaits(request.tid, blockers(request));
+            }
         }
 
-        public void rUnlockAll(TransactionId tid, int times) {
-            while (times > 0) {
-                rUnlock(tid);
-                times--;
+        synchronized boolean retire() {
+            if (this.holders.isEmpty() && this.queue.isEmpty()) {
+                this.retired = true;
             }
-            while(readLockWaitingQueue.contains(tid)) {
-                readLockWaitingQueue.remove(tid);
+            return this.retired;
+        }
+
+        synchronized boolean isHeldBy(TransactionId tid) {
+            return this.holders.containsKey(tid);
+        }
+
+        /**
+         * @return the mode in which the transaction holds this lock, or null
+         */
+        synchronized LockMode modeOf(TransactionId tid) {
+            Count held = this.holders.get(tid);
+            return held == null ? null : held.mode();
+        }
+
+        synchronized boolean isWriteLocked() {
+            for (Count held : this.holders.values()) {
+                if (held.mode() == LockMode.X) {
+                    return true;
+                }
             }
+            return false;
         }
 
-        public synchronized void wLock(TransactionId tid) throws TransactionAbortedException {
-            while((getWriteLock() != tidSLock.get(tid).get(pid).getWrite()) || (getReadLock() != tidSLock.get(tid).get(pid).getRead())) {
-                try {
-                    writeLockWaitingQueue.add(tid);
-                    detectCycle(tid, Permissions.READ_WRITE);
-                    this.wait();
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                } catch (TransactionAbortedException e) {
-                    writeLockWaitingQueue.remove(tid);
-                    throw e;
-                } finally {
-                    this.notifyAll();
+        /**
+         * @return the transactions a queued request waits for: the holders
+         * it conflicts with, and the requests ahead of it that it conflicts
+         * with, since those are granted first
+         */
+        synchronized Set<TransactionId> blockers(Request request) {
+            Set<TransactionId> blockers = new HashSet<>();
+            if (request.granted) {
+                return blockers;
+            }
+            for (Map.Entry<TransactionId, Count> holder : this.holders.entrySet()) {
+                if (!holder.getKey().equals(request.tid)
+                        && !request.mode.isCompatible(holder.getValue().mode())) {
+                    blockers.add(holder.getKey());
+                }
+            }
+            for (Request ahead : this.queue) {
+                if (ahead == request) {
+                    break;
+                }
+                if (!ahead.tid.equals(request.tid) && !request.mode.isCompatible(ahead.mode)) {
+                    blockers.add(ahead.tid);
+                }
+            }
+            return blockers;
+        }
+
+        // can tid get the lock in the given mode, given the current holders?
+        // Whatever tid holds already is compatible with the others, so the
+        // new mode alone decides.
+        private boolean isCompatible(TransactionId tid, LockMode mode) {
+            for (Map.Entry<TransactionId, Count> holder : this.holders.entrySet()) {
+                if (!holder.getKey().equals(tid) && !mode.isCompatible(holder.getValue().mode())) {
+                    return false;
                 }
             }
-            // TODO: decide if or not to give the lock or abort
-            this.write.incrementAndGet();
-            tidSLock.get(tid).get(pid).write.incrementAndGet();
-            dirtyPages.get(tid).add(pid);
-            writeLockQueue.add(tid);
-            this.notifyAll();
-        }
-
-        public synchronized void wUnlock(TransactionId tid) {
-            this.write.decrementAndGet();
-            tidSLock.get(tid).get(pid).write.decrementAndGet();
-            writeLockQueue.remove(tid);
-            this.notifyAll();
-        }
-
-        public void wUnlockAll(TransactionId tid, int times) {
-            while (times > 0) {
-                wUnlock(tid);
-                times --;
-            }
-            while (writeLockWaitingQueue.contains(tid)) {
-                writeLockWaitingQueue.remove(tid);
-            }
-        }
-
-        public void detectCycle(TransactionId tid, Permissions perm) throws TransactionAbortedException, InterruptedException {
-            Set<TransactionId> currentLevel = new LinkedHashSet<>();
-//            switch (perm) {
-//                case READ_ONLY:
-//                    currentLevel.addAll(readDependency());
-//                    break;
-//                case READ_WRITE:
-//                    currentLevel.addAll(writeDependency());
-//                    break;
-//            }
-            currentLevel.add(tid);
-            while (currentLevel.size() > 0) {
-                Set<TransactionId> nextLevel = new LinkedHashSet<>();
-                Iterator<TransactionId> it = currentLevel.iterator();
-                while (it.hasNext()) {
-                    TransactionId curTid = it.next();
-                    for (Map.Entry<PageId, Count> entry : tidSLock.get(curTid).entrySet()) {
-                        PageId k = entry.getKey();
-                        Count v = entry.getValue();
-                        Lock lock = pidSLock.get(k);
-                        if (lock.isWaitingRead(curTid)) {
-                            if (lock.readDependency().contains(tid)) {
-                                throw new TransactionAbortedException();
+            return true;
+        }
+
+        private void grant(TransactionId tid, LockMode mode) {
+            Count held = this.holders.computeIfAbsent(tid, k -> new Count());
+            held.counts[mode.ordinal()]++;
+            if (this.pid == null) {
+                setTableMode(tid, this.tableId, held.mode());
+                return;
+            }
+            if (mode == LockMode.X) {
+                dirtyPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(this.pid);
+            }
+            if (this.rid != null) {
+                if (lockedRecords.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(this.rid)) {
+                    countLock(tid, this.tableId, 1);
+                }
+                return;
+            }
+            if (lockedPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(this.pid)) {
+                countLock(tid, this.tableId, 1);
+            }
+        }
+
+        // grant the requests at the head of the queue that have become
+        // compatible, and wake up their threads only
+        private void grantWaiters() {
+            boolean upgraded = false;
+            while (!this.queue.isEmpty()) {
+                Request head = this.queue.peekFirst();
+                if (!isCompatible(head.tid, head.mode)) {
+                    break;
+                }
+                this.queue.pollFirst();
+                grant(head.tid, head.mode);
+                graph.removeWaits(head.tid);
+                head.granted = true;
+                head.future.complete(null);
+                upgraded |= head.upgrade;
+            }
+            updateWaits(upgraded ? this.queue.peekFirst() : null);
+        }
+
+        // the holders or the queue changed. Under DETECT, the Lock is marked,
+        // and the detector brings the edges of its waiters up to date before
+        // it looks for cycles. The timestamp policies check the waiters that
+        // may wait for more transactions than before: the given request and
+        // those behind it, or none if it is null. Only a request that joins
+        // the queue, the requests behind an upgrade queued ahead of them and,
+        // when a holder upgrades, every waiter can; granting and releasing
+        // locks only takes blockers away.
+        private void updateWaits(Request from) {
+            if (this.queue.isEmpty()) {
+                return;
+            }
+            DeadlockPolicy policy = LockManager.this.policy;
+            if (policy == DeadlockPolicy.DETECT) {
+                changedLocks.add(this);
+                return;
+            }
+            if (from == null) {
+                return;
+            }
+            // walk back from the tail, where most requests join
+            Deque<Request> changed = new ArrayDeque<>();
+            Iterator<Request> it = this.queue.descendingIterator();
+            while (it.hasNext()) {
+                Request request = it.next();
+                changed.addFirst(request);
+                if (request == from) {
+                    break;
+                }
+            }
+            List<Request> dying = new ArrayList<>();
+            for (Request request : changed) {
+                Set<TransactionId> blockers = blockers(request);
+                switch (policy) {
+                    case WAIT_DIE:
+                        for (TransactionId blocker : blockers) {
+                            if (isOlder(blocker, request.tid)) {
+                                dying.add(request);
+                                break;
                             }
-                            nextLevel.addAll(lock.readDependency());
                         }
-                        if (lock.isWaitingWrite(curTid)) {
-                            if (lock.writeDependency().contains(tid)) {
-//                                if (curTid == tid) {
-//                                    return;
-//                                }
-                                throw new TransactionAbortedException();
+                        break;
+                    case WOUND_WAIT:
+                        for (TransactionId blocker : blockers) {
+                            if (isOlder(request.tid, blocker)) {
+                                wound(blocker);
                             }
-                            nextLevel.addAll(lock.writeDependency());
                         }
-                    }
+                        break;
+                    default:
+                        break;
                 }
-                currentLevel = nextLevel;
             }
+            for (Request request : dying) {
+                if (abort(request)) {
+                    deadlocks.increment();
+                }
+            }
+        }
+
+        private String resource() {
+            return rid != null ? "RecordId: " + rid : pid != null ? "PageId: " + pid : "Table: " + tableId;
         }
 
         /**
-         * Return all the transactions that may block a read request,
-         * which is all the transactions that currently hold a write lock.
-         * @return a set of transactions which hold write lock
+         * @return the holders and the queue of this lock, or null if it is free
          */
-        public Set<TransactionId> readDependency() {
-            Set<TransactionId> rd = new HashSet<>();
-            if (writeLockQueue.size() > 0) {
-                rd.addAll(writeLockQueue);
+        synchronized LockInfo info() {
+            if (this.holders.isEmpty() && this.queue.isEmpty()) {
+                return null;
+            }
+            List<String> held = new ArrayList<>();
+            for (Map.Entry<TransactionId, Count> holder : this.holders.entrySet()) {
+                if (holder.getValue().mode() != null) {
+                    held.add(holder.getKey().getId() + " " + holder.getValue().mode());
+                }
             }
-            return rd;
+            List<String> queued = new ArrayList<>();
+            for (Request request : this.queue) {
+                queued.add(request.tid.getId() + (request.upgrade ? " UPGRADE " : " ") + request.mode);
+            }
+            return new LockInfo(resource(), held.toArray(new String[0]), queued.toArray(new String[0]));
         }
 
         /**
-         * Return all the transactions that may block a write request,
-         * which is all the transactions that currently hold a read lock or
-         * a write lock.
-         * @return a set of transactions which hold read / write lock.
+         * @return what a queued request waits for, or null if it does not
+         * wait any more
          */
-        public Set<TransactionId> writeDependency() {
-            Set<TransactionId> rd = new LinkedHashSet<>();
-            rd.addAll(writeLockQueue);
-            rd.addAll(readLockQueue);
-            return rd;
+        synchronized WaitInfo waitInfo(Request request) {
+            if (request.future.isDone()) {
+                return null;
+            }
+            Set<TransactionId> blockers = blockers(request);
+            long[] blockerIds = new long[blockers.size()];
+            int i = 0;
+            for (TransactionId blocker : blockers) {
+                blockerIds[i++] = blocker.getId();
+            }
+            return new WaitInfo(request.tid.getId(), resource(), request.mode.name(),
+                    (System.nanoTime() - request.since) / 1000000, blockerIds);
         }
 
-        public synchronized boolean isWaitingRead(TransactionId tid) {
-            return readLockWaitingQueue.contains(tid);
+        @Override
+        public synchronized String toString() {
+            return resource() + ", holders: " + holders + ", queue: " + queue;
         }
+    }
 
-        public synchronized boolean isWaitingWrite(TransactionId tid) {
-            return writeLockWaitingQueue.contains(tid);
+    /**
+     * A snapshot of one lock: who holds it in which mode, and which requests
+     * wait for it in queue order.
+     */
+    public static class LockInfo {
+        private final String resource;
+        private final String[] holders;
+        private final String[] waiters;
+
+        @ConstructorParameters({"resource", "holders", "waiters"})
+        public LockInfo(String resource, String[] holders, String[] waiters) {
+            this.resource = resource;
+            this.holders = holders;
+            this.waiters = waiters;
+        }
+
+        /**
+         * @return the locked table, page or record
+         */
+        public String getResource() {
+            return this.resource;
+        }
+
+        /**
+         * @return "transaction mode" for every holder
+         */
+        public String[] getHolders() {
+            return this.holders;
+        }
+
+        /**
+         * @return "transaction [UPGRADE] mode" for every waiting request
+         */
+        public String[] getWaiters() {
+            return this.waiters;
         }
 
         @Override
         public String toString() {
-            return "PageId: " + pid +
-                    ", ReadCount: " + getReadLock() +
-                    ", WriteCount: " + getWriteLock() +
-                    ", readQueue: " + readLockQueue +
-                    ", writeQueue: " + writeLockQueue +
-                    ", readWait: " + readLockWaitingQueue +
-                    ", writeWait: " + writeLockWaitingQueue;
+            return this.resource + ", holders: " + List.of(this.holders) + ", queue: " + List.of(this.waiters);
         }
     }
 
-    private static class Count {
-        public AtomicInteger read;
-        public AtomicInteger write;
-        public TransactionId tid;
+    /**
+     * A snapshot of one waiting transaction: the lock it waits for, since
+     * when, and the transactions it waits for.
+     */
+    public static class WaitInfo {
+        private final long transactionId;
+        private final String resource;
+        private final String mode;
+        private final long waitedMillis;
+        private final long[] blockers;
 
-        public Count(TransactionId tid) {
-            this.read = new AtomicInteger();
-            this.write = new AtomicInteger();
-            this.tid = tid;
+        @ConstructorParameters({"transactionId", "resource", "mode", "waitedMillis", "blockers"})
+        public WaitInfo(long transactionId, String resource, String mode, long waitedMillis, long[] blockers) {
+            this.transactionId = transactionId;
+            this.resource = resource;
+            this.mode = mode;
+            this.waitedMillis = waitedMillis;
+            this.blockers = blockers;
+        }
+
+        public long getTransactionId() {
+            return this.transactionId;
+        }
+
+        public String getResource() {
+            return this.resource;
+        }
+
+        public String getMode() {
+            return this.mode;
         }
 
-        public int getRead() {
-            return this.read.intValue();
+        public long getWaitedMillis() {
+            return this.waitedMillis;
         }
 
-        public int getWrite() {
-            return this.write.intValue();
+        /**
+         * @return the transactions that hold or are queued ahead for the
+         * lock in a conflicting mode
+         */
+        public long[] getBlockers() {
+            return this.blockers;
         }
 
         @Override
         public String toString() {
-            return "TransactionId: " + tid +
-                    ", ReadCount: " + getRead() +
-                    ", WriteCount: " + getWrite();
+            StringBuilder sb = new StringBuilder();
+            for (long blocker : this.blockers) {
+                sb.append(sb.length() == 0 ? "" : ", ").append(blocker);
+            }
+            return this.transactionId + " waits " + this.waitedMillis + " ms for " + this.mode + " on "
+                    + this.resource + ", blocked by [" + sb + "]";
         }
     }
 
+    private void setTableMode(TransactionId tid, int tableId, LockMode mode) {
+        if (mode != null) {
+            this.tableModes.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).put(tableId, mode);
+        } else {
+            Map<Integer, LockMode> modes = this.tableModes.get(tid);
+            if (modes != null) {
+                modes.remove(tableId);
+            }
+        }
+    }
+
+    private void countLock(TransactionId tid, int tableId, int delta) {
+        this.lockCounts.computeIfAbsent(tid, k -> new ConcurrentHashMap<>()).merge(tableId, delta, Integer::sum);
+    }
+
+    /**
+     * Ask for a lock on a resource, creating its Lock if there is none.
+     *
+     * @return null if the lock was granted, or the queued request
+     */
+    private <K> Request request(Map<K, Lock> table, K key, Function<K, Lock> newLock,
+                                TransactionId tid, LockMode mode) {
+        while (true) {
+            Request request = table.computeIfAbsent(key, newLock).acquire(tid, mode);
+            if (request != RETIRED) {
+                return request;
+            }
+        }
+    }
+
+    /**
+     * Remove a Lock from its table if nobody holds or waits for it. The
+     * Lock is marked retired under the table's own lock on the entry, so a
+     * request either reaches it before or finds the entry gone.
+     */
+    private void retire(Lock lock) {
+        if (lock.rid != null) {
+            retire(this.recordLocks, lock.rid, lock);
+        } else if (lock.pid != null) {
+            retire(this.locks, lock.pid, lock);
+        } else {
+            retire(this.tableLocks, lock.tableId, lock);
+        }
+    }
+
+    private static <K> void retire(Map<K, Lock> table, K key, Lock lock) {
+        table.computeIfPresent(key, (k, current) -> current == lock && lock.retire() ? null : current);
+    }
+
+    /**
+     * Acquire a lock on a page, waiting until it is granted. The page's
+     * table is locked in the matching intention mode first, unless the
+     * transaction holds a table lock that covers the page already.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     break a deadlock while waiting, the
+     *                                     deadlock policy aborted it, or its
+     *                                     lock timeout expired
+     */
     public void lock(TransactionId tid, PageId pid, Permissions perm) throws TransactionAbortedException {
-        if (!pidSLock.containsKey(pid)) {
-            pidSLock.put(pid, new Lock(pid));
+        lock(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Acquire a lock on a page in any mode, like
+     * {@link #lock(TransactionId, PageId, Permissions)}. An intention mode
+     * lets other transactions lock other records of the page.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     break a deadlock while waiting, or
+     *                                     the deadlock policy aborted it
+     */
+    public void lock(TransactionId tid, PageId pid, LockMode mode) throws TransactionAbortedException {
+        checkWounded(tid);
+        int tableId = pid.getTableId();
+        LockMode tableMode = getTableLockMode(tid, tableId);
+        if (tableMode != null && tableMode.coversChildren(mode)) {
+            if (mode == LockMode.X) {
+                this.dirtyPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            }
+            return;
         }
-        if (!tidSLock.containsKey(tid)) {
-            tidSLock.put(tid, new HashMap<>());
+        if (tableMode == null || !tableMode.covers(mode.intention())) {
+            acquire(request(this.tableLocks, tableId, Lock::new, tid, mode.intention()));
         }
-        if (!tidSLock.get(tid).containsKey(pid)) {
-            tidSLock.get(tid).put(pid, new Count(tid));
+        acquire(request(this.locks, pid, Lock::new, tid, mode));
+        if (getLockCount(tid, tableId) > this.escalationThreshold) {
+            escalate(tid, tableId);
         }
-        if (!dirtyPages.containsKey(tid)) {
-            dirtyPages.put(tid, new HashSet<>());
+    }
+
+    /**
+     * Request a lock on a page like
+     * {@link #lock(TransactionId, PageId, Permissions)}, without waiting.
+     *
+     * @return a future that completes when the lock is granted, or
+     * completes exceptionally with a TransactionAbortedException when the
+     * transaction must abort instead
+     */
+    public CompletableFuture<Void> lockAsync(TransactionId tid, PageId pid, Permissions perm) {
+        return lockAsync(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Request a lock on a page in any mode like
+     * {@link #lock(TransactionId, PageId, LockMode)}, without waiting.
+     *
+     * @return a future that completes when the lock is granted, or
+     * completes exceptionally with a TransactionAbortedException when the
+     * transaction must abort instead
+     */
+    public CompletableFuture<Void> lockAsync(TransactionId tid, PageId pid, LockMode mode) {
+        if (this.wounded.contains(tid)) {
+            return CompletableFuture.failedFuture(new TransactionAbortedException());
+        }
+        int tableId = pid.getTableId();
+        LockMode tableMode = getTableLockMode(tid, tableId);
+        if (tableMode != null && tableMode.coversChildren(mode)) {
+            if (mode == LockMode.X) {
+                this.dirtyPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            }
+            return CompletableFuture.completedFuture(null);
         }
+        CompletableFuture<Void> intention = CompletableFuture.completedFuture(null);
+        if (tableMode == null || !tableMode.covers(mode.intention())) {
+            intention = acquireAsync(request(this.tableLocks, tableId, Lock::new, tid, mode.intention()));
+        }
+        return intention
+                .thenCompose(v -> acquireAsync(request(this.locks, pid, Lock::new, tid, mode)))
+                .thenCompose(v -> {
+                    if (getLockCount(tid, tableId) > this.escalationThreshold) {
+                        return acquireAsync(request(this.tableLocks, tableId, Lock::new, tid,
+                                escalationMode(tid, tableId)))
+                                .thenRun(() -> releaseEscalated(tid, tableId));
+                    }
+                    return CompletableFuture.completedFuture(null);
+                });
+    }
 
-        switch (perm) {
-            case READ_ONLY:
-                pidSLock.get(pid).rLock(tid);
-                break;
-            case READ_WRITE:
-                pidSLock.get(pid).wLock(tid);
+    /**
+     * Acquire a lock on a record, waiting until it is granted. The record's
+     * page and table are locked in the matching intention mode first, unless
+     * the transaction holds a lock on either that covers the record already.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     break a deadlock while waiting, or
+     *                                     the deadlock policy aborted it
+     */
+    public void lock(TransactionId tid, RecordId rid, Permissions perm) throws TransactionAbortedException {
+        checkWounded(tid);
+        LockMode mode = LockMode.of(perm);
+        PageId pid = rid.getPageId();
+        LockMode pageMode = getPageLockMode(tid, pid);
+        if (coversRecord(tid, pid, pageMode, mode)) {
+            return;
+        }
+        if (pageMode == null || !pageMode.covers(mode.intention())) {
+            lock(tid, pid, mode.intention());
+            // the page lock may have been escalated to the table
+            if (coversRecord(tid, pid, getPageLockMode(tid, pid), mode)) {
+                return;
+            }
+        }
+        acquire(request(this.recordLocks, rid, Lock::new, tid, mode));
+        if (getLockCount(tid, pid.getTableId()) > this.escalationThreshold) {
+            escalate(tid, pid.getTableId());
+        }
+    }
+
+    private LockMode getPageLockMode(TransactionId tid, PageId pid) {
+        Lock page = this.locks.get(pid);
+        return page == null ? null : page.modeOf(tid);
+    }
+
+    // does a lock on the record's table or page cover the record already?
+    private boolean coversRecord(TransactionId tid, PageId pid, LockMode pageMode, LockMode mode) {
+        LockMode tableMode = getTableLockMode(tid, pid.getTableId());
+        if ((tableMode != null && tableMode.coversChildren(mode))
+                || (pageMode != null && pageMode.coversChildren(mode))) {
+            if (mode == LockMode.X) {
+                this.dirtyPages.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Lock a whole table, waiting until the lock is granted. Holding the
+     * table in S or X mode covers all its pages, which are not locked one by
+     * one any more.
+     *
+     * @throws TransactionAbortedException if the transaction was chosen to
+     *                                     break a deadlock while waiting, or
+     *                                     the deadlock policy aborted it
+     */
+    public void lockTable(TransactionId tid, int tableId, LockMode mode) throws TransactionAbortedException {
+        checkWounded(tid);
+        LockMode tableMode = getTableLockMode(tid, tableId);
+        if (tableMode == null || !tableMode.covers(mode)) {
+            acquire(request(this.tableLocks, tableId, Lock::new, tid, mode));
+        }
+    }
+
+    public boolean holdsLock(TransactionId tid, RecordId rid) {
+        LockMode tableMode = getTableLockMode(tid, rid.getPageId().getTableId());
+        if (tableMode != null && tableMode.coversChildren(LockMode.S)) {
+            return true;
+        }
+        LockMode pageMode = getPageLockMode(tid, rid.getPageId());
+        if (pageMode != null && pageMode.coversChildren(LockMode.S)) {
+            return true;
+        }
+        Lock lock = this.recordLocks.get(rid);
+        return lock != null && lock.isHeldBy(tid);
+    }
+
+    /**
+     * Trade the page and record locks of a transaction on a table for one
+     * table lock: S if it only read pages, X if it wrote some. The pages it
+     * wrote stay dirty.
+     */
+    private void escalate(TransactionId tid, int tableId) throws TransactionAbortedException {
+        acquire(request(this.tableLocks, tableId, Lock::new, tid, escalationMode(tid, tableId)));
+        releaseEscalated(tid, tableId);
+    }
+
+    private LockMode escalationMode(TransactionId tid, int tableId) {
+        return getTableLockMode(tid, tableId) == LockMode.IS ? LockMode.S : LockMode.X;
+    }
+
+    // give back the page and record locks that the table lock now covers
+    private void releaseEscalated(TransactionId tid, int tableId) {
+        for (RecordId rid : this.lockedRecords.getOrDefault(tid, Collections.emptySet())) {
+            if (rid.getPageId().getTableId() == tableId) {
+                releaseLock(this.recordLocks.get(rid), tid);
+            }
+        }
+        for (PageId pid : this.lockedPages.getOrDefault(tid, Collections.emptySet())) {
+            if (pid.getTableId() == tableId) {
+                releaseLock(tid, pid);
+            }
+        }
+        this.escalations.increment();
+    }
+
+    private void checkWounded(TransactionId tid) throws TransactionAbortedException {
+        if (this.wounded.contains(tid)) {
+            throw new TransactionAbortedException();
+        }
+    }
+
+    // wait until a queued request is granted or the transaction's lock
+    // timeout expires; null stands for a lock granted right away
+    private void acquire(Request request) throws TransactionAbortedException {
+        if (request == null) {
+            return;
+        }
+        startWait(request);
+        try {
+            // parks without holding any monitor, and ignores interrupts
+            request.future.join();
+        } catch (CompletionException e) {
+            // thrown anew, so that its stack trace shows the waiting thread
+            throw e.getCause() instanceof LockTimeoutException ? new LockTimeoutException()
+                    : new TransactionAbortedException();
+        } finally {
+            endWait(request);
+        }
+    }
+
+    // the future of a queued request, without waiting for it; null stands
+    // for a lock granted right away
+    private CompletableFuture<Void> acquireAsync(Request request) {
+        if (request == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        startWait(request);
+        // off the thread that granted it, which holds the Lock
+        return request.future.whenCompleteAsync((v, e) -> endWait(request));
+    }
+
+    private void startWait(Request request) {
+        this.waits.increment();
+        this.waiting.put(request.tid, request);
+        waitStarted();
+        if (this.wounded.contains(request.tid)) {
+            // wounded before it was waiting
+            TIMER.execute(() -> request.lock.abort(request));
+        }
+        long timeout = getLockTimeout(request.tid);
+        if (timeout > 0) {
+            request.expiry = TIMER.schedule(() -> {
+                if (request.lock.abort(request, new LockTimeoutException())) {
+                    this.timeouts.increment();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void endWait(Request request) {
+        this.waiting.remove(request.tid, request);
+        waitEnded();
+        // if the thread was stopped, say
+        request.lock.cancel(request);
+        // the request may have been the last one, if it was aborted
+        retire(request.lock);
+        ScheduledFuture<?> expiry = request.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        this.waitTimes.record(System.nanoTime() - request.since);
+    }
+
+    private void waitStarted() {
+        synchronized (this.detectorLock) {
+            this.numWaiting++;
+            if (this.detector == null && this.policy == DeadlockPolicy.DETECT) {
+                this.detector = new Thread(this::detectDeadlocks, "LockManager deadlock detector");
+                this.detector.setDaemon(true);
+                this.detector.start();
+            }
+        }
+    }
+
+    private void waitEnded() {
+        synchronized (this.detectorLock) {
+            this.numWaiting--;
+        }
+    }
+
+    // the body of the detector thread, which ends when nobody waits
+    private void detectDeadlocks() {
+        while (true) {
+            synchronized (this.detectorLock) {
+                if (this.numWaiting == 0) {
+                    this.detector = null;
+                    return;
+                }
+                try {
+                    this.detectorLock.wait(this.detectionIntervalMillis);
+                } catch (InterruptedException e) {
+                    this.detector = null;
+                    return;
+                }
+            }
+            breakDeadlocks();
+        }
+    }
+
+    /**
+     * Abort the youngest transaction of every cycle in the waits-for graph.
+     *
+     * @return the number of transactions aborted
+     */
+    private int breakDeadlocks() {
+        // a Lock that changes from now on is marked again
+        Iterator<Lock> changed = this.changedLocks.iterator();
+        while (changed.hasNext()) {
+            Lock lock = changed.next();
+            changed.remove();
+            lock.refreshWaits();
+        }
+        int aborted = 0;
+        List<TransactionId> cycle;
+        while ((cycle = this.graph.findCycle()) != null) {
+            TransactionId victim = cycle.get(0);
+            for (TransactionId tid : cycle) {
+                if (isOlder(victim, tid)) {
+                    victim = tid;
+                }
+            }
+            Request request = this.waiting.get(victim);
+            // the snapshot may be out of date; only a cycle that is still
+            // there is a deadlock
+            if (request != null && this.graph.isCycle(cycle) && request.lock.abort(request)) {
+                aborted++;
+                this.deadlocks.increment();
+            } else {
+                // let the graph settle
                 break;
+            }
+        }
+        return aborted;
+    }
+
+    // is a older than b? A retried transaction keeps its first timestamp
+    private static boolean isOlder(TransactionId a, TransactionId b) {
+        if (a.getTimestamp() != b.getTimestamp()) {
+            return a.getTimestamp() < b.getTimestamp();
+        }
+        return a.getId() < b.getId();
+    }
+
+    // WOUND_WAIT: abort a younger transaction that is in the way of an older
+    // one; if it waits for a lock, withdraw its request, unless granted by then
+    private void wound(TransactionId tid) {
+        if (!this.wounded.add(tid)) {
+            return;
+        }
+        this.deadlocks.increment();
+        Request request = this.waiting.get(tid);
+        if (request != null) {
+            TIMER.execute(() -> request.lock.abort(request));
+        }
+    }
+
+    /**
+     * Choose how deadlocks are handled. This should be set before
+     * transactions start using the lock manager.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    /**
+     * Set how often the deadlock detector looks for cycles while
+     * transactions wait for locks.
+     */
+    public void setDeadlockDetectionInterval(long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("bad deadlock detection interval " + millis);
+        }
+        this.detectionIntervalMillis = millis;
+    }
+
+    /**
+     * Bound how long every lock request of the transaction may wait; a
+     * request that waits longer aborts the transaction with a
+     * {@link LockTimeoutException}. The bound holds until the transaction
+     * releases all its locks.
+     *
+     * @param millis the longest wait in milliseconds, or 0 to wait forever
+     */
+    public void setLockTimeout(TransactionId tid, long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("bad lock timeout " + millis);
+        }
+        this.lockTimeouts.put(tid, millis);
+    }
+
+    /**
+     * @return the longest a lock request of the transaction may wait in
+     * milliseconds, or 0 if it waits forever
+     */
+    public long getLockTimeout(TransactionId tid) {
+        return this.lockTimeouts.getOrDefault(tid, this.defaultLockTimeoutMillis);
+    }
+
+    @Override
+    public void setDefaultLockTimeout(long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("bad lock timeout " + millis);
         }
+        this.defaultLockTimeoutMillis = millis;
+    }
+
+    @Override
+    public long getDefaultLockTimeout() {
+        return this.defaultLockTimeoutMillis;
+    }
+
+    /**
+     * Set how many pages and records of one table a transaction may lock
+     * before its page and record locks are escalated to a table lock.
+     */
+    public void setEscalationThreshold(int locks) {
+        if (locks <= 0) {
+            throw new IllegalArgumentException("bad escalation threshold " + locks);
+        }
+        this.escalationThreshold = locks;
     }
 
     public void unlock(TransactionId tid, PageId pid, Permissions perm) {
-        switch (perm) {
-            case READ_ONLY:
-                pidSLock.get(pid).rUnlock(tid);
-                break;
-            case READ_WRITE:
-                pidSLock.get(pid).wUnlock(tid);
-                break;
+        unlock(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Give back one acquisition of a page lock in the given mode.
+     */
+    public void unlock(TransactionId tid, PageId pid, LockMode mode) {
+        Lock lock = this.locks.get(pid);
+        if (lock != null) {
+            lock.release(tid, mode);
+            retire(lock);
         }
     }
 
     public void releaseLock(TransactionId tid, PageId pid) {
-        pidSLock.get(pid).rUnlockAll(tid, tidSLock.get(tid).get(pid).getRead());
-        pidSLock.get(pid).wUnlockAll(tid, tidSLock.get(tid).get(pid).getWrite());
+        releaseLock(this.locks.get(pid), tid);
+    }
+
+    // give back every acquisition of a lock, and drop the lock if it is free
+    private void releaseLock(Lock lock, TransactionId tid) {
+        if (lock != null) {
+            lock.releaseAll(tid);
+            retire(lock);
+        }
     }
 
     public void releaseAllLocks(TransactionId tid) {
-        tidSLock.getOrDefault(tid, new HashMap<>()).forEach((k, v) -> {
-            releaseLock(tid, k);
-        });
+        this.wounded.remove(tid);
+        this.lockTimeouts.remove(tid);
+        Set<RecordId> records = this.lockedRecords.remove(tid);
+        if (records != null) {
+            for (RecordId rid : records) {
+                releaseLock(this.recordLocks.get(rid), tid);
+            }
+        }
+        Set<PageId> pages = this.lockedPages.remove(tid);
+        if (pages != null) {
+            for (PageId pid : pages) {
+                releaseLock(tid, pid);
+            }
+        }
+        this.lockCounts.remove(tid);
+        Map<Integer, LockMode> tables = this.tableModes.remove(tid);
+        if (tables != null) {
+            for (Integer tableId : tables.keySet()) {
+                releaseLock(this.tableLocks.get(tableId), tid);
+            }
+        }
     }
 
     public Set<PageId> getDirtyPages(TransactionId tid) {
-        return dirtyPages.getOrDefault(tid, new HashSet<>());
+        return this.dirtyPages.getOrDefault(tid, Collections.emptySet());
     }
+
     public void resetDirtyPages(TransactionId tid) {
-        dirtyPages.put(tid, new HashSet<>());
+        this.dirtyPages.remove(tid);
     }
 
     public boolean holdsLock(TransactionId tid, PageId pid) {
-        return tidSLock.containsKey(tid) &&
-                tidSLock.get(tid).containsKey(pid) &&
-                (tidSLock.get(tid).get(pid).getRead() != 0 ||
-                tidSLock.get(tid).get(pid).getWrite() != 0);
+        LockMode tableMode = getTableLockMode(tid, pid.getTableId());
+        if (tableMode != null && tableMode.coversChildren(LockMode.S)) {
+            return true;
+        }
+        Lock lock = this.locks.get(pid);
+        return lock != null && lock.isHeldBy(tid);
     }
 
     public boolean hasWriteLock(PageId pid) {
-        return pidSLock.get(pid).getWriteLock() != 0;
+        Lock table = this.tableLocks.get(pid.getTableId());
+        if (table != null && table.isWriteLocked()) {
+            return true;
+        }
+        Lock lock = this.locks.get(pid);
+        return lock != null && lock.isWriteLocked();
+    }
+
+    /**
+     * @return the mode in which the transaction holds the table, or null
+     */
+    public LockMode getTableLockMode(TransactionId tid, int tableId) {
+        Map<Integer, LockMode> modes = this.tableModes.get(tid);
+        return modes == null ? null : modes.get(tableId);
+    }
+
+    /**
+     * @return the number of pages and records of the table the transaction
+     * holds a lock on
+     */
+    public int getLockCount(TransactionId tid, int tableId) {
+        Map<Integer, Integer> counts = this.lockCounts.get(tid);
+        return counts == null ? 0 : counts.getOrDefault(tableId, 0);
+    }
+
+    /**
+     * @return the number of locks in the lock tables: the locks held or
+     * waited for, and those that are about to be
+     */
+    public int getNumLocks() {
+        return this.tableLocks.size() + this.locks.size() + this.recordLocks.size();
+    }
+
+    @Override
+    public long getWaits() {
+        return this.waits.sum();
+    }
+
+    @Override
+    public long getDeadlocks() {
+        return this.deadlocks.sum();
     }
 
-    public synchronized void printLocks() {
-        System.out.println("tidlock" + tidSLock);
-        System.out.println("pidlock" + pidSLock);
+    @Override
+    public long getTimeouts() {
+        return this.timeouts.sum();
     }
 
-    public synchronized void printActiveLocks(TransactionId tid) {
-        tidSLock.get(tid).forEach((k, v) -> {
-            if (holdsLock(tid, k)) {
-                System.out.println("Pid: " + k + "Count: " + v);
+    @Override
+    public long getEscalations() {
+        return this.escalations.sum();
+    }
+
+    @Override
+    public int getNumWaiting() {
+        return this.waiting.size();
+    }
+
+    @Override
+    public long getWaitTimeMedianNanos() {
+        return this.waitTimes.getPercentile(50);
+    }
+
+    @Override
+    public long getWaitTime99thPercentileNanos() {
+        return this.waitTimes.getPercentile(99);
+    }
+
+    @Override
+    public long getWaitTimeMaxNanos() {
+        return this.waitTimes.getMax();
+    }
+
+    /**
+     * @return how long lock requests waited, in nanoseconds
+     */
+    public PercentileRecorder getWaitTimes() {
+        return this.waitTimes;
+    }
+
+    // count a wait for a page. Once more than PAGE_WAITS_CAPACITY pages have
+    // counts, every count is halved and the pages left with none are
+    // dropped, so the map stays bounded and old contention fades
+    private void countPageWait(PageId pid) {
+        this.pageWaits.computeIfAbsent(pid, k -> new LongAdder()).increment();
+        if (this.pageWaits.size() > PAGE_WAITS_CAPACITY) {
+            synchronized (this.pageWaits) {
+                if (this.pageWaits.size() > PAGE_WAITS_CAPACITY) {
+                    this.pageWaits.values().removeIf(count -> {
+                        long half = count.sumThenReset() / 2;
+                        count.add(half);
+                        return half == 0;
+                    });
+                }
             }
-        });
+        }
+    }
+
+    /**
+     * @return up to n pages with the most waits, most waited for first,
+     * each with its number of waits. The counts are kept after the pages
+     * are unlocked, and halved once too many pages have one.
+     */
+    public Map<PageId, Long> getHotPages(int n) {
+        List<Map.Entry<PageId, Long>> contended = new ArrayList<>();
+        for (Map.Entry<PageId, LongAdder> page : this.pageWaits.entrySet()) {
+            long count = page.getValue().sum();
+            if (count > 0) {
+                contended.add(Map.entry(page.getKey(), count));
+            }
+        }
+        contended.sort(Map.Entry.<PageId, Long>comparingByValue().reversed());
+        Map<PageId, Long> hot = new LinkedHashMap<>();
+        Iterator<Map.Entry<PageId, Long>> it = contended.iterator();
+        while (hot.size() < n && it.hasNext()) {
+            Map.Entry<PageId, Long> page = it.next();
+            hot.put(page.getKey(), page.getValue());
+        }
+        return hot;
+    }
+
+    @Override
+    public Map<String, Long> getContendedPages() {
+        Map<String, Long> pages = new LinkedHashMap<>();
+        for (Map.Entry<PageId, Long> page : getHotPages(10).entrySet()) {
+            pages.put(String.valueOf(page.getKey()), page.getValue());
+        }
+        return pages;
+    }
+
+    @Override
+    public List<LockInfo> getLocks() {
+        List<LockInfo> infos = new ArrayList<>();
+        for (Map<?, Lock> table : List.of(this.tableLocks, this.locks, this.recordLocks)) {
+            for (Lock lock : table.values()) {
+                LockInfo info = lock.info();
+                if (info != null) {
+                    infos.add(info);
+                }
+            }
+        }
+        return infos;
+    }
+
+    @Override
+    public List<WaitInfo> getWaiters() {
+        List<WaitInfo> infos = new ArrayList<>();
+        for (Request request : this.waiting.values()) {
+            WaitInfo info = request.lock.waitInfo(request);
+            if (info != null) {
+                infos.add(info);
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * @return a snapshot of the locks the transaction holds or waits for
+     */
+    public List<LockInfo> getLocks(TransactionId tid) {
+        String id = String.valueOf(tid.getId());
+        List<LockInfo> infos = new ArrayList<>();
+        for (LockInfo info : getLocks()) {
+            for (String[] entries : List.of(info.getHolders(), info.getWaiters())) {
+                for (String entry : entries) {
+                    if (entry.split(" ")[0].equals(id) && !infos.contains(info)) {
+                        infos.add(info);
+                    }
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Publish this lock manager on the platform MBean server under
+     * {@link #MBEAN_NAME}, in place of the one published before.
+     */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(MBEAN_NAME);
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(this, name);
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
     }
 }
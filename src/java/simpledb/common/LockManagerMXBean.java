@@ -0,0 +1,82 @@
+package simpledb.common;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The management interface of a {@link LockManager}: what it counted since
+ * it started, and who holds and who waits for which lock right now.
+ */
+public interface LockManagerMXBean {
+
+    /**
+     * @return the number of lock requests that had to wait
+     */
+    long getWaits();
+
+    /**
+     * @return the number of transactions aborted to break or, under the
+     * timestamp policies, to prevent deadlocks
+     */
+    long getDeadlocks();
+
+    /**
+     * @return the number of transactions aborted because a lock request
+     * waited longer than their lock timeout
+     */
+    long getTimeouts();
+
+    /**
+     * @return the number of times page locks were escalated to a table lock
+     */
+    long getEscalations();
+
+    /**
+     * @return the number of transactions waiting for a lock
+     */
+    int getNumWaiting();
+
+    /**
+     * @return the median time a lock request waited, in nanoseconds
+     */
+    long getWaitTimeMedianNanos();
+
+    /**
+     * @return the 99th percentile of the time a lock request waited, in
+     * nanoseconds
+     */
+    long getWaitTime99thPercentileNanos();
+
+    /**
+     * @return the longest time a lock request waited, in nanoseconds
+     */
+    long getWaitTimeMaxNanos();
+
+    /**
+     * @return the longest a lock request of a transaction without a lock
+     * timeout of its own waits in milliseconds, or 0 if it waits forever
+     */
+    long getDefaultLockTimeout();
+
+    /**
+     * Set the lock timeout of transactions without one of their own.
+     *
+     * @param millis the longest wait in milliseconds, or 0 to wait forever
+     */
+    void setDefaultLockTimeout(long millis);
+
+    /**
+     * @return the pages waited for most and how often they were waited for
+     */
+    Map<String, Long> getContendedPages();
+
+    /**
+     * @return every lock that is held or waited for
+     */
+    List<LockManager.LockInfo> getLocks();
+
+    /**
+     * @return every waiting transaction and what it waits for
+     */
+    List<LockManager.WaitInfo> getWaiters();
+}
@@ -0,0 +1,96 @@
+package simpledb.common;
+
+/**
+ * The modes of a lock in the lock hierarchy: a table above its pages, and a
+ * page above its records. Records are locked shared (S) or exclusive (X). A
+ * table or page is locked in S or X mode to cover everything below it at
+ * once, or in an intention mode before locking some of its children: IS
+ * before shared locks, IX before exclusive ones, and SIX to read all of it
+ * while writing some children.
+ *
+ * @see LockManager
+ */
+public enum LockMode {
+    IS, IX, S, SIX, X;
+
+    // COMPATIBLE[a][b]: may two transactions hold a and b at once?
+    private static final boolean[][] COMPATIBLE = {
+            //        IS     IX     S      SIX    X
+            /* IS  */ {true, true, true, true, false},
+            /* IX  */ {true, true, false, false, false},
+            /* S   */ {true, false, true, false, false},
+            /* SIX */ {true, false, false, false, false},
+            /* X   */ {false, false, false, false, false},
+    };
+
+    /**
+     * @return the page lock mode that gives the permissions
+     */
+    public static LockMode of(Permissions perm) {
+        return perm == Permissions.READ_ONLY ? S : X;
+    }
+
+    /**
+     * @return true if another transaction may hold the given mode while one
+     * holds this
+     */
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * @return true if holding this mode grants everything the other gives
+     */
+    public boolean covers(LockMode other) {
+        switch (this) {
+            case X:
+                return true;
+            case SIX:
+                return other != X;
+            case S:
+                return other == IS || other == S;
+            case IX:
+                return other == IS || other == IX;
+            default:
+                return other == IS;
+        }
+    }
+
+    /**
+     * @return true if holding this mode on a table or page implicitly locks
+     * each of its pages or records in the given mode, so that they need no
+     * lock of their own
+     */
+    public boolean coversChildren(LockMode mode) {
+        switch (this) {
+            case X:
+                return true;
+            case S:
+            case SIX:
+                return mode == S || mode == IS;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * @return the weakest mode that covers both this and the other mode
+     */
+    public LockMode combine(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        // IX and S
+        return SIX;
+    }
+
+    /**
+     * @return the table mode to hold before locking a page in this mode
+     */
+    public LockMode intention() {
+        return this == S || this == IS ? IS : IX;
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb.common;
+
+import simpledb.transaction.TransactionId;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WaitsForGraph records which transactions every waiting transaction waits
+ * for. A transaction waits for one lock at a time, so its edges are replaced
+ * as a whole whenever the state of that lock changes; no search is done
+ * while locks are requested or released. Cycles are looked for separately,
+ * see {@link #findCycle}.
+ */
+public class WaitsForGraph {
+
+    private final Map<TransactionId, Set<TransactionId>> waitsFor = new ConcurrentHashMap<>();
+
+    /**
+     * Set the transactions that tid waits for.
+     */
+    public void setWaits(TransactionId tid, Set<TransactionId> blockers) {
+        this.waitsFor.put(tid, Collections.unmodifiableSet(blockers));
+    }
+
+    /**
+     * Note that tid does not wait any more.
+     */
+    public void removeWaits(TransactionId tid) {
+        this.waitsFor.remove(tid);
+    }
+
+    /**
+     * @return the transactions that tid waits for
+     */
+    public Set<TransactionId> getWaits(TransactionId tid) {
+        return this.waitsFor.getOrDefault(tid, Collections.emptySet());
+    }
+
+    /**
+     * @return the number of waiting transactions
+     */
+    public int numWaiting() {
+        return this.waitsFor.size();
+    }
+
+    /**
+     * Look for a cycle of waiting transactions, with a depth-first search
+     * over a snapshot of the graph.
+     *
+     * @return the transactions of a cycle, each waiting for the next and the
+     * last for the first, or null if there is none
+     */
+    public List<TransactionId> findCycle() {
+        Map<TransactionId, Set<TransactionId>> graph = new HashMap<>(this.waitsFor);
+        // 1: on the current path, 2: done
+        Map<TransactionId, Integer> state = new HashMap<>();
+        for (TransactionId root : graph.keySet()) {
+            if (state.containsKey(root)) {
+                continue;
+            }
+            Deque<TransactionId> path = new ArrayDeque<>();
+            Deque<Iterator<TransactionId>> edges = new ArrayDeque<>();
+            path.push(root);
+            edges.push(graph.get(root).iterator());
+            state.put(root, 1);
+            while (!path.isEmpty()) {
+                Iterator<TransactionId> it = edges.peek();
+                if (!it.hasNext()) {
+                    state.put(path.pop(), 2);
+                    edges.pop();
+                    continue;
+                }
+                TransactionId next = it.next();
+                Integer nextState = state.get(next);
+                if (nextState == null) {
+                    Set<TransactionId> nextEdges = graph.get(next);
+                    if (nextEdges == null) {
+                        // not waiting
+                        state.put(next, 2);
+                        continue;
+                    }
+                    path.push(next);
+                    edges.push(nextEdges.iterator());
+                    state.put(next, 1);
+                } else if (nextState == 1) {
+                    List<TransactionId> cycle = new ArrayList<>();
+                    Iterator<TransactionId> back = path.descendingIterator();
+                    while (!back.next().equals(next)) {
+                        // skip the part of the path before the cycle
+                    }
+                    cycle.add(next);
+                    back.forEachRemaining(cycle::add);
+                    return cycle;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return true if every edge of the cycle is still in the graph
+     */
+    public boolean isCycle(List<TransactionId> cycle) {
+        for (int i = 0; i < cycle.size(); i++) {
+            if (!getWaits(cycle.get(i)).contains(cycle.get((i + 1) % cycle.size()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "WaitsForGraph" + this.waitsFor;
+    }
+}
@@ -18,7 +18,7 @@ public class SeqScan implements OpIterator {
 
     private static final long serialVersionUID = 1L;
     private TransactionId transactionId;
-    private static int tableid;
+    private int tableid;
     private String tableAlias;
 
     private DbFileIterator i = null;
@@ -75,11 +75,12 @@ public class StringAggregator implements Aggregator {
         List<Tuple> tups = new ArrayList<>();
         aggrMap.forEach((k, v) -> {
             Tuple tup = new Tuple(this.td);
-            if (this.gbfield == Aggregator.NO_GROUPING)
+            if (this.gbfield == Aggregator.NO_GROUPING) {
                 tup.setField(0, new IntField(v.getAggregatedResult()));
-            else
+            } else {
                 tup.setField(0, k);
-            tup.setField(1, new IntField(v.getAggregatedResult()));
+                tup.setField(1, new IntField(v.getAggregatedResult()));
+            }
             tups.add(tup);
         } );
         return new TupleIterator(this.td, tups);
@@ -19,6 +19,14 @@ import java.util.*;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Only leaf pages are locked on the way down the tree. The root pointer and
+ * the internal pages are read under optimistic frame latches, coupled from
+ * each page to its child, and the path is validated once the leaf is locked;
+ * if a split or merge changed it in the meantime, the search starts over.
+ * Internal pages still get write locks from the transactions that change
+ * them, which also latch them for the length of the insert or delete, so
+ * that searches never see a structure change half done.
  *
  * @author Becca Taft
  * @see BTreeLeafPage#BTreeLeafPage
@@ -29,10 +37,17 @@ import java.util.*;
 public class BTreeFile implements DbFile {
 
     private final File f;
+    private final PageFile pages;
     private final TupleDesc td;
     private final int tableid;
     private final int keyField;
 
+    /**
+     * The number of optimistic searches after which a search locks its path
+     * like {@link #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)}.
+     */
+    private static final int OPTIMISTIC_SEARCHES = 3;
+
     /**
      * Constructs a B+ tree file backed by the specified file.
      *
@@ -43,6 +58,11 @@ public class BTreeFile implements DbFile {
      */
     public BTreeFile(File f, int key, TupleDesc td) {
         this.f = f;
+        try {
+            this.pages = new PageFile(f);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         this.tableid = f.getAbsoluteFile().hashCode();
         this.keyField = key;
         this.td = td;
@@ -87,34 +107,15 @@ public class BTreeFile implements DbFile {
     public Page readPage(PageId pid) {
         BTreePageId id = (BTreePageId) pid;
 
-        try (BufferedInputStream bis = new BufferedInputStream(new FileInputStream(f))) {
+        try {
             if (id.pgcateg() == BTreePageId.ROOT_PTR) {
                 byte[] pageBuf = new byte[BTreeRootPtrPage.getPageSize()];
-                int retval = bis.read(pageBuf, 0, BTreeRootPtrPage.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BTreeRootPtrPage.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BTreeRootPtrPage.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(0, pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 return new BTreeRootPtrPage(id, pageBuf);
             } else {
                 byte[] pageBuf = new byte[BufferPool.getPageSize()];
-                if (bis.skip(BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) !=
-                        BTreeRootPtrPage.getPageSize() + (long) (id.getPageNumber() - 1) * BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException(
-                            "Unable to seek to correct place in BTreeFile");
-                }
-                int retval = bis.read(pageBuf, 0, BufferPool.getPageSize());
-                if (retval == -1) {
-                    throw new IllegalArgumentException("Read past end of table");
-                }
-                if (retval < BufferPool.getPageSize()) {
-                    throw new IllegalArgumentException("Unable to read "
-                            + BufferPool.getPageSize() + " bytes from BTreeFile");
-                }
+                readFully(pageOffset(id.getPageNumber()), pageBuf);
                 Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
                 if (id.pgcateg() == BTreePageId.INTERNAL) {
                     return new BTreeInternalPage(id, pageBuf, keyField);
@@ -127,8 +128,22 @@ public class BTreeFile implements DbFile {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
-        // Close the file on success or error
-        // Ignore failures closing the file
+    }
+
+    // the offset of a page other than the root pointer in the file
+    private static long pageOffset(int pgNo) {
+        return BTreeRootPtrPage.getPageSize() + (long) (pgNo - 1) * BufferPool.getPageSize();
+    }
+
+    private void readFully(long position, byte[] pageBuf) throws IOException {
+        int retval = pages.read(position, pageBuf);
+        if (retval == 0) {
+            throw new IllegalArgumentException("Read past end of table");
+        }
+        if (retval < pageBuf.length) {
+            throw new IllegalArgumentException("Unable to read "
+                    + pageBuf.length + " bytes from BTreeFile");
+        }
     }
 
     /**
@@ -141,23 +156,28 @@ public class BTreeFile implements DbFile {
         BTreePageId id = (BTreePageId) page.getId();
 
         byte[] data = page.getPageData();
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
-            rf.write(data);
-            rf.close();
+            pages.write(0, data);
         } else {
-            rf.seek(BTreeRootPtrPage.getPageSize() + (long) (page.getId().getPageNumber() - 1) * BufferPool.getPageSize());
-            rf.write(data);
-            rf.close();
+            pages.write(pageOffset(page.getId().getPageNumber()), data);
         }
     }
 
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        pages.force();
+    }
+
     /**
      * Returns the number of pages in this BTreeFile.
      */
     public int numPages() {
         // we only ever write full pages
-        return (int) ((f.length() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        try {
+            return (int) ((pages.size() - BTreeRootPtrPage.getPageSize()) / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 
     /**
@@ -171,7 +191,8 @@ public class BTreeFile implements DbFile {
      * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
      * the left-most page possibly containing the key field f. It locks all internal
      * nodes along the path to the leaf node with READ_ONLY permission, and locks the
-     * leaf node with permission perm.
+     * leaf node with permission perm. Searches only lock their path like this when
+     * optimistic searches keep failing.
      * <p>
      * If f is null, it finds the left-most leaf page -- used for the iterator
      *
@@ -188,18 +209,7 @@ public class BTreeFile implements DbFile {
         // TODO: some code goes here
         if (pid.pgcateg() == BTreePageId.INTERNAL) {
             BTreeInternalPage page = (BTreeInternalPage) getPage(tid, dirtypages, pid, Permissions.READ_ONLY);
-            Iterator<BTreeEntry> it = page.iterator();
-            if (it.hasNext() && Objects.isNull(f)) {
-                return findLeafPage(tid, dirtypages, it.next().getLeftChild(), perm, f);
-            }
-            BTreeEntry entry = null;
-            while (it.hasNext()) {
-                entry = it.next();
-                if (entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
-                    return findLeafPage(tid, dirtypages, entry.getLeftChild(), perm, f);
-                }
-            }
-            return findLeafPage(tid, dirtypages, entry.getRightChild(), perm, f);
+            return findLeafPage(tid, dirtypages, getChildId(page, f), perm, f);
         } else if (pid.pgcateg() == BTreePageId.LEAF) {
             return (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
         } else {
@@ -207,20 +217,122 @@ public class BTreeFile implements DbFile {
         }
     }
 
+    /**
+     * Find and lock the leaf page in the B+ tree corresponding to the left-most page possibly
+     * containing the key field f, starting from the root pointer. Only the leaf page is locked:
+     * the root pointer and the internal pages are read under optimistic latches. If the path
+     * keeps changing under the search, the search falls back to locking it.
+     * <p>
+     * If f is null, it finds the left-most leaf page -- used for the iterator
+     *
+     * @param tid        - the transaction id
+     * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+     * @param perm       - the permissions with which to lock the leaf page
+     * @param f          - the field to search for
+     * @return the left-most leaf page possibly containing the key field f, or null if the
+     *         tree has no root yet
+     */
+    private BTreeLeafPage findLeafPage(TransactionId tid, Map<PageId, Page> dirtypages, Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        // snapshots read old versions, which optimistic reads cannot see
+        int searches = Database.getBufferPool().getVersionStore().isSnapshot(tid) ? 0 : OPTIMISTIC_SEARCHES;
+        for (int i = 0; i < searches; i++) {
+            BTreeLeafPage leaf = findLeafPageOptimistic(tid, dirtypages, perm, f);
+            if (leaf != null) {
+                return leaf;
+            }
+            Thread.yield();
+        }
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+                BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+        BTreePageId rootId = rootPtr.getRootId();
+        if (rootId == null) {
+            return null;
+        }
+        return findLeafPage(tid, dirtypages, rootId, perm, f);
+    }
+
+    /**
+     * One optimistic search for the leaf page like {@link #findLeafPage(TransactionId, Map, Permissions, Field)}.
+     * The latch of every page is validated after the latch of its child is taken, and the whole
+     * path again once the leaf is locked, since waiting for the lock may take long.
+     *
+     * @return the leaf page, or null if the path changed and the search must start over
+     */
+    private BTreeLeafPage findLeafPageOptimistic(TransactionId tid, Map<PageId, Page> dirtypages,
+                                                 Permissions perm, Field f)
+            throws DbException, TransactionAbortedException {
+        BufferPool bp = Database.getBufferPool();
+        List<PageLatch> path = new ArrayList<>();
+        BTreePageId pid;
+        try {
+            PageLatch latch = bp.readOptimistic(BTreeRootPtrPage.getId(tableid));
+            pid = ((BTreeRootPtrPage) latch.getPage()).getRootId();
+            while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+                PageLatch child = bp.readOptimistic(pid);
+                if (!latch.validate()) {
+                    return null;
+                }
+                path.add(latch);
+                latch = child;
+                pid = getChildId((BTreeInternalPage) latch.getPage(), f);
+            }
+            if (!latch.validate() || pid == null || pid.pgcateg() != BTreePageId.LEAF) {
+                return null;
+            }
+            path.add(latch);
+        } catch (RuntimeException e) {
+            // read a page while it was changing
+            return null;
+        }
+
+        boolean locked = bp.holdsLock(tid, pid);
+        boolean cached = dirtypages.containsKey(pid);
+        BTreeLeafPage leaf = (BTreeLeafPage) getPage(tid, dirtypages, pid, perm);
+        for (PageLatch latch : path) {
+            if (!latch.validate()) {
+                // nothing was read from the leaf, so its lock may go
+                if (!cached) {
+                    dirtypages.remove(pid);
+                }
+                if (!locked) {
+                    bp.unsafeReleasePage(tid, pid);
+                }
+                return null;
+            }
+        }
+        return leaf;
+    }
+
+    /**
+     * @return the id of the child of an internal page to follow when searching for the
+     *         left-most page possibly containing the key field f, or for the left-most
+     *         page if f is null
+     */
+    private static BTreePageId getChildId(BTreeInternalPage page, Field f) {
+        Iterator<BTreeEntry> it = page.iterator();
+        BTreeEntry entry = null;
+        while (it.hasNext()) {
+            entry = it.next();
+            if (f == null || entry.getKey().compare(Op.GREATER_THAN_OR_EQ, f)) {
+                return entry.getLeftChild();
+            }
+        }
+        return entry == null ? null : entry.getRightChild();
+    }
+
     /**
      * Convenience method to find a leaf page when there is no dirtypages HashMap.
      * Used by the BTreeFile iterator.
      *
      * @param tid - the transaction id
-     * @param pid - the current page being searched
      * @param f   - the field to search for
      * @return the left-most leaf page possibly containing the key field f
-     * @see #findLeafPage(TransactionId, Map, BTreePageId, Permissions, Field)
+     * @see #findLeafPage(TransactionId, Map, Permissions, Field)
      */
-    BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid,
-                               Field f)
+    BTreeLeafPage findLeafPage(TransactionId tid, Field f)
             throws DbException, TransactionAbortedException {
-        return findLeafPage(tid, new HashMap<>(), pid, Permissions.READ_ONLY, f);
+        return findLeafPage(tid, new HashMap<>(), Permissions.READ_ONLY, f);
     }
 
     /**
@@ -442,7 +554,8 @@ public class BTreeFile implements DbFile {
      * Method to encapsulate the process of locking/fetching a page.  First the method checks the local
      * cache ("dirtypages"), and if it can't find the requested page there, it fetches it from the buffer pool.
      * It also adds pages to the dirtypages cache if they are fetched with read-write permission, since
-     * presumably they will soon be dirtied by this transaction.
+     * presumably they will soon be dirtied by this transaction. Internal pages and the root pointer
+     * fetched with read-write permission are latched as well, until the insert or delete is over.
      * <p>
      * This method is needed to ensure that page updates are not lost if the same pages are
      * accessed multiple times.
@@ -463,12 +576,25 @@ public class BTreeFile implements DbFile {
         } else {
             Page p = Database.getBufferPool().getPage(tid, pid, perm);
             if (perm == Permissions.READ_WRITE) {
+                if (pid.pgcateg() == BTreePageId.INTERNAL || pid.pgcateg() == BTreePageId.ROOT_PTR) {
+                    p = Database.getBufferPool().latchPage(tid, pid);
+                }
                 dirtypages.put(pid, p);
             }
             return p;
         }
     }
 
+    /**
+     * Optimistic transactions cannot change B+ trees: allocating and freeing
+     * pages writes to the file directly, which cannot be kept private.
+     */
+    private static void checkWritable(TransactionId tid) throws DbException {
+        if (Database.getBufferPool().getVersionStore().isOptimistic(tid)) {
+            throw new DbException("optimistic transaction " + tid + " cannot change a B+ tree");
+        }
+    }
+
     /**
      * Insert a tuple into this BTreeFile, keeping the tuples in sorted order.
      * May cause pages to split if the page where tuple t belongs is full.
@@ -481,28 +607,34 @@ public class BTreeFile implements DbFile {
      */
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         Map<PageId, Page> dirtypages = new HashMap<>();
+        createRootPtrPage();
+        try {
+            // find and lock the left-most leaf page corresponding to the key field
+            BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, t.getField(keyField));
+            if (leafPage == null) { // the root has just been created, so set the root pointer to point to it
+                BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages,
+                        BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+                BTreePageId rootId = rootPtr.getRootId();
+                if (rootId == null) {
+                    rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+                    rootPtr.setRootId(rootId);
+                }
+                leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+            }
 
-        // get a read lock on the root pointer page and use it to locate the root page
-        BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-        BTreePageId rootId = rootPtr.getRootId();
-
-        if (rootId == null) { // the root has just been created, so set the root pointer to point to it
-            rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-            rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-            rootPtr.setRootId(rootId);
-        }
+            // split the leaf page if there are no more slots available
+            if (leafPage.getNumEmptySlots() == 0) {
+                leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            }
 
-        // find and lock the left-most leaf page corresponding to the key field,
-        // and split the leaf page if there are no more slots available
-        BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
-        if (leafPage.getNumEmptySlots() == 0) {
-            leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));
+            // insert the tuple into the leaf page
+            leafPage.insertTuple(t);
+        } finally {
+            Database.getBufferPool().unlatchPages(tid);
         }
 
-        // insert the tuple into the leaf page
-        leafPage.insertTuple(t);
-
         return new ArrayList<>(dirtypages.values());
     }
 
@@ -913,18 +1045,23 @@ public class BTreeFile implements DbFile {
      */
     public List<Page> deleteTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
+        checkWritable(tid);
         Map<PageId, Page> dirtypages = new HashMap<>();
 
         BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
                 BTreePageId.LEAF);
-        BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
-        page.deleteTuple(t);
-
-        // if the page is below minimum occupancy, get some tuples from its siblings
-        // or merge with one of the siblings
-        int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
-        if (page.getNumEmptySlots() > maxEmptySlots) {
-            handleMinOccupancyPage(tid, dirtypages, page);
+        try {
+            BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+            page.deleteTuple(t);
+
+            // if the page is below minimum occupancy, get some tuples from its siblings
+            // or merge with one of the siblings
+            int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples() / 2; // ceiling
+            if (page.getNumEmptySlots() > maxEmptySlots) {
+                handleMinOccupancyPage(tid, dirtypages, page);
+            }
+        } finally {
+            Database.getBufferPool().unlatchPages(tid);
         }
 
         return new ArrayList<>(dirtypages.values());
@@ -942,21 +1079,27 @@ public class BTreeFile implements DbFile {
      * @throws TransactionAbortedException
      */
     BTreeRootPtrPage getRootPtrPage(TransactionId tid, Map<PageId, Page> dirtypages) throws DbException, IOException, TransactionAbortedException {
+        createRootPtrPage();
+
+        // get a read lock on the root pointer page
+        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Create the root pointer page and the root page if the file is empty.
+     *
+     * @throws IOException
+     */
+    private void createRootPtrPage() throws IOException {
         synchronized (this) {
-            if (f.length() == 0) {
+            if (pages.size() == 0) {
                 // create the root pointer page and the root page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyRootPtrData = BTreeRootPtrPage.createEmptyPageData();
                 byte[] emptyLeafData = BTreeLeafPage.createEmptyPageData();
-                bw.write(emptyRootPtrData);
-                bw.write(emptyLeafData);
-                bw.close();
+                pages.write(0, emptyRootPtrData);
+                pages.write(emptyRootPtrData.length, emptyLeafData);
             }
         }
-
-        // get a read lock on the root pointer page
-        return (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_ONLY);
     }
 
     /**
@@ -1005,11 +1148,8 @@ public class BTreeFile implements DbFile {
         if (headerId == null) {
             synchronized (this) {
                 // create the new page
-                BufferedOutputStream bw = new BufferedOutputStream(
-                        new FileOutputStream(f, true));
                 byte[] emptyData = BTreeInternalPage.createEmptyPageData();
-                bw.write(emptyData);
-                bw.close();
+                pages.write(pages.size(), emptyData);
                 emptyPageNo = numPages();
             }
         }
@@ -1039,10 +1179,7 @@ public class BTreeFile implements DbFile {
         BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
 
         // write empty page to disk
-        RandomAccessFile rf = new RandomAccessFile(f, "rw");
-        rf.seek(BTreeRootPtrPage.getPageSize() + (long) (emptyPageNo - 1) * BufferPool.getPageSize());
-        rf.write(BTreePage.createEmptyPageData());
-        rf.close();
+        pages.write(pageOffset(emptyPageNo), BTreePage.createEmptyPageData());
 
         // make sure the page is not in the buffer pool	or in the local cache
         Database.getBufferPool().removePage(newPageId);
@@ -1190,10 +1327,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
      * Open this iterator by getting an iterator on the first leaf page
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
-        curp = f.findLeafPage(tid, root, null);
+        curp = pinLeafPage(f.findLeafPage(tid, null).getId());
         it = curp.iterator();
     }
 
@@ -1211,10 +1345,9 @@ class BTreeFileIterator extends AbstractDbFileIterator {
         while (it == null && curp != null) {
             BTreePageId nextp = curp.getRightSiblingId();
             if (nextp == null) {
-                curp = null;
+                unpinCurrentPage();
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pinLeafPage(nextp);
                 it = curp.iterator();
                 if (!it.hasNext())
                     it = null;
@@ -1240,7 +1373,24 @@ class BTreeFileIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
-        curp = null;
+        unpinCurrentPage();
+    }
+
+    /**
+     * Pin the given leaf page, which becomes the current page, and release
+     * the pin on the page it replaces.
+     */
+    private BTreeLeafPage pinLeafPage(BTreePageId pid)
+            throws TransactionAbortedException, DbException {
+        unpinCurrentPage();
+        return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+    }
+
+    private void unpinCurrentPage() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+            curp = null;
+        }
     }
 }
 
@@ -1275,14 +1425,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
      * for the given predicate operation
      */
     public void open() throws DbException, TransactionAbortedException {
-        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-                tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-        BTreePageId root = rootPtr.getRootId();
         if (ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN
                 || ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-            curp = f.findLeafPage(tid, root, ipred.getField());
+            curp = pinLeafPage(f.findLeafPage(tid, ipred.getField()).getId());
         } else {
-            curp = f.findLeafPage(tid, root, null);
+            curp = pinLeafPage(f.findLeafPage(tid, null).getId());
         }
         it = curp.iterator();
     }
@@ -1319,8 +1466,7 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
             if (nextp == null) {
                 return null;
             } else {
-                curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-                        nextp, Permissions.READ_ONLY);
+                curp = pinLeafPage(nextp);
                 it = curp.iterator();
             }
         }
@@ -1342,5 +1488,23 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
     public void close() {
         super.close();
         it = null;
+        unpinCurrentPage();
+    }
+
+    /**
+     * Pin the given leaf page, which becomes the current page, and release
+     * the pin on the page it replaces.
+     */
+    private BTreeLeafPage pinLeafPage(BTreePageId pid)
+            throws TransactionAbortedException, DbException {
+        unpinCurrentPage();
+        return (BTreeLeafPage) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+    }
+
+    private void unpinCurrentPage() {
+        if (curp != null) {
+            Database.getBufferPool().unpinPage(tid, curp.getId());
+            curp = null;
+        }
     }
 }
@@ -6,6 +6,7 @@ import simpledb.common.Type;
 import simpledb.storage.BufferPool;
 import simpledb.storage.Field;
 import simpledb.storage.IntField;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
@@ -22,6 +23,7 @@ import java.util.Arrays;
 public class BTreeHeaderPage implements Page {
     private volatile boolean dirty = false;
     private volatile TransactionId dirtier = null;
+    private volatile long lsn = LogFile.NO_LSN;
 
     final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -32,14 +34,19 @@ public class BTreeHeaderPage implements Page {
     private int nextPage; // next header page or 0
     private int prevPage; // previous header page or 0
 
+    // the before image, or null while the page is unchanged since
+    // setBeforeImage
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 
     /**
      * Create a BTreeHeaderPage from a set of bytes of data read from disk.
      * The format of a BTreeHeaderPage is two pointers to the next and previous
      * header pages, followed by a set of bytes indicating which pages in the file
      * are used or available
+     * <p>
+     * The page keeps the array as its before image; the caller must not
+     * change it.
      *
      * @see BufferPool#getPageSize()
      */
@@ -70,13 +77,14 @@ public class BTreeHeaderPage implements Page {
 
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     /**
      * Initially mark all slots in the header used.
      */
     public void init() {
+        beforeChange();
         Arrays.fill(header, (byte) 0xFF);
     }
 
@@ -104,7 +112,7 @@ public class BTreeHeaderPage implements Page {
         try {
             byte[] oldDataRef = null;
             synchronized (oldDataLock) {
-                oldDataRef = oldData;
+                oldDataRef = oldData != null ? oldData : getPageData();
             }
             return new BTreeHeaderPage(pid, oldDataRef);
         } catch (IOException e) {
@@ -117,7 +125,16 @@ public class BTreeHeaderPage implements Page {
 
     public void setBeforeImage() {
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = null;
+        }
+    }
+
+    // capture the before image before the first change since setBeforeImage
+    private void beforeChange() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
         }
     }
 
@@ -222,6 +239,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setPrevPageId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             prevPage = 0;
         } else {
@@ -242,6 +260,7 @@ public class BTreeHeaderPage implements Page {
      * @throws DbException
      */
     public void setNextPageId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             nextPage = 0;
         } else {
@@ -274,6 +293,14 @@ public class BTreeHeaderPage implements Page {
             return null;
     }
 
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns true if the page of the BTreeFile associated with slot i is used
      */
@@ -291,6 +318,7 @@ public class BTreeHeaderPage implements Page {
         int headerbyte = (i - headerbit) / 8;
 
         Debug.log(1, "BTreeHeaderPage.setSlot: setting slot %d to %b", i, value);
+        beforeChange();
         if (value)
             header[headerbyte] |= 1 << headerbit;
         else
@@ -59,6 +59,9 @@ public class BTreeInternalPage extends BTreePage {
      * ceiling((no. entry slots + 1) / 8)
      * <p>
      *
+     * The page keeps the array as its before image; the caller must not
+     * change it.
+     *
      * @param id   - the id of this page
      * @param data - the raw data of this page
      * @param key  - the field which the index is keyed on
@@ -109,7 +112,7 @@ public class BTreeInternalPage extends BTreePage {
         }
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     /**
@@ -143,11 +146,7 @@ public class BTreeInternalPage extends BTreePage {
      */
     public BTreeInternalPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeInternalPage(pid, oldDataRef, keyField);
+            return new BTreeInternalPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -156,12 +155,6 @@ public class BTreeInternalPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read keys from the source file.
      */
@@ -354,6 +347,7 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("tried to delete entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null entry.");
+        beforeChange();
         if (deleteRightChild) {
             markSlotUsed(rid.getTupleNumber(), false);
         } else {
@@ -413,6 +407,7 @@ public class BTreeInternalPage extends BTreePage {
             throw new DbException("tried to update entry on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to update null entry.");
+        beforeChange();
 
         for (int i = rid.getTupleNumber() + 1; i < numSlots; i++) {
             if (isSlotUsed(i)) {
@@ -452,6 +447,7 @@ public class BTreeInternalPage extends BTreePage {
         if (e.getLeftChild().getTableId() != pid.getTableId() || e.getRightChild().getTableId() != pid.getTableId())
             throw new DbException("table id mismatch in insertEntry");
 
+        beforeChange();
         if (childCategory == 0) {
             if (e.getLeftChild().pgcateg() != e.getRightChild().pgcateg())
                 throw new DbException("child page category mismatch in insertEntry");
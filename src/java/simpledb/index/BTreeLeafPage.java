@@ -53,6 +53,9 @@ public class BTreeLeafPage extends BTreePage {
      * ceiling(no. tuple slots / 8)
      * <p>
      *
+     * The page keeps the array as its before image; the caller must not
+     * change it.
+     *
      * @param id   - the id of this page
      * @param data - the raw data of this page
      * @param key  - the field which the index is keyed on
@@ -102,7 +105,7 @@ public class BTreeLeafPage extends BTreePage {
         }
         dis.close();
 
-        setBeforeImage();
+        this.oldData = data;
     }
 
     /**
@@ -132,11 +135,7 @@ public class BTreeLeafPage extends BTreePage {
      */
     public BTreeLeafPage getBeforeImage() {
         try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new BTreeLeafPage(pid, oldDataRef, keyField);
+            return new BTreeLeafPage(pid, getBeforeImageData(), keyField);
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -145,12 +144,6 @@ public class BTreeLeafPage extends BTreePage {
         return null;
     }
 
-    public void setBeforeImage() {
-        synchronized (oldDataLock) {
-            oldData = getPageData().clone();
-        }
-    }
-
     /**
      * Read tuples from the source file.
      */
@@ -293,6 +286,7 @@ public class BTreeLeafPage extends BTreePage {
             throw new DbException("tried to delete tuple on invalid page or table");
         if (!isSlotUsed(rid.getTupleNumber()))
             throw new DbException("tried to delete null tuple.");
+        beforeChange();
         markSlotUsed(rid.getTupleNumber(), false);
         t.setRecordId(null);
     }
@@ -321,6 +315,7 @@ public class BTreeLeafPage extends BTreePage {
 
         if (emptySlot == -1)
             throw new DbException("called addTuple on page with no empty slots.");
+        beforeChange();
 
         // find the last key less than or equal to the key being inserted
         int lessOrEqKey = -1;
@@ -402,6 +397,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setLeftSiblingId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             leftSibling = 0;
         } else {
@@ -422,6 +418,7 @@ public class BTreeLeafPage extends BTreePage {
      * @throws DbException if the id is not valid
      */
     public void setRightSiblingId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             rightSibling = 0;
         } else {
@@ -5,6 +5,7 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Type;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.storage.TupleDesc;
 import simpledb.transaction.TransactionId;
@@ -19,6 +20,7 @@ import simpledb.transaction.TransactionId;
 public abstract class BTreePage implements Page {
     protected volatile boolean dirty = false;
     protected volatile TransactionId dirtier = null;
+    private volatile long lsn = LogFile.NO_LSN;
 
     protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -27,8 +29,10 @@ public abstract class BTreePage implements Page {
     protected final int keyField;
 
     protected int parent; // parent is always internal node or 0 for root node
+    // the before image, or null while the page is unchanged since
+    // setBeforeImage; a page read from disk shares the bytes it was read from
     protected byte[] oldData;
-    protected final Byte oldDataLock = (byte) 0;
+    protected final Object oldDataLock = new Object();
 
     /**
      * Create a BTreeInternalPage from a set of bytes of data read from disk.
@@ -108,6 +112,7 @@ public abstract class BTreePage implements Page {
         if (id.pgcateg() != BTreePageId.INTERNAL && id.pgcateg() != BTreePageId.ROOT_PTR) {
             throw new DbException("parent must be an internal node or root pointer");
         }
+        beforeChange();
         if (id.pgcateg() == BTreePageId.ROOT_PTR) {
             parent = 0;
         } else {
@@ -115,6 +120,39 @@ public abstract class BTreePage implements Page {
         }
     }
 
+    /**
+     * @return the bytes of the before image
+     */
+    protected byte[] getBeforeImageData() {
+        synchronized (oldDataLock) {
+            return oldData != null ? oldData : getPageData();
+        }
+    }
+
+    /**
+     * Make the current contents the before image. They are only serialized
+     * when the page is changed next, so pages that are read and never
+     * changed again cost nothing.
+     */
+    public void setBeforeImage() {
+        synchronized (oldDataLock) {
+            oldData = null;
+        }
+    }
+
+    /**
+     * Capture the before image if the page is about to change for the first
+     * time since setBeforeImage. Every method that changes the page calls
+     * this first.
+     */
+    protected void beforeChange() {
+        synchronized (oldDataLock) {
+            if (oldData == null) {
+                oldData = getPageData();
+            }
+        }
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
@@ -134,6 +172,14 @@ public abstract class BTreePage implements Page {
             return null;
     }
 
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
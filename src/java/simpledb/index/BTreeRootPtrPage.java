@@ -2,6 +2,7 @@ package simpledb.index;
 
 import simpledb.common.DbException;
 import simpledb.storage.BufferPool;
+import simpledb.storage.LogFile;
 import simpledb.storage.Page;
 import simpledb.transaction.TransactionId;
 
@@ -19,6 +20,7 @@ public class BTreeRootPtrPage implements Page {
 
     private boolean dirty = false;
     private TransactionId dirtier = null;
+    private volatile long lsn = LogFile.NO_LSN;
 
     private final BTreePageId pid;
 
@@ -26,6 +28,8 @@ public class BTreeRootPtrPage implements Page {
     private int rootCategory;
     private int header;
 
+    // the before image, or null while the page is unchanged since
+    // setBeforeImage
     private byte[] oldData;
 
     /**
@@ -48,11 +52,18 @@ public class BTreeRootPtrPage implements Page {
         // read in the header pointer
         header = dis.readInt();
 
-        setBeforeImage();
+        oldData = data;
     }
 
     public void setBeforeImage() {
-        oldData = getPageData().clone();
+        oldData = null;
+    }
+
+    // capture the before image before the first change since setBeforeImage
+    private void beforeChange() {
+        if (oldData == null) {
+            oldData = getPageData();
+        }
     }
 
     /**
@@ -141,13 +152,21 @@ public class BTreeRootPtrPage implements Page {
             return null;
     }
 
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Return a view of this page before it was modified
      * -- used by recovery
      */
     public BTreeRootPtrPage getBeforeImage() {
         try {
-            return new BTreeRootPtrPage(pid, oldData);
+            return new BTreeRootPtrPage(pid, oldData != null ? oldData : getPageData());
         } catch (IOException e) {
             e.printStackTrace();
             //should never happen -- we parsed it OK before!
@@ -175,6 +194,7 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setRootId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             root = 0;
         } else {
@@ -208,6 +228,7 @@ public class BTreeRootPtrPage implements Page {
      * @throws DbException if the id is invalid
      */
     public void setHeaderId(BTreePageId id) throws DbException {
+        beforeChange();
         if (id == null) {
             header = 0;
         } else {
@@ -0,0 +1,88 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * BackgroundWriter trickles committed pages of a BufferPool that is running in
+ * NO-FORCE mode to disk. Every round writes the pages in batches, and each
+ * batch forces the log only once before its pages are written.
+ *
+ * @see BufferPool#startBackgroundWriter
+ */
+class BackgroundWriter extends Thread {
+
+    /**
+     * Maximum number of pages written per log force.
+     */
+    static final int BATCH_SIZE = 32;
+
+    private final BufferPool bufferPool;
+    private final long intervalMillis;
+    private final Object lock;
+    private boolean running; // protected by lock
+
+    /**
+     * @param bufferPool     the pool whose committed pages are written
+     * @param intervalMillis the pause between two rounds
+     */
+    BackgroundWriter(BufferPool bufferPool, long intervalMillis) {
+        super("BufferPool background writer");
+        this.bufferPool = bufferPool;
+        this.intervalMillis = intervalMillis;
+        this.lock = new Object();
+        this.running = true;
+        setDaemon(true);
+    }
+
+    private boolean isRunning() {
+        synchronized (this.lock) {
+            return this.running;
+        }
+    }
+
+    @Override
+    public void run() {
+        while (isRunning()) {
+            try {
+                while (isRunning() && this.bufferPool.writeUnflushedPages(BATCH_SIZE) == BATCH_SIZE) {
+                    // a full batch was written, so there may be more waiting
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // never interrupt this thread: an interrupt during LogFile.force()
+            // would close the log's file channel
+            synchronized (this.lock) {
+                if (this.running) {
+                    try {
+                        this.lock.wait(this.intervalMillis);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Stop the writer and wait for the batch in progress to finish. Pages
+     * that were not written yet stay in the buffer pool.
+     */
+    void shutdown() {
+        synchronized (this.lock) {
+            this.running = false;
+            this.lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive() && Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
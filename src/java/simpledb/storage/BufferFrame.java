@@ -0,0 +1,237 @@
+package simpledb.storage;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * BufferFrame is one slot of the BufferPool page table. It holds the cached
+ * copy of a single page together with a pin count.
+ * <p>
+ * A frame is published in the page table before its page has been read from
+ * disk, so that concurrent requests for the same page wait for a single read
+ * instead of racing to load it twice. The frame stays pinned while it is being
+ * loaded, which keeps the eviction path away from it.
+ * <p>
+ * In NO-FORCE mode a committed page is logged but not written at commit; its
+ * frame is marked unflushed until the page reaches disk, and cannot be
+ * evicted before that.
+ * <p>
+ * The recLSN of a frame is the log position from which changes to its page
+ * may be missing on disk, or NO_LSN if the page on disk is up to date with
+ * the log. Checkpoints record it in their dirty page table.
+ * <p>
+ * The frame monitor is the only lock that guards its contents; the BufferPool
+ * never holds more than one frame monitor at a time.
+ * <p>
+ * The latch of a frame is a short-duration lock on the page it holds, apart
+ * from the transactional locks of the LockManager. Writers hold it
+ * exclusively while they change the page; readers that take no lock on the
+ * page read it optimistically and validate the stamp afterwards.
+ *
+ * @see BufferPool
+ */
+class BufferFrame {
+
+    private final PageId pid;
+    private volatile Page page;
+    private volatile RuntimeException loadError;
+    private volatile boolean evicted;
+    private volatile boolean unflushed;
+    private volatile long recLsn = LogFile.NO_LSN;
+    private final AtomicInteger pinCount;
+    private final CountDownLatch loaded;
+    private final StampedLock latch = new StampedLock();
+
+    /**
+     * Create an empty frame for the specified page. The frame starts out
+     * pinned; the pin is dropped by {@link #load} or {@link #fail}.
+     *
+     * @param pid the id of the page that will live in this frame
+     */
+    BufferFrame(PageId pid) {
+        this.pid = pid;
+        this.pinCount = new AtomicInteger(1);
+        this.loaded = new CountDownLatch(1);
+    }
+
+    /**
+     * Create a frame that already holds the specified page.
+     */
+    BufferFrame(Page page) {
+        this.pid = page.getId();
+        this.page = page;
+        this.pinCount = new AtomicInteger(0);
+        this.loaded = new CountDownLatch(0);
+    }
+
+    PageId getId() {
+        return this.pid;
+    }
+
+    /**
+     * Install the page read from disk and wake up every thread waiting on it.
+     */
+    void load(Page page) {
+        this.page = page;
+        this.pinCount.decrementAndGet();
+        this.loaded.countDown();
+    }
+
+    /**
+     * Record that the page could not be read; waiting threads rethrow the error.
+     */
+    void fail(RuntimeException e) {
+        this.loadError = e;
+        this.pinCount.decrementAndGet();
+        this.loaded.countDown();
+    }
+
+    /**
+     * Return the page held by this frame, waiting for an in-flight read to
+     * finish if necessary.
+     */
+    Page awaitPage() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                this.loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (this.loadError != null) {
+            throw this.loadError;
+        }
+        return this.page;
+    }
+
+    /**
+     * @return the page held by this frame, or null if it is still being loaded
+     */
+    Page getPage() {
+        return this.page;
+    }
+
+    /**
+     * Replace the page held by this frame, e.g. with a newer version returned
+     * by a DbFile.
+     */
+    synchronized void setPage(Page page) {
+        this.page = page;
+    }
+
+    void pin() {
+        this.pinCount.incrementAndGet();
+    }
+
+    void unpin() {
+        this.pinCount.decrementAndGet();
+    }
+
+    boolean isPinned() {
+        return this.pinCount.get() > 0;
+    }
+
+    /**
+     * @return a stamp for an optimistic read of the page, or zero if the
+     * frame is latched exclusively
+     */
+    long tryOptimisticRead() {
+        return this.latch.tryOptimisticRead();
+    }
+
+    /**
+     * @return true if the frame was not latched exclusively since the stamp
+     * was taken
+     */
+    boolean validate(long stamp) {
+        return this.latch.validate(stamp);
+    }
+
+    /**
+     * Latch the frame exclusively, waiting for the holder if there is one.
+     *
+     * @return the stamp to unlatch with
+     */
+    long latchExclusive() {
+        return this.latch.writeLock();
+    }
+
+    void unlatchExclusive(long stamp) {
+        this.latch.unlockWrite(stamp);
+    }
+
+    boolean isEvicted() {
+        return this.evicted;
+    }
+
+    /**
+     * @return true if the page holds committed changes that are not on disk yet
+     */
+    boolean isUnflushed() {
+        return this.unflushed;
+    }
+
+    void markUnflushed() {
+        this.unflushed = true;
+    }
+
+    /**
+     * Mark this frame as flushed: the page on disk is up to date with the log.
+     * The page's file must have been forced, since the page then leaves the
+     * dirty page table of the next checkpoint, and recovery may start redo
+     * past its changes.
+     */
+    void markFlushed() {
+        this.unflushed = false;
+        this.recLsn = LogFile.NO_LSN;
+    }
+
+    /**
+     * Record that the page is about to be logged; lsn must not be past the
+     * start of the log record. Must be called with the frame monitor held.
+     */
+    void markLogging(long lsn) {
+        if (this.recLsn == LogFile.NO_LSN) {
+            this.recLsn = lsn;
+        }
+    }
+
+    /**
+     * @return the log position from which changes to the page may be missing
+     * on disk, or LogFile.NO_LSN
+     */
+    long getRecLsn() {
+        return this.recLsn;
+    }
+
+    /**
+     * Mark this frame as evicted if it holds a clean, unpinned page that is
+     * already on disk.
+     * Must be called with the frame monitor held.
+     *
+     * @return true if the frame may be dropped from the page table
+     */
+    boolean tryMarkEvicted() {
+        if (this.evicted || this.unflushed || isPinned() || this.page == null
+                || this.page.isDirty() != null) {
+            return false;
+        }
+        this.evicted = true;
+        return true;
+    }
+
+    void markEvicted() {
+        this.evicted = true;
+    }
+
+    @Override
+    public String toString() {
+        return "BufferFrame{" + pid + ", pins=" + pinCount.get() + ", evicted=" + evicted + ", unflushed=" + unflushed + ", recLsn=" + recLsn + "}";
+    }
+}
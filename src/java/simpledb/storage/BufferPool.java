@@ -3,13 +3,24 @@ package simpledb.storage;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.LockManager;
+import simpledb.common.LockMode;
 import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -19,8 +30,42 @@ import java.util.List;
  * The BufferPool is also responsible for locking;  when a transaction fetches
  * a page, BufferPool checks that the transaction has the appropriate
  * locks to read/write the page.
+ * <p>
+ * Cached pages live in a concurrent page table of {@link BufferFrame}s. Hits
+ * do not take any BufferPool-wide monitor; misses publish an empty frame and
+ * read the page outside of any lock, and eviction only locks the frames it
+ * inspects. Which page is evicted is up to a pluggable
+ * {@link ReplacementPolicy}; the default is {@link TwoQueuePolicy}, which
+ * keeps sequential scans from flushing out frequently used pages.
+ * <p>
+ * Operators that keep reading a page after getPage returns, such as file
+ * iterators, pin it with {@link #pinPage} and release it with
+ * {@link #unpinPage}. Pinned pages are never evicted; pins that are still
+ * held when a transaction completes are released then.
+ * <p>
+ * Besides transactional locks, every frame has a short-duration latch (see
+ * {@link BufferFrame}). Index structures read their inner pages with
+ * {@link #readOptimistic} instead of locking them, and writers hold the
+ * latch of every inner page they change, from {@link #latchPage} to
+ * {@link #unlatchPages}, for the length of one operation.
+ * <p>
+ * Once its {@link VersionStore} is enabled, the BufferPool keeps committed
+ * versions of the pages that transactions write. Snapshot transactions (see
+ * {@link simpledb.transaction.Transaction#startSnapshot}) read those
+ * versions instead of locking pages, and never wait for writers. Optimistic
+ * transactions read the same way, write private copies, and lock the pages
+ * they wrote only to {@link #validate} and commit them.
+ * <p>
+ * By default the BufferPool runs FORCE / NO STEAL: a commit logs and writes
+ * every page the transaction dirtied, forcing the log once for all of them,
+ * and dirty pages are never evicted. {@link #startBackgroundWriter} switches
+ * to NO-FORCE / STEAL: a commit only logs its pages, which become durable
+ * with the commit record, and a {@link BackgroundWriter} writes them later.
+ * When no clean page can be evicted, a page of a logged, running transaction
+ * may be written out; aborting such a transaction relies on
+ * {@link LogFile#logAbort} to undo it on disk.
  *
- * @Threadsafe, all fields are final
+ * @Threadsafe
  */
 public class BufferPool {
     /**
@@ -29,10 +74,15 @@ public class BufferPool {
     private static final int DEFAULT_PAGE_SIZE = 4096;
     private static int pageSize = DEFAULT_PAGE_SIZE;
 
-    private static final long WAIT_TIME = 2000;
     private final int numPages;
-    private final LinkedHashMap<PageId, Page> cache;
+    private final ConcurrentHashMap<PageId, BufferFrame> frames;
+    private final Semaphore freeFrames;
+    private final ReplacementPolicy policy;
+    private final ConcurrentHashMap<TransactionId, Deque<BufferFrame>> pins;
+    private final ConcurrentHashMap<TransactionId, Map<BufferFrame, Long>> latches;
     private final LockManager lockManager;
+    private final VersionStore versionStore;
+    private volatile BackgroundWriter writer; // null in FORCE mode
 
     /**
      * Default number of pages passed to the constructor. This is used by
@@ -49,9 +99,25 @@ public class BufferPool {
     public BufferPool(int numPages) {
         // TODO: some code goes here
 //        lockManager.resetLockManager();
+        this(numPages, new TwoQueuePolicy(numPages));
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts them
+     * in the order chosen by the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy   the page replacement policy to use
+     */
+    public BufferPool(int numPages, ReplacementPolicy policy) {
         this.numPages = numPages;
-        this.cache = new LinkedHashMap<>();
+        this.frames = new ConcurrentHashMap<>();
+        this.freeFrames = new Semaphore(numPages);
+        this.policy = policy;
+        this.pins = new ConcurrentHashMap<>();
+        this.latches = new ConcurrentHashMap<>();
         this.lockManager = new LockManager();
+        this.versionStore = new VersionStore();
     }
 
     public static int getPageSize() {
@@ -62,6 +128,37 @@ public class BufferPool {
         return this.lockManager;
     }
 
+    public VersionStore getVersionStore() {
+        return this.versionStore;
+    }
+
+    /**
+     * Switch to NO-FORCE / STEAL and start a thread that writes committed
+     * pages to disk in the background.
+     *
+     * @param intervalMillis how long the writer sleeps once it caught up
+     */
+    public synchronized void startBackgroundWriter(long intervalMillis) {
+        if (this.writer != null) {
+            throw new IllegalStateException("background writer already running");
+        }
+        this.writer = new BackgroundWriter(this, intervalMillis);
+        this.writer.start();
+    }
+
+    /**
+     * Stop the background writer and switch back to FORCE / NO STEAL.
+     * Committed pages that were not written yet stay cached; they are written
+     * by {@link #flushAllPages} or before they are evicted.
+     */
+    public synchronized void stopBackgroundWriter() {
+        BackgroundWriter running = this.writer;
+        if (running != null) {
+            this.writer = null;
+            running.shutdown();
+        }
+    }
+
     // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
     public static void setPageSize(int pageSize) {
         BufferPool.pageSize = pageSize;
@@ -90,15 +187,290 @@ public class BufferPool {
     public Page getPage(TransactionId tid, PageId pid, Permissions perm)
             throws TransactionAbortedException, DbException {
         // TODO: some code goes here
+        if (versionStore.isSnapshot(tid)) {
+            return readSnapshot(tid, pid, perm);
+        }
         lockManager.lock(tid, pid, perm);
-        if (cache.containsKey(pid))
-            return cache.get(pid);
-        Page page = Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid);
-        if (cache.size() == numPages) {
+        if (perm == Permissions.READ_WRITE && versionStore.isEnabled()) {
+            while (true) {
+                BufferFrame frame = lookupFrame(pid);
+                frame.awaitPage();
+                Page page = versionStore.capture(tid, frame, null);
+                if (page != null) {
+                    return page;
+                }
+            }
+        }
+        return lookupFrame(pid).awaitPage();
+    }
+
+    /**
+     * Read the version of a page that a snapshot or optimistic transaction
+     * sees, without locking or pinning it.
+     */
+    private Page readSnapshot(TransactionId tid, PageId pid, Permissions perm) throws DbException {
+        if (versionStore.isOptimistic(tid)) {
+            return versionStore.readOptimistic(tid, pid, perm, p -> lookupFrame(p).awaitPage());
+        }
+        if (perm != Permissions.READ_ONLY) {
+            throw new DbException("snapshot transaction " + tid + " cannot write " + pid);
+        }
+        return versionStore.read(tid, pid, p -> lookupFrame(p).awaitPage());
+    }
+
+    /**
+     * Retrieve the specified page like {@link #getPage} and pin it, so that
+     * it stays in the buffer pool until the transaction calls
+     * {@link #unpinPage} or completes. A page may be pinned more than once;
+     * every pin needs its own unpin.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, Permissions perm)
+            throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, LockMode.of(perm));
+    }
+
+    /**
+     * Retrieve and pin the specified page like
+     * {@link #pinPage(TransactionId, PageId, Permissions)}, locking it in the
+     * given mode. Heap files with record locking take an intention lock on
+     * the page, and keep it pinned while they change its records so that it
+     * cannot be evicted under them.
+     *
+     * @param tid  the ID of the transaction requesting the page
+     * @param pid  the ID of the requested page
+     * @param mode the lock mode to request on the page
+     */
+    public Page pinPage(TransactionId tid, PageId pid, LockMode mode)
+            throws TransactionAbortedException, DbException {
+        boolean writes = mode != LockMode.S && mode != LockMode.IS;
+        if (versionStore.isSnapshot(tid)) {
+            return readSnapshot(tid, pid, writes ? Permissions.READ_WRITE : Permissions.READ_ONLY);
+        }
+        lockManager.lock(tid, pid, mode);
+        while (true) {
+            BufferFrame frame = lookupFrame(pid);
+            synchronized (frame) {
+                if (frame.isEvicted()) {
+                    // lost a race with eviction, look the page up again
+                    continue;
+                }
+                frame.pin();
+            }
+            Page page;
+            try {
+                page = frame.awaitPage();
+                if (writes && versionStore.isEnabled()) {
+                    page = versionStore.capture(tid, frame, null);
+                }
+            } catch (RuntimeException | DbException e) {
+                frame.unpin();
+                throw e;
+            }
+            if (page == null) {
+                // a pinned frame is only evicted by removePage
+                frame.unpin();
+                continue;
+            }
+            pins.computeIfAbsent(tid, k -> new ConcurrentLinkedDeque<>()).push(frame);
+            return page;
+        }
+    }
+
+    /**
+     * Release one pin the transaction holds on the specified page. The page
+     * stays locked; it merely becomes a candidate for eviction again once no
+     * other pins are left. Unpinning a page that is not pinned does nothing.
+     *
+     * @param tid the ID of the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Deque<BufferFrame> pinned = pins.get(tid);
+        if (pinned == null) {
+            return;
+        }
+        for (BufferFrame frame : pinned) {
+            if (frame.getId().equals(pid) && pinned.removeFirstOccurrence(frame)) {
+                frame.unpin();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Release every pin still held by a transaction.
+     */
+    private void unpinAll(TransactionId tid) {
+        Deque<BufferFrame> pinned = pins.remove(tid);
+        if (pinned != null) {
+            for (BufferFrame frame : pinned) {
+                frame.unpin();
+            }
+        }
+    }
+
+    /**
+     * Read the specified page without locking it, under an optimistic latch.
+     * Nothing read from the page may be trusted before
+     * {@link PageLatch#validate} succeeds.
+     *
+     * @param pid the ID of the requested page
+     * @return the latch, whose page is the cached version of the page
+     */
+    public PageLatch readOptimistic(PageId pid) throws DbException {
+        BufferFrame frame = lookupFrame(pid);
+        frame.awaitPage();
+        return new PageLatch(frame);
+    }
+
+    /**
+     * Latch the specified page exclusively on behalf of a transaction, which
+     * must hold a write lock on it already, and pin it until
+     * {@link #unlatchPages} is called. Optimistic reads of the page fail to
+     * validate from now on. Latching a page twice does nothing.
+     *
+     * @param tid the ID of the transaction that is about to change the page
+     * @param pid the ID of the page to latch
+     * @return the page held by the latched frame
+     */
+    public Page latchPage(TransactionId tid, PageId pid) throws DbException {
+        Map<BufferFrame, Long> latched = latches.computeIfAbsent(tid, k -> new IdentityHashMap<>());
+        while (true) {
+            BufferFrame frame = lookupFrame(pid);
+            synchronized (frame) {
+                if (frame.isEvicted()) {
+                    continue;
+                }
+                frame.pin();
+            }
+            Page page;
+            try {
+                page = frame.awaitPage();
+            } catch (RuntimeException e) {
+                frame.unpin();
+                throw e;
+            }
+            if (latched.containsKey(frame)) {
+                frame.unpin();
+            } else {
+                latched.put(frame, frame.latchExclusive());
+            }
+            return page;
+        }
+    }
+
+    /**
+     * Release every latch a transaction holds, together with the pins that
+     * came with them.
+     *
+     * @param tid the ID of the transaction that latched the pages
+     */
+    public void unlatchPages(TransactionId tid) {
+        Map<BufferFrame, Long> latched = latches.remove(tid);
+        if (latched != null) {
+            for (Map.Entry<BufferFrame, Long> e : latched.entrySet()) {
+                e.getKey().unlatchExclusive(e.getValue());
+                e.getKey().unpin();
+            }
+        }
+    }
+
+    /**
+     * Return the frame that holds the specified page, reading the page in if
+     * it is not cached.
+     */
+    private BufferFrame lookupFrame(PageId pid) throws DbException {
+        BufferFrame frame = frames.get(pid);
+        if (frame == null) {
+            return loadFrame(pid);
+        }
+        policy.pageAccessed(pid);
+        return frame;
+    }
+
+    /**
+     * Publish a new frame for the specified page and read the page into it.
+     * If another thread published a frame for the same page first, that frame
+     * is returned instead and no read happens here.
+     */
+    private BufferFrame loadFrame(PageId pid) throws DbException {
+        reserveFrame();
+        BufferFrame fresh = new BufferFrame(pid);
+        BufferFrame existing = frames.putIfAbsent(pid, fresh);
+        if (existing != null) {
+            freeFrames.release();
+            policy.pageAccessed(pid);
+            return existing;
+        }
+        // the frame stays pinned until the read is done, so the policy may
+        // already offer it as a candidate
+        policy.pageLoaded(pid);
+        try {
+            fresh.load(Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid));
+        } catch (RuntimeException e) {
+            policy.pageRemoved(pid);
+            if (frames.remove(pid, fresh)) {
+                freeFrames.release();
+            }
+            fresh.fail(e);
+            throw e;
+        }
+        return fresh;
+    }
+
+    /**
+     * Take one free slot of the page table, evicting a page if the pool is full.
+     */
+    private void reserveFrame() throws DbException {
+        while (!freeFrames.tryAcquire()) {
             evictPage();
         }
-        cache.put(pid, page);
-        return page;
+    }
+
+    /**
+     * Install the given version of a page in the page table, replacing any
+     * version that is already cached.
+     */
+    private void installPage(Page page) throws DbException {
+        PageId pid = page.getId();
+        while (true) {
+            BufferFrame frame = frames.get(pid);
+            if (frame != null) {
+                frame.awaitPage();
+                synchronized (frame) {
+                    if (!frame.isEvicted()) {
+                        frame.setPage(page);
+                        return;
+                    }
+                }
+                continue;
+            }
+            reserveFrame();
+            if (frames.putIfAbsent(pid, new BufferFrame(page)) == null) {
+                policy.pageLoaded(pid);
+                return;
+            }
+            freeFrames.release();
+        }
+    }
+
+    /**
+     * Drop a frame from the page table and give its slot back.
+     */
+    private void discardFrame(BufferFrame frame) {
+        synchronized (frame) {
+            frame.markEvicted();
+        }
+        // forget the page before the frame leaves the table, so that this
+        // cannot undo the pageLoaded of a frame that replaces it
+        policy.pageRemoved(frame.getId());
+        if (frames.remove(frame.getId(), frame)) {
+            freeFrames.release();
+        }
     }
 
     /**
@@ -146,6 +518,29 @@ public class BufferPool {
     public void transactionComplete(TransactionId tid, boolean commit) {
         // TODO: some code goes here
         // not necessary for lab1|lab2
+        try {
+            transactionComplete(tid, commit, false);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Commit a transaction that logged its BEGIN record, like
+     * {@link #transactionComplete(TransactionId, boolean)}, and log its
+     * COMMIT record. The record is durable before the locks of the
+     * transaction are released: until then no other transaction can read or
+     * overwrite its changes, which a crash would undo on top of theirs.
+     *
+     * @param tid the ID of the committing transaction
+     * @see LogFile#logCommit
+     */
+    public void commitTransaction(TransactionId tid) throws IOException {
+        transactionComplete(tid, true, true);
+    }
+
+    private void transactionComplete(TransactionId tid, boolean commit, boolean logCommit)
+            throws IOException {
 //        if (commit) {
 //            flushPages(tid);
 //            for (PageId pid : lockManager.getDirtyPages(tid)) {
@@ -160,21 +555,99 @@ public class BufferPool {
 //                cache.remove(pid);
 //            }
 //        }
+        unlatchPages(tid);
+        unpinAll(tid);
+        if (!versionStore.isOptimistic(tid) && versionStore.endSnapshot(tid)) {
+            // a snapshot neither locks nor writes
+            return;
+        }
+        List<BufferFrame> logged = new ArrayList<>();
         for (PageId pid : lockManager.getDirtyPages(tid)) {
-            if(commit) {
+            BufferFrame frame = frames.get(pid);
+            if (frame == null) {
+                // already evicted or removed (e.g. a freed B+ tree page)
+                continue;
+            }
+            if (commit) {
                 try {
-                    flushPage(pid);
+                    if (logFrame(frame, tid)) {
+                        logged.add(frame);
+                    }
                 } catch (IOException e) {
                     e.printStackTrace();
                 }
-                cache.get(pid).setBeforeImage();
             } else {
-                cache.remove(pid);
+                abortFrame(frame, tid);
+            }
+        }
+        if (!logged.isEmpty() && this.writer == null) {
+            // FORCE: the first page forces the log for all the others
+            try {
+                writeFrames(logged, false);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        try {
+            if (logCommit) {
+                Database.getLogFile().logCommit(tid);
+            }
+        } finally {
+            if (commit) {
+                versionStore.commit(tid, pid -> {
+                    BufferFrame frame = frames.get(pid);
+                    return frame == null ? null : frame.getPage();
+                });
+            } else {
+                versionStore.abort(tid);
             }
+
+            lockManager.releaseAllLocks(tid);
+            lockManager.resetDirtyPages(tid);
+            versionStore.endSnapshot(tid);
         }
+    }
 
-        lockManager.releaseAllLocks(tid);
-        lockManager.resetDirtyPages(tid);
+    /**
+     * Validate an optimistic transaction before it commits, and make the
+     * private pages it wrote the cached versions of those pages. Only these
+     * pages are locked, exclusively and in a fixed order; then the
+     * transaction is checked against the commits made since it started, see
+     * {@link VersionStore#validate}. A read-only transaction read a committed
+     * state and needs no validation.
+     *
+     * @param tid the ID of the optimistic transaction
+     * @throws TransactionAbortedException if a page it read changed since it
+     *                                     started; nothing was written, and
+     *                                     the transaction must abort
+     */
+    public void validate(TransactionId tid) throws TransactionAbortedException, DbException {
+        Map<PageId, Page> writes = versionStore.getWrites(tid);
+        if (writes == null || writes.isEmpty()) {
+            return;
+        }
+        List<PageId> pids = new ArrayList<>(writes.keySet());
+        pids.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber));
+        try {
+            for (PageId pid : pids) {
+                lockManager.lock(tid, pid, Permissions.READ_WRITE);
+            }
+            versionStore.validate(tid);
+        } catch (TransactionAbortedException e) {
+            // nothing was written, so the locks may go right away
+            lockManager.releaseAllLocks(tid);
+            lockManager.resetDirtyPages(tid);
+            throw e;
+        }
+        for (PageId pid : pids) {
+            while (true) {
+                BufferFrame frame = lookupFrame(pid);
+                frame.awaitPage();
+                if (versionStore.capture(tid, frame, writes.get(pid)) != null) {
+                    break;
+                }
+            }
+        }
     }
 
     /**
@@ -197,10 +670,12 @@ public class BufferPool {
         // TODO: some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         List<Page> pages = dbFile.insertTuple(tid, t);
-        pages.forEach(p -> {
-            cache.put(p.getId(), p);
+        for (Page p : pages) {
             p.markDirty(true, tid);
-        });
+            if (!versionStore.isOptimistic(tid)) {
+                installPage(p);
+            }
+        }
     }
 
     /**
@@ -221,14 +696,12 @@ public class BufferPool {
         // TODO: some code goes here
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         List<Page> pages = dbFile.deleteTuple(tid, t);
-        pages.forEach(p -> {
-            try {
-                dbFile.writePage(p);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+        for (Page p : pages) {
             p.markDirty(true, tid);
-        });
+            if (!versionStore.isOptimistic(tid)) {
+                installPage(p);
+            }
+        }
     }
 
     /**
@@ -236,16 +709,12 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      * break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-        cache.forEach((k,v) -> {
-            try {
-                flushPage(k);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
+        for (BufferFrame frame : frames.values()) {
+            flushFrame(frame);
+        }
     }
 
     /**
@@ -257,10 +726,37 @@ public class BufferPool {
      * Also used by B+ tree files to ensure that deleted pages
      * are removed from the cache so they can be reused safely
      */
-    public synchronized void removePage(PageId pid) {
+    public void removePage(PageId pid) {
         // TODO: some code goes here
         // not necessary for lab1
-        cache.remove(pid);
+        BufferFrame frame = frames.get(pid);
+        if (frame != null) {
+            discardFrame(frame);
+        }
+    }
+
+    /**
+     * Remove the specific page id from the buffer pool, like removePage, and
+     * return the version of the page that was last logged or read from disk,
+     * i.e. its before image. Changes made since then were never logged, so
+     * the recovery manager undoes logged updates starting from this version.
+     *
+     * @return the last logged version of the page, or null if it is not cached
+     */
+    Page removeLoggedPage(PageId pid) {
+        BufferFrame frame = frames.get(pid);
+        if (frame == null) {
+            return null;
+        }
+        Page logged = null;
+        synchronized (frame) {
+            Page page = frame.getPage();
+            if (page != null && !frame.isEvicted()) {
+                logged = page.getBeforeImage();
+            }
+        }
+        discardFrame(frame);
+        return logged;
     }
 
     /**
@@ -268,28 +764,276 @@ public class BufferPool {
      *
      * @param pid an ID indicating the page to flush
      */
-    private synchronized void flushPage(PageId pid) throws IOException {
+    private void flushPage(PageId pid) throws IOException {
         // TODO: some code goes here
         // not necessary for lab1
-        if (!cache.containsKey(pid)) {
-            return;
+        BufferFrame frame = frames.get(pid);
+        if (frame != null) {
+            flushFrame(frame);
         }
-        Page page = cache.get(pid);
-        TransactionId dirtier = page.isDirty();
-        if (dirtier != null){
+    }
+
+    /**
+     * Write the page held by a frame to disk, logging it first if it is
+     * dirty. Only the monitor of this frame is held while the log record and
+     * the page are written.
+     */
+    private void flushFrame(BufferFrame frame) throws IOException {
+        synchronized (frame) {
+            Page page = frame.getPage();
+            if (page == null || frame.isEvicted()) {
+                return;
+            }
+            if (hasRecordWriters(page)) {
+                // uncommitted records are logged at commit only, so only the
+                // committed version of the page may be written
+                if (frame.isUnflushed()) {
+                    writePage(page);
+                    frame.markFlushed();
+                }
+                return;
+            }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier != null) {
+                frame.markLogging(Database.getLogFile().currentLsn());
+                Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
+            }
+            writePage(page);
+            page.markDirty(false, null);
+            page.setBeforeImage();
+            frame.markFlushed();
+        }
+    }
+
+    /**
+     * Write an UPDATE record for the committed changes on a frame's page and
+     * make those changes the new before image. The page itself is not written;
+     * the frame stays unflushed, and so cannot be evicted, until it is. On a
+     * page changed under record locks, only the records of the committing
+     * transaction are logged.
+     *
+     * @return true if the page was dirty and has been logged
+     */
+    private boolean logFrame(BufferFrame frame, TransactionId tid) throws IOException {
+        synchronized (frame) {
+            Page page = frame.getPage();
+            if (page == null || frame.isEvicted()) {
+                return false;
+            }
+            if (hasRecordWriters(page)) {
+                HeapPage heapPage = (HeapPage) page;
+                HeapPage before = heapPage.getBeforeImage();
+                HeapPage after = heapPage.commitRecords(tid);
+                if (after == null) {
+                    return false;
+                }
+                frame.markLogging(Database.getLogFile().currentLsn());
+                Database.getLogFile().logWrite(tid, before, after);
+                heapPage.setLsn(after.getLsn());
+                frame.markUnflushed();
+                return true;
+            }
+            TransactionId dirtier = page.isDirty();
+            if (dirtier == null) {
+                return false;
+            }
+            frame.markLogging(Database.getLogFile().currentLsn());
             Database.getLogFile().logWrite(dirtier, page.getBeforeImage(), page);
-            Database.getLogFile().force();
+            page.markDirty(false, null);
+            page.setBeforeImage();
+            frame.markUnflushed();
+            return true;
         }
-        DbFile dbFile = Database.getCatalog().getDatabaseFile(pid.getTableId());
-        dbFile.writePage(page);
-        page.markDirty(false, null);
-        page.setBeforeImage();
+    }
+
+    /**
+     * Write the pages of unflushed frames to disk. Each file is forced once
+     * for all of its pages, without holding any frame monitor; only then are
+     * the pages logged as written and their frames marked flushed, unless
+     * they were logged again in the meantime.
+     *
+     * @param cleanOnly skip the pages that a running transaction has dirtied
+     */
+    private void writeFrames(List<BufferFrame> batch, boolean cleanOnly) throws IOException {
+        Map<BufferFrame, Long> written = new LinkedHashMap<>();
+        Set<DbFile> files = new HashSet<>();
+        for (BufferFrame frame : batch) {
+            synchronized (frame) {
+                Page page = frame.getPage();
+                if (page == null || frame.isEvicted() || !frame.isUnflushed()
+                        || (cleanOnly && page.isDirty() != null)) {
+                    continue;
+                }
+                files.add(writePageData(page));
+                written.put(frame, page.getLsn());
+            }
+        }
+        for (DbFile file : files) {
+            file.force();
+        }
+        for (Map.Entry<BufferFrame, Long> entry : written.entrySet()) {
+            BufferFrame frame = entry.getKey();
+            synchronized (frame) {
+                Page page = frame.getPage();
+                if (page == null || frame.isEvicted() || !frame.isUnflushed()
+                        || page.getLsn() != entry.getValue()) {
+                    continue;
+                }
+                if (page.getLsn() != LogFile.NO_LSN) {
+                    Database.getLogFile().logPageWrite(page);
+                }
+                frame.markFlushed();
+            }
+        }
+    }
+
+    /**
+     * Write a page to disk, following the write-ahead rule, and force its
+     * file before a PAGE_WRITE record tells recovery that the changes up to
+     * the pageLSN need no redo. The caller holds the monitor of the page's
+     * frame.
+     */
+    private void writePage(Page page) throws IOException {
+        writePageData(page).force();
+        if (page.getLsn() != LogFile.NO_LSN) {
+            Database.getLogFile().logPageWrite(page);
+        }
+    }
+
+    /**
+     * Write a page to its file, forcing the log first only if the record of
+     * the page's pageLSN is not on disk yet. The page may still be in the
+     * operating system's cache afterwards. The caller holds the monitor of
+     * the page's frame.
+     *
+     * @return the file the page was written to
+     */
+    private DbFile writePageData(Page page) throws IOException {
+        long lsn = page.getLsn();
+        if (lsn != LogFile.NO_LSN) {
+            Database.getLogFile().forceTo(lsn);
+        }
+        Page image = page;
+        if (hasRecordWriters(page)) {
+            // the before image is the committed version, logged last
+            image = page.getBeforeImage();
+            image.setLsn(lsn);
+        }
+        DbFile file = Database.getCatalog().getDatabaseFile(page.getId().getTableId());
+        file.writePage(image);
+        return file;
+    }
+
+    /**
+     * Undo the changes of an aborting transaction on a cached page. If the
+     * page on disk is older than the last committed version, the cached page
+     * goes back to its before image; otherwise it is simply dropped and read
+     * again from disk.
+     */
+    private void abortFrame(BufferFrame frame, TransactionId tid) {
+        synchronized (frame) {
+            Page page = frame.getPage();
+            if (hasRecordWriters(page)) {
+                // only the records of tid go back; the others' stay
+                ((HeapPage) page).abortRecords(tid);
+                return;
+            }
+            if (frame.isUnflushed() && page != null && tid.equals(page.isDirty())) {
+                // the before image is the version logged last
+                Page before = page.getBeforeImage();
+                before.setLsn(page.getLsn());
+                frame.setPage(before);
+                return;
+            }
+        }
+        discardFrame(frame);
+    }
+
+    /**
+     * @return true if the page is a heap page with running transactions that
+     * changed its records under record locks; its uncommitted changes are
+     * never logged nor written before they commit
+     */
+    private static boolean hasRecordWriters(Page page) {
+        return page instanceof HeapPage && ((HeapPage) page).hasRecordWriters();
+    }
+
+    /**
+     * Write up to maxPages committed pages that are not on disk yet; the log
+     * is forced at most once, for the first page whose records are not on
+     * disk, and each file once after its pages. Pages that a running
+     * transaction has dirtied again are left alone.
+     *
+     * @return the number of pages written
+     */
+    int writeUnflushedPages(int maxPages) throws IOException {
+        List<BufferFrame> batch = new ArrayList<>();
+        for (BufferFrame frame : frames.values()) {
+            if (batch.size() == maxPages) {
+                break;
+            }
+            Page page = frame.getPage();
+            if (frame.isUnflushed() && !frame.isEvicted() && page != null && page.isDirty() == null) {
+                batch.add(frame);
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        writeFrames(batch, true);
+        return batch.size();
+    }
+
+    /**
+     * Collect the dirty page table for a checkpoint: every cached page whose
+     * logged changes may not all be on disk, with its recLSN. A page only
+     * leaves the table once its file has been forced after the write.
+     */
+    List<LogFile.PageLsn> dirtyPageTable() {
+        List<LogFile.PageLsn> dirtyPages = new ArrayList<>();
+        for (BufferFrame frame : frames.values()) {
+            long recLsn = frame.getRecLsn();
+            Page page = frame.getPage();
+            if (recLsn != LogFile.NO_LSN && page != null) {
+                dirtyPages.add(new LogFile.PageLsn(PageTypeRegistry.tagOf(page), frame.getId(), recLsn));
+            }
+        }
+        return dirtyPages;
+    }
+
+    /**
+     * Write out one unpinned page that keeps eviction from making progress:
+     * a committed page that is not on disk yet or, in NO-FORCE / STEAL mode,
+     * a page dirtied by a transaction the log can roll back.
+     *
+     * @return false if there is no such page
+     */
+    private boolean cleanFrame() throws DbException {
+        boolean steal = this.writer != null;
+        for (BufferFrame frame : frames.values()) {
+            Page page = frame.getPage();
+            if (page == null || frame.isPinned() || frame.isEvicted()) {
+                continue;
+            }
+            TransactionId dirtier = page.isDirty();
+            if ((dirtier == null && frame.isUnflushed())
+                    || (steal && dirtier != null && Database.getLogFile().isActive(dirtier)
+                    && !hasRecordWriters(page))) {
+                try {
+                    flushFrame(frame);
+                } catch (IOException e) {
+                    throw new DbException("could not write page " + frame.getId() + ": " + e.getMessage());
+                }
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
      * Write all pages of the specified transaction to disk.
      */
-    public synchronized void flushPages(TransactionId tid) {
+    public void flushPages(TransactionId tid) {
         // TODO: some code goes here
         // not necessary for lab1|lab2
         for (PageId pid : lockManager.getDirtyPages(tid)) {
@@ -305,26 +1049,39 @@ public class BufferPool {
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
+     * <p>
+     * Dirty pages are never evicted, nor are frames that are pinned or still
+     * being read from disk. The replacement policy offers candidates in its
+     * own order; only the monitor of the frame being inspected is held at any
+     * time. If every candidate is dirty, one page is written out first, see
+     * {@link #cleanFrame}.
      */
-    private synchronized void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // TODO: some code goes here
-        PageId[] pids = cache.keySet().toArray(new PageId[cache.size()]);
-        for (int i = cache.size()-1; i >= 0; i--) {
-            // skip the page which is either dirty or with active write lock
-            if (cache.get(pids[i]).isDirty() != null) {
+        while (true) {
+            BufferFrame[] claimed = new BufferFrame[1];
+            PageId victim = policy.chooseVictim(pid -> {
+                BufferFrame frame = frames.get(pid);
+                if (frame == null || frame.isEvicted()) {
+                    // the page already left the table, just drop the entry
+                    claimed[0] = null;
+                    return true;
+                }
+                synchronized (frame) {
+                    claimed[0] = frame.tryMarkEvicted() ? frame : null;
+                }
+                return claimed[0] != null;
+            });
+            if (victim == null) {
+                if (!cleanFrame()) {
+                    throw new DbException("All pages are pinned or dirty");
+                }
                 continue;
             }
-            if (lockManager.hasWriteLock(pids[i])) {
-                try {
-                    flushPage(pids[i]);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    continue;
-                }
+            if (claimed[0] != null && frames.remove(victim, claimed[0])) {
+                freeFrames.release();
+                return;
             }
-            cache.remove(pids[i]);
-            return;
         }
-        throw new DbException("All pages are dirty");
     }
 }
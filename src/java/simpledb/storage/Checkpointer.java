@@ -0,0 +1,86 @@
+package simpledb.storage;
+
+import java.io.IOException;
+
+/**
+ * Checkpointer takes a checkpoint of a LogFile whenever the log has grown by
+ * a given number of bytes since the last one, so that the part of the log
+ * that recovery has to read stays bounded, and truncates the log once enough
+ * of it is no longer needed. The log wakes it up; committing transactions
+ * never wait for a checkpoint.
+ *
+ * @see LogFile#setCheckpointInterval
+ */
+class Checkpointer extends Thread {
+
+    private final LogFile log;
+    private final Object lock;
+    private boolean running; // protected by lock
+    private boolean requested; // protected by lock
+
+    Checkpointer(LogFile log) {
+        super("LogFile checkpointer");
+        this.log = log;
+        this.lock = new Object();
+        this.running = true;
+        setDaemon(true);
+    }
+
+    /**
+     * Ask for a checkpoint; returns immediately.
+     */
+    void request() {
+        synchronized (this.lock) {
+            this.requested = true;
+            this.lock.notifyAll();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            synchronized (this.lock) {
+                while (this.running && !this.requested) {
+                    try {
+                        this.lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (!this.running) {
+                    return;
+                }
+                this.requested = false;
+            }
+            try {
+                this.log.logCheckpoint();
+                this.log.maybeTruncate();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Stop the checkpointer and wait for a checkpoint in progress to finish.
+     * Like the background writer, this thread is never interrupted, since an
+     * interrupt during a log force would close the log.
+     */
+    void shutdown() {
+        synchronized (this.lock) {
+            this.running = false;
+            this.lock.notifyAll();
+        }
+        boolean interrupted = false;
+        while (isAlive() && Thread.currentThread() != this) {
+            try {
+                join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
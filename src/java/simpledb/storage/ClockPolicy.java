@@ -0,0 +1,102 @@
+package simpledb.storage;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * CLOCK (second chance) replacement. Resident pages sit on a circular array
+ * with a reference bit each; a hit only sets the bit, and the clock hand
+ * clears bits until it finds an unreferenced page that can be evicted.
+ * <p>
+ * Every step of the hand either clears a bit or inspects a candidate, so
+ * eviction is O(1) amortized. CLOCK approximates LRU and is not resistant to
+ * sequential scans; see {@link TwoQueuePolicy} and {@link LruKPolicy} for that.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private static class Slot {
+        final PageId pid;
+        final int index;
+        volatile boolean referenced;
+
+        Slot(PageId pid, int index) {
+            this.pid = pid;
+            this.index = index;
+        }
+    }
+
+    private final Map<PageId, Slot> slots;
+    private final Deque<Integer> freeIndexes; // protected by this
+    private Slot[] ring; // protected by this
+    private int hand; // protected by this
+
+    /**
+     * @param capacity the expected number of resident pages
+     */
+    public ClockPolicy(int capacity) {
+        this.slots = new ConcurrentHashMap<>();
+        this.freeIndexes = new ArrayDeque<>();
+        this.ring = new Slot[Math.max(1, capacity)];
+        for (int i = 0; i < ring.length; i++) {
+            freeIndexes.addLast(i);
+        }
+        this.hand = 0;
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (slots.containsKey(pid)) {
+            return;
+        }
+        if (freeIndexes.isEmpty()) {
+            int oldLength = ring.length;
+            ring = Arrays.copyOf(ring, oldLength * 2);
+            for (int i = oldLength; i < ring.length; i++) {
+                freeIndexes.addLast(i);
+            }
+        }
+        Slot slot = new Slot(pid, freeIndexes.pollFirst());
+        ring[slot.index] = slot;
+        slots.put(pid, slot);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Slot slot = slots.get(pid);
+        if (slot != null) {
+            slot.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Slot slot = slots.remove(pid);
+        if (slot != null) {
+            ring[slot.index] = null;
+            freeIndexes.addLast(slot.index);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        // two sweeps are enough to clear every reference bit and then look at
+        // every slot once more
+        int steps = 2 * ring.length;
+        while (steps-- > 0) {
+            Slot slot = ring[hand];
+            hand = (hand + 1) % ring.length;
+            if (slot == null) {
+                continue;
+            }
+            if (slot.referenced) {
+                slot.referenced = false;
+                continue;
+            }
+            if (evictable.test(slot.pid)) {
+                pageRemoved(slot.pid);
+                return slot.pid;
+            }
+        }
+        return null;
+    }
+}
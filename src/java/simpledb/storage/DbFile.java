@@ -31,6 +31,15 @@ public interface DbFile {
      */
     void writePage(Page p) throws IOException;
 
+    /**
+     * Force the pages written so far to disk. A written page may sit in the
+     * operating system's cache until then, so the log must not claim that a
+     * page is on disk before its file has been forced.
+     *
+     * @throws IOException if the file cannot be forced
+     */
+    void force() throws IOException;
+
     /**
      * Inserts the specified tuple to the file on behalf of transaction.
      * This method will acquire a lock on the affected pages of the file, and
@@ -0,0 +1,91 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * FreeSpaceMap records which pages of a heap file are full, so that an
+ * insert goes straight to a page with a free slot instead of reading the
+ * file from its first page on.
+ * <p>
+ * There is one bit per heap page, set while the page is known to be full.
+ * The bits are kept in FSM pages of the page size in a file next to the heap
+ * file, named after it with ".fsm" appended, and an FSM page is written
+ * whenever one of its bits changes. Since a heap page only fills up or gets
+ * a free slot again every few hundred inserts or deletes, that costs little
+ * next to the heap pages themselves.
+ * <p>
+ * The map is a hint, and neither logged nor recovered: a page whose bit is
+ * clear may well be full, and the inserting transaction sets the bit when it
+ * finds out. A page is marked as having space again when a tuple is deleted
+ * from it, and whenever it is read from or written to disk with a free slot,
+ * which undoes the bits of aborted inserts. Pages beyond the end of the map,
+ * such as those of a file written without one, count as having space until
+ * an insert looks at them.
+ *
+ * @Threadsafe
+ */
+public class FreeSpaceMap {
+    private final File file;
+    private final int pageBits;
+    private final BitSet full; // protected by this
+    private PageFile pages; // protected by this, opened by the first write
+
+    /**
+     * Open the free-space map of a heap file, or start an empty one if there
+     * is none yet.
+     *
+     * @param heapFile the file of the heap file
+     */
+    public FreeSpaceMap(File heapFile) throws IOException {
+        this.file = new File(heapFile.getPath() + ".fsm");
+        this.pageBits = BufferPool.getPageSize() * 8;
+        this.full = this.file.exists() ? BitSet.valueOf(Files.readAllBytes(this.file.toPath())) : new BitSet();
+    }
+
+    /**
+     * @return the file that stores the map
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * @return the first page from pgNo on that is not known to be full,
+     * which may be a page past the end of the heap file
+     */
+    public synchronized int nextFree(int pgNo) {
+        return this.full.nextClearBit(pgNo);
+    }
+
+    public synchronized boolean isFull(int pgNo) {
+        return this.full.get(pgNo);
+    }
+
+    /**
+     * Record whether a page is full, writing the FSM page of its bit if
+     * that changes.
+     */
+    public synchronized void setFull(int pgNo, boolean isFull) throws IOException {
+        if (this.full.get(pgNo) == isFull) {
+            return;
+        }
+        this.full.set(pgNo, isFull);
+        int fsmPgNo = pgNo / this.pageBits;
+        byte[] bits = this.full.get(fsmPgNo * this.pageBits, (fsmPgNo + 1) * this.pageBits).toByteArray();
+        if (this.pages == null) {
+            this.pages = new PageFile(this.file);
+        }
+        this.pages.write((long) fsmPgNo * BufferPool.getPageSize(), Arrays.copyOf(bits, BufferPool.getPageSize()));
+    }
+
+    /**
+     * Record whether a page is full from its current contents.
+     */
+    public void update(HeapPage page) throws IOException {
+        setFull(page.getId().getPageNumber(), page.getNumUnusedSlots() == 0);
+    }
+}
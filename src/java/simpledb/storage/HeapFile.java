@@ -2,14 +2,14 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.DbException;
+import simpledb.common.LockManager;
+import simpledb.common.LockMode;
 import simpledb.common.Permissions;
 import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.util.Collections;
 import java.util.List;
 
@@ -19,6 +19,16 @@ import java.util.List;
  * size, and the file is simply a collection of those pages. HeapFile works
  * closely with HeapPage. The format of HeapPages is described in the HeapPage
  * constructor.
+ * <p>
+ * Inserts and deletes normally lock the whole page they change. With record
+ * locking on, they take an IX lock on the page and an exclusive lock on the
+ * record only, so that transactions changing different records of one page,
+ * such as the last page of an append-only table, do not wait for each other.
+ * Readers still lock whole pages in S mode, which conflicts with IX, so they
+ * never see uncommitted records.
+ * <p>
+ * Inserts find a page with a free slot through the file's
+ * {@link FreeSpaceMap}, which is opened by the first insert or delete.
  *
  * @author Sam Madden
  * @see HeapPage#HeapPage
@@ -27,7 +37,9 @@ public class HeapFile implements DbFile {
 
     private final File file;
     private final TupleDesc tupleDesc;
-    private final RandomAccessFile raf;
+    private final PageFile pages;
+    private volatile boolean recordLocking = false;
+    private volatile FreeSpaceMap freeSpaceMap;
 
     /**
      * Constructs a heap file backed by the specified file.
@@ -40,8 +52,8 @@ public class HeapFile implements DbFile {
         this.file = f;
         this.tupleDesc = td;
         try {
-            this.raf = new RandomAccessFile(this.file, "rw");
-        } catch (FileNotFoundException e) {
+            this.pages = new PageFile(this.file);
+        } catch (IOException e) {
             throw new RuntimeException(e.getMessage());
         }
     }
@@ -85,9 +97,14 @@ public class HeapFile implements DbFile {
         // TODO: some code goes here
         byte[] toRead = new byte[BufferPool.getPageSize()];
         try {
-            this.raf.seek((long) pid.getPageNumber() * BufferPool.getPageSize());
-            this.raf.read(toRead);
-            return new HeapPage((HeapPageId) pid, toRead);
+            // past the end of the file, the page is empty
+            this.pages.read((long) pid.getPageNumber() * BufferPool.getPageSize(), toRead);
+            HeapPage page = new HeapPage((HeapPageId) pid, toRead);
+            FreeSpaceMap fsm = this.freeSpaceMap;
+            if (fsm != null && page.getNumUnusedSlots() > 0) {
+                fsm.setFull(pid.getPageNumber(), false);
+            }
+            return page;
         } catch (Exception e) {
             throw new IllegalArgumentException(e.getMessage());
         }
@@ -96,8 +113,17 @@ public class HeapFile implements DbFile {
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // TODO: some code goes here
-        this.raf.seek((long) page.getId().getPageNumber() * BufferPool.getPageSize());
-        this.raf.write(page.getPageData());
+        byte[] data = page.getPageData();
+        this.pages.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), data);
+        FreeSpaceMap fsm = this.freeSpaceMap;
+        if (fsm != null) {
+            fsm.update((HeapPage) page);
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        this.pages.force();
     }
 
     /**
@@ -105,45 +131,151 @@ public class HeapFile implements DbFile {
      */
     public int numPages() {
         // TODO: some code goes here
-        return (int) Math.ceil(this.file.length() * 1.0 / BufferPool.getPageSize());
+        try {
+            return (int) Math.ceil(this.pages.size() * 1.0 / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Turn record locking on or off for inserts and deletes.
+     */
+    public void setRecordLocking(boolean recordLocking) {
+        this.recordLocking = recordLocking;
+    }
+
+    public boolean isRecordLocking() {
+        return this.recordLocking;
+    }
+
+    /**
+     * @return the free-space map of this file, opened on first use
+     */
+    public FreeSpaceMap getFreeSpaceMap() throws IOException {
+        FreeSpaceMap fsm = this.freeSpaceMap;
+        if (fsm == null) {
+            synchronized (this) {
+                if (this.freeSpaceMap == null) {
+                    this.freeSpaceMap = new FreeSpaceMap(this.file);
+                }
+                fsm = this.freeSpaceMap;
+            }
+        }
+        return fsm;
+    }
+
+    // the id of the first page from pgNo on that may have a free slot; a
+    // page past the end of the file is appended first
+    private HeapPageId nextFreePage(FreeSpaceMap fsm, int pgNo) throws IOException {
+        synchronized (this) {
+            int numPages = numPages();
+            int next = Math.min(fsm.nextFree(pgNo), numPages);
+            HeapPageId pid = new HeapPageId(getId(), next);
+            if (next == numPages) {
+                writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+            }
+            return pid;
+        }
     }
 
     // see DbFile.java for javadocs
     public List<Page> insertTuple(TransactionId tid, Tuple t)
             throws DbException, IOException, TransactionAbortedException {
         // TODO: some code goes here
-        HeapPage page = null;
-        for (int i = 0; i <= numPages(); i++) {
-            HeapPageId pid = new HeapPageId(getId(), i);
-            if (i == numPages()) {
-                page = new HeapPage(pid, HeapPage.createEmptyPageData());
-                writePage(page);
-            }
+        if (this.recordLocking && !isOptimistic(tid)) {
+            return insertRecord(tid, t);
+        }
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        HeapPage page;
+        for (int i = 0; ; i++) {
+            HeapPageId pid = nextFreePage(fsm, i);
+            i = pid.getPageNumber();
             page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
             if (page.getNumUnusedSlots() != 0)
                 break;
+            fsm.setFull(i, true);
             Database.getBufferPool().getLockManager().unlock(tid, pid, Permissions.READ_ONLY);
         }
-        assert page != null;
-        Database.getBufferPool().getLockManager().lock(tid, page.getId(), Permissions.READ_WRITE);
+        // upgrade through the buffer pool, which may hand out a private copy
+        page = (HeapPage) Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_WRITE);
         page.insertTuple(t);
+        if (page.getNumUnusedSlots() == 0) {
+            fsm.setFull(page.getId().getPageNumber(), true);
+        }
         //LockManager.unlock(tid, page.getId(), Permissions.READ_WRITE);
         return Collections.singletonList(page);
     }
 
+    // optimistic transactions write private copies of whole pages, and lock
+    // no records
+    private static boolean isOptimistic(TransactionId tid) {
+        return Database.getBufferPool().getVersionStore().isOptimistic(tid);
+    }
+
+    // insert under record locking: the page stays pinned while its slot is
+    // taken, so that it cannot be evicted from under the other writers. The
+    // slot is reserved and its record locked before the tuple is written,
+    // so nobody can read the tuple before it commits.
+    private List<Page> insertRecord(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        BufferPool bufferPool = Database.getBufferPool();
+        LockManager lockManager = bufferPool.getLockManager();
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        for (int i = 0; ; i++) {
+            HeapPageId pid = nextFreePage(fsm, i);
+            i = pid.getPageNumber();
+            HeapPage page = (HeapPage) bufferPool.pinPage(tid, pid, LockMode.IX);
+            try {
+                int slot = page.reserveSlot(tid, t);
+                if (slot >= 0) {
+                    lockManager.lock(tid, new RecordId(pid, slot), Permissions.READ_WRITE);
+                    page.insertTuple(tid, t, slot);
+                    if (page.getNumUnusedSlots() == 0) {
+                        fsm.setFull(i, true);
+                    }
+                    return Collections.singletonList(page);
+                }
+            } finally {
+                bufferPool.unpinPage(tid, pid);
+            }
+            fsm.setFull(i, true);
+            lockManager.unlock(tid, pid, LockMode.IX);
+        }
+    }
+
     // see DbFile.java for javadocs
     public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
             TransactionAbortedException, IOException {
         // TODO: some code goes here
         if (t.getRecordId().getPageId().getTableId() != getId())
             throw new DbException("Not a member of the file");
+        if (this.recordLocking && !isOptimistic(tid)) {
+            return deleteRecord(tid, t);
+        }
         PageId pid = t.getRecordId().getPageId();
         HeapPage page = (HeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
         page.deleteTuple(t);
+        getFreeSpaceMap().setFull(pid.getPageNumber(), false);
 //        LockManager.unlock(tid, pid, Permissions.READ_WRITE);
         return Collections.singletonList(page);
     }
 
+    private List<Page> deleteRecord(TransactionId tid, Tuple t)
+            throws DbException, TransactionAbortedException, IOException {
+        BufferPool bufferPool = Database.getBufferPool();
+        PageId pid = t.getRecordId().getPageId();
+        HeapPage page = (HeapPage) bufferPool.pinPage(tid, pid, LockMode.IX);
+        try {
+            bufferPool.getLockManager().lock(tid, t.getRecordId(), Permissions.READ_WRITE);
+            page.deleteTuple(tid, t);
+        } finally {
+            bufferPool.unpinPage(tid, pid);
+        }
+        getFreeSpaceMap().setFull(pid.getPageNumber(), false);
+        return Collections.singletonList(page);
+    }
+
     // see DbFile.java for javadocs
     public DbFileIterator iterator(TransactionId tid) {
         // TODO: some code goes here
@@ -10,17 +10,24 @@ import java.util.Iterator;
 import java.util.NoSuchElementException;
 
 /**
- * Implements the interface of DbFileIterator for HeapFile
+ * Implements the interface of DbFileIterator for HeapFile, and for other
+ * files of HeapPageId-numbered pages that iterate over their tuples, such as
+ * SlottedHeapFile.
+ * <p>
+ * The page being read is pinned in the BufferPool, so it cannot be evicted
+ * under the iterator; the pin is released when the iterator moves on to the
+ * next page, runs off the end of the file or is closed.
  */
 public class HeapFileIterator implements DbFileIterator {
 
-    private final HeapFile heapFile;
+    private final DbFile heapFile;
     private final TransactionId tid;
     private int pageNumber;
+    private PageId pinned;
     private Iterator<Tuple> iter;
     private boolean open;
 
-    public HeapFileIterator(HeapFile f, TransactionId tid) {
+    public HeapFileIterator(DbFile f, TransactionId tid) {
         this.heapFile = f;
         this.tid = tid;
         this.pageNumber = 0;
@@ -42,6 +49,7 @@ public class HeapFileIterator implements DbFileIterator {
         while (!iter.hasNext()) {
             this.pageNumber++;
             if (this.pageNumber >= this.heapFile.numPages()) {
+                unpinCurrentPage();
                 return false;
             }
             iter = getTupleIterator(this.pageNumber);
@@ -59,6 +67,7 @@ public class HeapFileIterator implements DbFileIterator {
 
     @Override
     public void rewind() throws DbException, TransactionAbortedException {
+        unpinCurrentPage();
         this.pageNumber = 0;
         iter = getTupleIterator(this.pageNumber);
     }
@@ -67,6 +76,14 @@ public class HeapFileIterator implements DbFileIterator {
     public void close() {
         this.open = false;
         iter = null;
+        unpinCurrentPage();
+    }
+
+    private void unpinCurrentPage() {
+        if (this.pinned != null) {
+            Database.getBufferPool().unpinPage(tid, this.pinned);
+            this.pinned = null;
+        }
     }
 
     private Iterator<Tuple> getTupleIterator(int pageNumber)
@@ -77,7 +94,10 @@ public class HeapFileIterator implements DbFileIterator {
 //        return page.iterator();
         if(pageNumber >= 0 && pageNumber < heapFile.numPages()){
             HeapPageId pid = new HeapPageId(heapFile.getId(),pageNumber);
-            HeapPage page = (HeapPage)Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            unpinCurrentPage();
+            @SuppressWarnings("unchecked")
+            Iterable<Tuple> page = (Iterable<Tuple>) Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+            this.pinned = pid;
             return page.iterator();
         }else{
             throw new DbException(String.format("heapfile %d does not contain page %d!", pageNumber,heapFile.getId()));
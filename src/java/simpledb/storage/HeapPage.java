@@ -5,35 +5,63 @@ import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.transaction.TransactionId;
 
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Each instance of HeapPage stores data for one page of HeapFiles and
  * implements the Page interface that is used by BufferPool.
+ * <p>
+ * The page keeps its bytes as they are on disk and decodes nothing up front.
+ * Tuples are created as the page is iterated over, at offsets computed from
+ * the TupleDesc, and decode their fields when those are first read; inserts
+ * serialize the new tuple straight into its slot. Writing the page out, or
+ * taking its before image, is therefore a plain copy of the bytes.
+ * <p>
+ * The bytes are copied on write: once tuples, an iterator or the before
+ * image may refer to them, the next change goes to a copy, which becomes the
+ * page's bytes. Tuples read from the page thus never change under their
+ * readers, and iterators see the page as it was when they were created.
+ * <p>
+ * Under record locking (see {@link HeapFile#setRecordLocking}) several
+ * transactions may change different slots of the page at once. The page
+ * monitor is then the latch that keeps the page physically consistent, and
+ * the page remembers which slots each running transaction changed: on commit
+ * those slots are copied into the before image, which stays the last
+ * committed version, and on abort they are copied back from it.
  *
  * @see HeapFile
  * @see BufferPool
  */
-public class HeapPage implements Page {
+public class HeapPage implements Page, Iterable<Tuple> {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte[] header;
-    final Tuple[] tuples;
     final int numSlots;
+    private final int headerSize;
+    // the header bits of the slots, then the slots
+    private volatile byte[] data; // changed under this
+    // whether anything besides this page may refer to data
+    private boolean shared; // protected by this
+    // the tuples decoded from data so far, replaced together with it
+    private AtomicReferenceArray<Tuple> tuples; // protected by this
     byte[] oldData;
-    private final Byte oldDataLock = (byte) 0;
+    private final Object oldDataLock = new Object();
 //    final List<TransactionId> dirtyTrans = new ArrayList<>();
     private TransactionId dirtyTrans = null;
+    private volatile long lsn = LogFile.NO_LSN;
+    // the slots that running transactions changed under record locks
+    private final Map<TransactionId, Set<Integer>> recordWriters = new HashMap<>(); // protected by this
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -48,6 +76,9 @@ public class HeapPage implements Page {
      * ceiling(no. tuple slots / 8)
      * <p>
      *
+     * The page takes over the array without copying it, and never changes
+     * it; the caller must not change it either.
+     *
      * @see Database#getCatalog
      * @see Catalog#getTupleDesc
      * @see BufferPool#getPageSize()
@@ -56,27 +87,27 @@ public class HeapPage implements Page {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
+        this.headerSize = getHeaderSize();
         this.dirtyTrans = null;
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i = 0; i < header.length; i++)
-            header[i] = dis.readByte();
-
-        tuples = new Tuple[numSlots];
-        try {
-            // allocate and read the actual records of this page
-            for (int i = 0; i < tuples.length; i++)
-                tuples[i] = readNextTuple(dis, i);
-        } catch (NoSuchElementException e) {
-            e.printStackTrace();
-        }
-        dis.close();
+        this.data = data.length >= BufferPool.getPageSize() ? data : Arrays.copyOf(data, BufferPool.getPageSize());
+        this.shared = true;
+        this.tuples = new AtomicReferenceArray<>(this.numSlots);
 
         setBeforeImage();
     }
 
+    // another version of a page, sharing the bytes and the layout
+    private HeapPage(HeapPage page, byte[] data) {
+        this.pid = page.pid;
+        this.td = page.td;
+        this.numSlots = page.numSlots;
+        this.headerSize = page.headerSize;
+        this.data = data;
+        this.shared = true;
+        this.tuples = new AtomicReferenceArray<>(this.numSlots);
+        this.oldData = data;
+    }
+
     /**
      * Retrieve the number of tuples on this page.
      *
@@ -103,23 +134,24 @@ public class HeapPage implements Page {
      * -- used by recovery
      */
     public HeapPage getBeforeImage() {
-        try {
-            byte[] oldDataRef = null;
-            synchronized (oldDataLock) {
-                oldDataRef = oldData;
-            }
-            return new HeapPage(pid, oldDataRef);
-        } catch (IOException e) {
-            e.printStackTrace();
-            //should never happen -- we parsed it OK before!
-            System.exit(1);
+        byte[] oldDataRef = null;
+        synchronized (oldDataLock) {
+            oldDataRef = oldData;
         }
-        return null;
+        return new HeapPage(this, oldDataRef);
     }
 
     public void setBeforeImage() {
+        // the before image shares the bytes until the page changes; not
+        // under oldDataLock, since commitRecords holds the page monitor while
+        // it takes oldDataLock
+        byte[] data;
+        synchronized (this) {
+            this.shared = true;
+            data = this.data;
+        }
         synchronized (oldDataLock) {
-            oldData = getPageData().clone();
+            oldData = data;
         }
     }
 
@@ -131,38 +163,49 @@ public class HeapPage implements Page {
         return this.pid;
     }
 
-    /**
-     * Suck up tuples from the source file.
-     */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
-        if (!isSlotUsed(slotId)) {
-            for (int i = 0; i < td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
+    // the offset of a slot in data
+    private int slotOffset(int slot) {
+        return this.headerSize + slot * this.td.getSize();
+    }
+
+    // the bytes to change, copied first if anything else may refer to them
+    private byte[] writableData() {
+        if (this.shared) {
+            this.data = this.data.clone();
+            // the decoded tuples are still valid, but no longer tied to data
+            AtomicReferenceArray<Tuple> copy = new AtomicReferenceArray<>(this.numSlots);
+            for (int i = 0; i < this.numSlots; i++) {
+                copy.lazySet(i, this.tuples.get(i));
             }
-            return null;
+            this.tuples = copy;
+            this.shared = false;
         }
+        return this.data;
+    }
 
-        // read fields in the tuple
-        Tuple t = new Tuple(td);
-        RecordId rid = new RecordId(pid, slotId);
-        t.setRecordId(rid);
+    // serialize a tuple into a free slot
+    private void writeSlot(int slot, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(this.td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         try {
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+            for (int j = 0; j < this.td.numFields(); j++) {
+                t.getField(j).serialize(dos);
             }
-        } catch (java.text.ParseException e) {
+        } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        System.arraycopy(baos.toByteArray(), 0, writableData(), slotOffset(slot), this.td.getSize());
+        this.tuples.set(slot, null);
+        markSlotUsed(slot, true);
+    }
 
-        return t;
+    // empty a slot, zeroing its bytes as a freshly written page has them
+    private void clearSlot(int slot) {
+        int offset = slotOffset(slot);
+        Arrays.fill(writableData(), offset, offset + this.td.getSize(), (byte) 0);
+        this.tuples.set(slot, null);
+        markSlotUsed(slot, false);
     }
 
     /**
@@ -176,65 +219,8 @@ public class HeapPage implements Page {
      * @return A byte array correspond to the bytes of this page.
      * @see #HeapPage
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (byte b : header) {
-            try {
-                dos.writeByte(b);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i = 0; i < tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j = 0; j < td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j = 0; j < td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-
-        return baos.toByteArray();
+    public synchronized byte[] getPageData() {
+        return this.data.clone();
     }
 
     /**
@@ -259,13 +245,12 @@ public class HeapPage implements Page {
      * @throws DbException if this tuple is not on this page, or tuple slot is
      *                     already empty.
      */
-    public void deleteTuple(Tuple t) throws DbException {
+    public synchronized void deleteTuple(Tuple t) throws DbException {
         // TODO: some code goes here
         RecordId rid = t.getRecordId();
         if (this.pid != rid.getPageId() || !isSlotUsed(rid.getTupleNumber()))
             throw new DbException("Tuple is not on this page, or tuple slot is already empty");
-        markSlotUsed(rid.getTupleNumber(), false);
-        tuples[rid.getTupleNumber()] = null;
+        clearSlot(rid.getTupleNumber());
     }
 
     /**
@@ -276,27 +261,152 @@ public class HeapPage implements Page {
      * @throws DbException if the page is full (no empty slots) or tupledesc
      *                     is mismatch.
      */
-    public void insertTuple(Tuple t) throws DbException {
+    public synchronized void insertTuple(Tuple t) throws DbException {
         // TODO: some code goes here
         if (!t.getTupleDesc().equals(this.td))
             throw new DbException("TupleDesc is mismatch");
         for (int i = 0; i < numSlots; i++) {
             if (!isSlotUsed(i)) {
                 t.setRecordId(new RecordId(this.pid, i));
-                tuples[i] = t;
-                markSlotUsed(i, true);
+                writeSlot(i, t);
                 return;
             }
         }
         throw new DbException("The page is full");
     }
 
+    /**
+     * Reserve a free slot for a tuple that a transaction locking records
+     * rather than the page is about to insert. The slot stays empty, so the
+     * transaction can lock its record before anybody may see the tuple, but
+     * no other transaction takes it. Free slots that another running
+     * transaction emptied are skipped, since its delete may still be undone.
+     * An aborting transaction gives its reserved slots back.
+     *
+     * @return the slot reserved, or -1 if there is no free slot
+     * @throws DbException if the tupledesc is mismatch
+     */
+    public synchronized int reserveSlot(TransactionId tid, Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(this.td))
+            throw new DbException("TupleDesc is mismatch");
+        for (int i = 0; i < numSlots; i++) {
+            if (!isSlotUsed(i) && !isRecordChanged(i)) {
+                this.recordWriters.computeIfAbsent(tid, k -> new HashSet<>()).add(i);
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Insert a tuple into a slot that the transaction reserved with
+     * {@link #reserveSlot}, once it holds the exclusive lock on its record.
+     *
+     * @throws DbException if the transaction did not reserve the slot, or
+     *                     the slot is in use
+     */
+    public synchronized void insertTuple(TransactionId tid, Tuple t, int slot) throws DbException {
+        Set<Integer> slots = this.recordWriters.get(tid);
+        if (slots == null || !slots.contains(slot) || isSlotUsed(slot))
+            throw new DbException("Slot " + slot + " is not reserved by the transaction");
+        t.setRecordId(new RecordId(this.pid, slot));
+        writeSlot(slot, t);
+    }
+
+    /**
+     * Delete a tuple on behalf of a transaction that holds an exclusive lock
+     * on its record.
+     *
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public synchronized void deleteTuple(TransactionId tid, Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (!this.pid.equals(rid.getPageId()) || !isSlotUsed(rid.getTupleNumber()))
+            throw new DbException("Tuple is not on this page, or tuple slot is already empty");
+        clearSlot(rid.getTupleNumber());
+        this.recordWriters.computeIfAbsent(tid, k -> new HashSet<>()).add(rid.getTupleNumber());
+    }
+
+    /**
+     * @return true if running transactions changed records of this page
+     * under record locks
+     */
+    public synchronized boolean hasRecordWriters() {
+        return !this.recordWriters.isEmpty();
+    }
+
+    /**
+     * @return true if the transaction changed records of this page under
+     * record locks
+     */
+    public synchronized boolean isRecordWriter(TransactionId tid) {
+        return this.recordWriters.containsKey(tid);
+    }
+
+    /**
+     * Make the record changes of a committing transaction part of the
+     * before image.
+     *
+     * @return the new before image, or null if the transaction changed no
+     * record of this page
+     */
+    public synchronized HeapPage commitRecords(TransactionId tid) {
+        Set<Integer> slots = this.recordWriters.remove(tid);
+        if (slots == null) {
+            return null;
+        }
+        HeapPage committed = getBeforeImage();
+        for (int slot : slots) {
+            committed.copySlot(this, slot);
+        }
+        synchronized (oldDataLock) {
+            oldData = committed.getPageData();
+        }
+        return committed;
+    }
+
+    /**
+     * Undo the record changes of an aborting transaction from the before
+     * image.
+     */
+    public synchronized void abortRecords(TransactionId tid) {
+        Set<Integer> slots = this.recordWriters.remove(tid);
+        if (slots == null) {
+            return;
+        }
+        HeapPage before = getBeforeImage();
+        for (int slot : slots) {
+            copySlot(before, slot);
+        }
+    }
+
+    private boolean isRecordChanged(int slot) {
+        for (Set<Integer> slots : this.recordWriters.values()) {
+            if (slots.contains(slot)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // make a slot of this page hold what it holds on the other version
+    private void copySlot(HeapPage from, int slot) {
+        int offset = slotOffset(slot);
+        System.arraycopy(from.data, offset, writableData(), offset, this.td.getSize());
+        this.tuples.set(slot, null);
+        markSlotUsed(slot, from.isSlotUsed(slot));
+    }
+
     /**
      * Marks this page as dirty/not dirty and record that transaction
-     * that did the dirtying
+     * that did the dirtying. A page changed under record locks stays dirty
+     * as long as one of its record writers runs.
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // TODO: some code goes here
+        if (dirty && this.recordWriters.containsKey(tid))
+            return;
         if (dirty)
             dirtyTrans = tid;
         else
@@ -306,11 +416,21 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // TODO: some code goes here
+        if (Objects.isNull(this.dirtyTrans) && !this.recordWriters.isEmpty())
+            return this.recordWriters.keySet().iterator().next();
         return Objects.isNull(this.dirtyTrans) ? null : dirtyTrans;
     }
 
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
 //    public boolean isDirtyBy(TransactionId tid) {
 //        return dirtyTrans.contains(tid);
 //    }
@@ -336,7 +456,7 @@ public class HeapPage implements Page {
         // TODO: some code goes here
         int headerPos = i / 8;
         int headerShift = i % 8;
-        return ((this.header[headerPos] >> headerShift) & 1) == 1;
+        return ((this.data[headerPos] >> headerShift) & 1) == 1;
     }
 
     /**
@@ -344,12 +464,13 @@ public class HeapPage implements Page {
      */
     private void markSlotUsed(int i, boolean value) {
         // TODO: some code goes here
+        byte[] header = writableData();
         int headerPos = i / 8;
         int headerShift = i % 8;
         if (value) // mark as used
-            this.header[headerPos] |= (1 << headerShift);
+            header[headerPos] |= (1 << headerShift);
         else
-            this.header[headerPos] &= ~(1 << headerShift);
+            header[headerPos] &= ~(1 << headerShift);
     }
 
     /**
@@ -358,13 +479,46 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // TODO: some code goes here
-        List<Tuple> clearedTuples = new ArrayList<>();
-        for (Tuple t : tuples) {
-            if (t != null) {
-                clearedTuples.add(t);
-            }
+        byte[] snapshot;
+        AtomicReferenceArray<Tuple> decoded;
+        synchronized (this) {
+            this.shared = true;
+            snapshot = this.data;
+            decoded = this.tuples;
         }
-        return clearedTuples.iterator();
+        return new Iterator<>() {
+            private int next = nextUsed(0);
+
+            // the first used slot from slot on, or numSlots
+            private int nextUsed(int slot) {
+                while (slot < numSlots && ((snapshot[slot / 8] >> (slot % 8)) & 1) == 0) {
+                    slot++;
+                }
+                return slot;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int slot = this.next;
+                this.next = nextUsed(slot + 1);
+                Tuple t = decoded.get(slot);
+                if (t == null) {
+                    t = new Tuple(td, new RecordId(pid, slot), snapshot, slotOffset(slot));
+                    if (!decoded.compareAndSet(slot, null, t)) {
+                        t = decoded.get(slot);
+                    }
+                }
+                return t;
+            }
+        };
     }
 }
 
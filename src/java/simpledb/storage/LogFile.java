@@ -2,15 +2,18 @@ package simpledb.storage;
 
 import simpledb.common.Database;
 import simpledb.common.Debug;
+import simpledb.common.PercentileRecorder;
 import simpledb.transaction.TransactionId;
 
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.reflect.Constructor;
-import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /*
 LogFile implements the recovery subsystem of SimpleDb.  This class is
@@ -63,16 +66,20 @@ must not be declared synchronized and must begin with a block like:
  *
  * <li> ABORT, COMMIT, and BEGIN records contain no additional data
  *
- * <li>UPDATE RECORDS consist of two entries, a before image and an
- * after image.  These images are serialized Page objects, and can be
- * accessed with the LogFile.readPageData() and LogFile.writePageData()
- * methods.  See LogFile.print() for an example.
+ * <li>UPDATE RECORDS consist of the page's type tag (see
+ * {@link PageTypeRegistry}), its serialized id and a {@link PageDelta}: the byte
+ * ranges of the page that changed, with their contents before and after
+ * the change.  They can be accessed with the LogFile.readUpdate() and
+ * LogFile.writeUpdate() methods.  See LogFile.print() for an example.
  *
  * <li> CHECKPOINT records consist of active transactions at the time
  * the checkpoint was taken and their first log record on disk.  The format
  * of the record is an integer count of the number of transactions, as well
  * as a long integer transaction id and a long integer first record offset
- * for each active transaction.
+ * for each active transaction.  The active transactions are followed by
+ * the dirty page table: an integer count of pages, and for each page its
+ * type tag, its serialized id and the long integer offset of the first log
+ * record whose changes to the page may not be on disk (its recLSN.)
  *
  * </ul>
  */
@@ -87,17 +94,100 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int PAGE_WRITE_RECORD = 6;
     static final long NO_CHECKPOINT_ID = -1;
+    public static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
 
     long end = -1;//protected by this
+    // LSNs are offsets in the log as if it had never been truncated; this is
+    // how much truncation cut off the front of the log file
+    long truncated = 0;//protected by this
     //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
     final Map<Long, Long> tidToFirstLogRecord = new HashMap<>();
 
+    /**
+     * A page and an LSN: an entry of the dirty page table in a CHECKPOINT
+     * record, with the page's recLSN, or the body of a PAGE_WRITE record,
+     * with the pageLSN of the version written.
+     */
+    static class PageLsn {
+        final byte pageType;
+        final PageId pid;
+        final long lsn;
+
+        PageLsn(byte pageType, PageId pid, long lsn) {
+            this.pageType = pageType;
+            this.pid = pid;
+            this.lsn = lsn;
+        }
+    }
+
+    /**
+     * An UPDATE record read back from the log: which page changed, and how.
+     */
+    static class UpdateRecord {
+        final byte pageType;
+        final PageId pid;
+        final PageDelta delta;
+        final long offset; // where the record starts in the log file
+
+        UpdateRecord(byte pageType, PageId pid, PageDelta delta, long offset) {
+            this.pageType = pageType;
+            this.pid = pid;
+            this.delta = delta;
+            this.offset = offset;
+        }
+
+        /**
+         * @return the data of the updated page as it is on disk
+         */
+        byte[] readPage() {
+            try {
+                return Database.getCatalog().getDatabaseFile(pid.getTableId()).readPage(pid).getPageData();
+            } catch (IllegalArgumentException e) {
+                // the page was appended to the file, but never written
+                return new byte[delta.getPageSize()];
+            }
+        }
+
+        /**
+         * Write the specified data to disk as the updated page.
+         */
+        void writePage(byte[] data) throws IOException {
+            Database.getCatalog().getDatabaseFile(pid.getTableId())
+                    .writePage(PageTypeRegistry.newPage(pageType, pid, data));
+        }
+    }
+
+    // group commit, see setGroupCommit()
+    private volatile long groupCommitWindowNanos = 0;
+    private volatile int groupCommitMaxBatch = 1;
+    private final Object groupCommitLock = new Object();
+    private volatile long commitsWritten = 0; // written under this
+    private long commitsDurable = 0; // protected by groupCommitLock
+    private boolean forcing = false; // protected by groupCommitLock
+    private final PercentileRecorder commitBatchSizes = new PercentileRecorder();
+    private final PercentileRecorder commitLatencies = new PercentileRecorder();
+
+    // every record with a smaller LSN is on disk
+    private final AtomicLong flushedLsn = new AtomicLong(0);
+
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    // automatic checkpoints, see setCheckpointInterval()
+    private long checkpointInterval = 0;//protected by this
+    private long lastCheckpointLsn = 0;//protected by this
+    private Checkpointer checkpointer;//protected by this
+
+    // see maybeTruncate(); truncations run one at a time
+    static final long TRUNCATE_MIN_BYTES = 1024 * 1024;
+    private final Object truncateLock = new Object();
+
     /**
      * Constructor.
      * Initialize and back the log file with the specified file.
@@ -139,12 +229,32 @@ public class LogFile {
             raf.seek(raf.length());
             end = raf.getFilePointer();
         }
+        if (checkpointer != null && currentLsn() - lastCheckpointLsn >= checkpointInterval) {
+            lastCheckpointLsn = currentLsn();
+            checkpointer.request();
+        }
+    }
+
+    /**
+     * @return the LSN the next log record will get. LSNs grow with every
+     * record and, unlike file offsets, do not change when the log is truncated.
+     */
+    public synchronized long currentLsn() {
+        return Math.max(end, LONG_SIZE) + truncated;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
 
+    /**
+     * @return true if the specified transaction has begun and has neither
+     * committed nor aborted, i.e. if its updates can still be rolled back
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
+
     /**
      * Write an abort record to the log for the specified tid, force
      * the log to disk, and perform a rollback
@@ -157,6 +267,7 @@ public class LogFile {
 
         synchronized (Database.getBufferPool()) {
 
+            List<UpdateRecord> updates;
             synchronized (this) {
                 preAppend();
                 //Debug.log("ABORT");
@@ -164,40 +275,191 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
-                rollback(tid);
+                updates = readUpdates(tid.getId(), raf.length());
+            }
+            // discarding cached pages takes their buffer frame monitors, so
+            // this must happen without the log monitor
+            undo(updates);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(end);
-                end = raf.getFilePointer();
+            synchronized (this) {
+                writeAbortRecord(tid.getId());
                 force();
                 tidToFirstLogRecord.remove(tid.getId());
             }
         }
     }
 
+    private void writeAbortRecord(long tid) throws IOException {
+        raf.writeInt(ABORT_RECORD);
+        raf.writeLong(tid);
+        raf.writeLong(end);
+        end = raf.getFilePointer();
+    }
+
     /**
      * Write a commit record to disk for the specified tid,
      * and force the log to disk.
+     * <p>
+     * With group commit on, the record is only appended under the log
+     * monitor; the caller then waits until some committing thread, the
+     * leader, forces the log on behalf of every commit appended so far.
      *
      * @param tid The committing transaction.
+     * @see #setGroupCommit
      */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
+    public void logCommit(TransactionId tid) throws IOException {
+        long start = System.nanoTime();
+        boolean group = this.groupCommitMaxBatch > 1;
+        long seq;
+        synchronized (this) {
+            preAppend();
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            raf.writeInt(COMMIT_RECORD);
+            raf.writeLong(tid.getId());
+            raf.writeLong(end);
+            end = raf.getFilePointer();
+            tidToFirstLogRecord.remove(tid.getId());
+            seq = ++commitsWritten;
+            if (!group) {
+                force();
+                commitsForced(seq);
+            }
+        }
+        if (group) {
+            awaitDurable(seq);
+        }
+        commitLatencies.record(System.nanoTime() - start);
+    }
 
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(end);
-        end = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    /**
+     * Turn group commit on or off. With group commit on, a committing thread
+     * that finds no force in progress becomes the leader: it waits until
+     * maxBatchSize commits are pending or windowMicros have passed, and then
+     * forces the log once for all of them. The others wait for the leader.
+     *
+     * @param windowMicros  the longest time a leader waits for more commits
+     * @param maxBatchSize  the number of pending commits that ends the wait
+     *                      early; 1 turns group commit off, so that every
+     *                      commit forces the log itself
+     */
+    public void setGroupCommit(long windowMicros, int maxBatchSize) {
+        if (windowMicros < 0 || maxBatchSize < 1) {
+            throw new IllegalArgumentException("bad group commit window " + windowMicros
+                    + " or batch size " + maxBatchSize);
+        }
+        this.groupCommitWindowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        this.groupCommitMaxBatch = maxBatchSize;
+    }
+
+    /**
+     * @return the number of commits made durable by each log force
+     */
+    public PercentileRecorder getCommitBatchSizes() {
+        return commitBatchSizes;
+    }
+
+    /**
+     * @return the time logCommit took, in nanoseconds
+     */
+    public PercentileRecorder getCommitLatencies() {
+        return commitLatencies;
+    }
+
+    // wait until the commit with the given sequence number is forced,
+    // forcing the log ourselves if nobody else is
+    private void awaitDurable(long seq) throws IOException {
+        // an interrupt while forcing would close the log, so interrupts are
+        // only passed on once we are done
+        boolean interrupted = false;
+        try {
+            while (true) {
+                synchronized (groupCommitLock) {
+                    // a leader waiting for a full batch may have one now
+                    groupCommitLock.notifyAll();
+                    while (forcing && commitsDurable < seq) {
+                        try {
+                            groupCommitLock.wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (commitsDurable >= seq) {
+                        return;
+                    }
+                    forcing = true;
+                    long deadline = System.nanoTime() + groupCommitWindowNanos;
+                    long remaining;
+                    while (commitsWritten - commitsDurable < groupCommitMaxBatch
+                            && (remaining = deadline - System.nanoTime()) > 0) {
+                        try {
+                            TimeUnit.NANOSECONDS.timedWait(groupCommitLock, remaining);
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                }
+                long forced = 0;
+                try {
+                    forced = forceCommits();
+                } finally {
+                    synchronized (groupCommitLock) {
+                        commitsForced(forced);
+                        forcing = false;
+                        groupCommitLock.notifyAll();
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    // force the log without holding the log monitor, so that other
+    // transactions can keep appending; returns the last commit forced
+    private long forceCommits() throws IOException {
+        while (true) {
+            long seq;
+            long lsn;
+            FileChannel channel;
+            synchronized (this) {
+                seq = commitsWritten;
+                lsn = currentLsn();
+                channel = raf.getChannel();
+            }
+            try {
+                channel.force(true);
+                forcedTo(lsn);
+                return seq;
+            } catch (ClosedChannelException e) {
+                synchronized (this) {
+                    if (raf.getChannel() == channel) {
+                        throw e;
+                    }
+                }
+                // logTruncate() replaced the log file, so force the new one
+            }
+        }
+    }
+
+    // record that every commit up to seq is on disk
+    private void commitsForced(long seq) {
+        synchronized (groupCommitLock) {
+            if (seq > commitsDurable) {
+                commitBatchSizes.record(seq - commitsDurable);
+                commitsDurable = seq;
+                groupCommitLock.notifyAll();
+            }
+        }
     }
 
     /**
      * Write an UPDATE record to disk for the specified tid and page
      * (with provided         before and after images.)
+     * The after image's pageLSN becomes the LSN of the record.
      *
      * @param tid    The transaction performing the write
      * @param before The before image of the page
@@ -213,87 +475,71 @@ public class LogFile {
 
            record type
            transaction id
-           before page data (see writePageData)
-           after page data
+           page type, page id and page delta (see writeUpdate)
            start offset
         */
         raf.writeInt(UPDATE_RECORD);
         raf.writeLong(tid.getId());
 
-        writePageData(raf, before);
-        writePageData(raf, after);
+        writeUpdate(raf, new UpdateRecord(PageTypeRegistry.tagOf(after), after.getId(),
+                PageDelta.diff(before.getPageData(), after.getPageData()), end));
         raf.writeLong(end);
+        after.setLsn(end + truncated);
         end = raf.getFilePointer();
 
         Debug.log("WRITE OFFSET = " + end);
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException {
-        PageId pid = p.getId();
-        int[] pageInfo = pid.serialize();
-
-        //page data is:
-        // page class name
-        // id class name
-        // id class bytes
-        // id class data
-        // page class bytes
-        // page class data
+    /**
+     * Write a PAGE_WRITE record, noting that the specified page has been
+     * written to disk, so that recovery can skip the log records up to its
+     * pageLSN. The record does not need to be forced, and unlike the records
+     * of transactions it is not counted in getTotalRecords(). The page's file
+     * must have been forced first (see {@link DbFile#force}): any later force
+     * of the log makes the record durable.
+     *
+     * @param page a page just written and forced, whose pageLSN is set
+     */
+    public synchronized void logPageWrite(Page page) throws IOException {
+        long offset = page.getLsn() - truncated;
+        if (offset < LONG_SIZE) {
+            // the log no longer has the record
+            return;
+        }
+        raf.writeInt(PAGE_WRITE_RECORD);
+        raf.writeLong(-1); //no tid
+        writePageLsn(raf, new PageLsn(PageTypeRegistry.tagOf(page), page.getId(), offset));
+        raf.writeLong(end);
+        end = raf.getFilePointer();
+    }
 
-        String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
+    void writeUpdate(RandomAccessFile raf, UpdateRecord update) throws IOException {
+        int[] pageInfo = update.pid.serialize();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        //update data is:
+        // page type tag
+        // id length
+        // id data
+        // page delta
 
-        raf.writeInt(pageInfo.length);
+        raf.writeByte(update.pageType);
+        raf.writeByte(pageInfo.length);
         for (int j : pageInfo) {
             raf.writeInt(j);
         }
-        byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
-        //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
+        update.delta.write(raf);
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
-
-        try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
-
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object[] idArgs = new Object[numIdArgs];
-            for (int i = 0; i < numIdArgs; i++) {
-                idArgs[i] = raf.readInt();
-            }
-            pid = (PageId) idConsts[0].newInstance(idArgs);
-
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
-
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
-
-            Object[] pageArgs = new Object[2];
-            pageArgs[0] = pid;
-            pageArgs[1] = pageData;
-
-            newPage = (Page) pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
-        } catch (ClassNotFoundException | InvocationTargetException | IllegalAccessException | InstantiationException e) {
-            e.printStackTrace();
-            throw new IOException();
+    // reads the body of an UPDATE record whose type and tid were just read
+    UpdateRecord readUpdate(RandomAccessFile raf) throws IOException {
+        long offset = raf.getFilePointer() - INT_SIZE - LONG_SIZE;
+        byte pageType = raf.readByte();
+        int[] pageInfo = new int[raf.readUnsignedByte()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = raf.readInt();
         }
-        return newPage;
-
+        PageId pid = PageTypeRegistry.newPageId(pageType, pageInfo);
+        return new UpdateRecord(pageType, pid, PageDelta.read(raf), offset);
     }
 
     /**
@@ -320,53 +566,133 @@ public class LogFile {
 
     /**
      * Checkpoint the log and write a checkpoint record.
+     * <p>
+     * The checkpoint is fuzzy: no page is written. Instead the record
+     * holds the active transactions and the buffer pool's dirty page table,
+     * and recovery redoes the log from the smallest recLSN in that table.
+     * Neither the buffer pool nor the log is held for longer than it takes
+     * to write the record, so transactions keep running while pages reach
+     * disk in the background. The log is not truncated here, see
+     * {@link #logTruncate}.
      */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
+            preAppend();
+            long startCpOffset;
+            Set<Long> keys = tidToFirstLogRecord.keySet();
+            Iterator<Long> els = keys.iterator();
+            // the dirty page table is collected with the log monitor held,
+            // so every page logged before this record is in it
+            List<PageLsn> dirtyPages = Database.getBufferPool().dirtyPageTable();
+            startCpOffset = raf.getFilePointer();
+            raf.writeInt(CHECKPOINT_RECORD);
+            raf.writeLong(-1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            raf.writeInt(keys.size());
+            while (els.hasNext()) {
+                Long key = els.next();
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
+                raf.writeLong(key);
+                //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
+                raf.writeLong(tidToFirstLogRecord.get(key));
+            }
 
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(end);
-                end = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+            //write the dirty page table, with LSNs turned into offsets
+            raf.writeInt(dirtyPages.size());
+            for (PageLsn dirtyPage : dirtyPages) {
+                writePageLsn(raf, new PageLsn(dirtyPage.pageType, dirtyPage.pid,
+                        Math.max(LONG_SIZE, dirtyPage.lsn - truncated)));
             }
+
+            //once the CP is written, make sure the CP location at the
+            // beginning of the log file is updated
+            raf.writeLong(end);
+            end = raf.getFilePointer();
+            force();
+            raf.seek(0);
+            raf.writeLong(startCpOffset);
+            raf.seek(end);
+            force();
+            lastCheckpointLsn = currentLsn();
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
+    }
 
+    void writePageLsn(RandomAccessFile raf, PageLsn dirtyPage) throws IOException {
+        int[] pageInfo = dirtyPage.pid.serialize();
+        raf.writeByte(dirtyPage.pageType);
+        raf.writeByte(pageInfo.length);
+        for (int j : pageInfo) {
+            raf.writeInt(j);
+        }
+        raf.writeLong(dirtyPage.lsn);
+    }
+
+    PageLsn readPageLsn(RandomAccessFile raf) throws IOException {
+        byte pageType = raf.readByte();
+        int[] pageInfo = new int[raf.readUnsignedByte()];
+        for (int i = 0; i < pageInfo.length; i++) {
+            pageInfo[i] = raf.readInt();
+        }
+        return new PageLsn(pageType, PageTypeRegistry.newPageId(pageType, pageInfo), raf.readLong());
+    }
+
+    /**
+     * Take a checkpoint in the background every time the log has grown by
+     * the specified number of bytes, so that restart time stays bounded.
+     *
+     * @param logBytes the log growth between checkpoints, or 0 to stop
+     *                 taking checkpoints automatically
+     */
+    public void setCheckpointInterval(long logBytes) {
+        if (logBytes < 0) {
+            throw new IllegalArgumentException("negative checkpoint interval " + logBytes);
+        }
+        Checkpointer stopped = null;
+        synchronized (this) {
+            checkpointInterval = logBytes;
+            if (logBytes == 0) {
+                stopped = checkpointer;
+                checkpointer = null;
+            } else if (checkpointer == null) {
+                checkpointer = new Checkpointer(this);
+                checkpointer.start();
+            }
+        }
+        // a checkpoint in progress needs the log monitor to finish
+        if (stopped != null) {
+            stopped.shutdown();
+        }
+    }
+
+    /**
+     * Truncate the log if the part that recovery no longer reads is at
+     * least half of it, and at least TRUNCATE_MIN_BYTES. The checkpointer
+     * calls this after every checkpoint, so that the log is rewritten only
+     * when that frees a good share of it.
+     */
+    void maybeTruncate() throws IOException {
+        synchronized (this) {
+            if (recoveryUndecided || raf.length() <= LONG_SIZE) {
+                return;
+            }
+            long reclaimable = firstNeededRecord(raf) - LONG_SIZE;
+            raf.seek(end);
+            if (reclaimable < TRUNCATE_MIN_BYTES || reclaimable < raf.length() / 2) {
+                return;
+            }
+        }
         logTruncate();
     }
 
     /**
-     * Truncate any unneeded portion of the log to reduce its space
-     * consumption
+     * @return the offset of the first record that recovery would read: the
+     * last checkpoint, or the first record of a transaction active at it, or
+     * the oldest change not on disk when it was taken
      */
-    public synchronized void logTruncate() throws IOException {
-        preAppend();
+    private long firstNeededRecord(RandomAccessFile raf) throws IOException {
         raf.seek(0);
         long cpLoc = raf.readLong();
 
@@ -392,71 +718,127 @@ public class LogFile {
                     minLogRecord = firstLogRecord;
                 }
             }
-        }
-
-        // we can truncate everything before minLogRecord
-        File newFile = new File("logtmp" + System.currentTimeMillis());
-        RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
-        logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
 
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
+            // redo starts at the oldest change that may not be on disk
+            int numDirty = raf.readInt();
+            for (int i = 0; i < numDirty; i++) {
+                long recLsn = readPageLsn(raf).lsn;
+                if (recLsn < minLogRecord) {
+                    minLogRecord = recLsn;
+                }
+            }
+        }
+        return minLogRecord;
+    }
 
-                switch (type) {
-                    case UPDATE_RECORD:
-                        Page before = readPageData(raf);
-                        Page after = readPageData(raf);
+    /**
+     * Truncate any unneeded portion of the log to reduce its space
+     * consumption.
+     * <p>
+     * The records are copied to a new file without the log monitor held, so
+     * transactions keep appending meanwhile; only the records appended
+     * during the copy are copied with it held, right before the new file
+     * replaces the old one.
+     */
+    public void logTruncate() throws IOException {
+        synchronized (truncateLock) {
+            long minLogRecord;
+            long copied;
+            synchronized (this) {
+                preAppend();
+                minLogRecord = firstNeededRecord(raf);
+                copied = end;
+                raf.seek(end);
+            }
+            if (minLogRecord == -1L) {
+                return;
+            }
 
-                        writePageData(logNew, before);
-                        writePageData(logNew, after);
-                        break;
-                    case CHECKPOINT_RECORD:
-                        int numXactions = raf.readInt();
-                        logNew.writeInt(numXactions);
-                        while (numXactions-- > 0) {
-                            long xid = raf.readLong();
-                            long xoffset = raf.readLong();
-                            logNew.writeLong(xid);
-                            logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                        }
-                        break;
-                    case BEGIN_RECORD:
-                        tidToFirstLogRecord.put(record_tid, newStart);
-                        break;
-                }
+            // we can truncate everything before minLogRecord
+            File newFile = new File("logtmp" + System.currentTimeMillis());
+            RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
+            logNew.seek(LONG_SIZE);
+            try (RandomAccessFile reader = new RandomAccessFile(logFile, "r")) {
+                copyRecords(reader, minLogRecord, copied, logNew, minLogRecord);
+            }
 
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
+            synchronized (this) {
+                copyRecords(raf, copied, end, logNew, minLogRecord);
+                // a checkpoint taken during the copy is after minLogRecord
+                raf.seek(0);
+                long cpLoc = raf.readLong();
+                logNew.seek(0);
+                logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
+
+                Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+
+                // pages may be written once their records are forced, see forceTo()
+                logNew.getChannel().force(true);
+                logNew.close();
+                raf.close();
+                logFile.delete();
+                newFile.renameTo(logFile);
+                raf = new RandomAccessFile(logFile, "rw");
+                raf.seek(raf.length());
+                newFile.delete();
 
-            } catch (EOFException e) {
-                break;
+                end = raf.getFilePointer();
+                truncated += minLogRecord - LONG_SIZE;
+                // every record moved by the same amount
+                long shift = minLogRecord - LONG_SIZE;
+                tidToFirstLogRecord.replaceAll((tid, offset) -> offset - shift);
+                //print();
             }
         }
+    }
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
-
-        raf.close();
-        logFile.delete();
-        newFile.renameTo(logFile);
-        raf = new RandomAccessFile(logFile, "rw");
-        raf.seek(raf.length());
-        newFile.delete();
+    // copy the records between the specified offsets to the end of logNew,
+    // rewriting the offsets in them since they are different after truncation
+    private void copyRecords(RandomAccessFile from, long start, long stop,
+                             RandomAccessFile logNew, long minLogRecord) throws IOException {
+        from.seek(start);
+        while (from.getFilePointer() < stop) {
+            int type = from.readInt();
+            long record_tid = from.readLong();
+            long newStart = logNew.getFilePointer();
+
+            Debug.log("NEW START = " + newStart);
+
+            logNew.writeInt(type);
+            logNew.writeLong(record_tid);
+
+            switch (type) {
+                case UPDATE_RECORD:
+                    writeUpdate(logNew, readUpdate(from));
+                    break;
+                case CHECKPOINT_RECORD:
+                    int numXactions = from.readInt();
+                    logNew.writeInt(numXactions);
+                    while (numXactions-- > 0) {
+                        long xid = from.readLong();
+                        long xoffset = from.readLong();
+                        logNew.writeLong(xid);
+                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
+                    }
+                    int numDirty = from.readInt();
+                    logNew.writeInt(numDirty);
+                    while (numDirty-- > 0) {
+                        PageLsn dirtyPage = readPageLsn(from);
+                        writePageLsn(logNew, new PageLsn(dirtyPage.pageType, dirtyPage.pid,
+                                Math.max(LONG_SIZE, (dirtyPage.lsn - minLogRecord) + LONG_SIZE)));
+                    }
+                    break;
+                case PAGE_WRITE_RECORD:
+                    PageLsn written = readPageLsn(from);
+                    writePageLsn(logNew, new PageLsn(written.pageType, written.pid,
+                            written.lsn < minLogRecord ? NO_LSN : (written.lsn - minLogRecord) + LONG_SIZE));
+                    break;
+            }
 
-        end = raf.getFilePointer();
-        //print();
+            //all xactions finish with a pointer
+            logNew.writeLong(newStart);
+            from.readLong();
+        }
     }
 
     /**
@@ -471,16 +853,30 @@ public class LogFile {
     public void rollback(TransactionId tid)
             throws NoSuchElementException, IOException {
         synchronized (Database.getBufferPool()) {
+            List<UpdateRecord> updates;
             synchronized (this) {
                 preAppend();
                 // TODO: some code goes here
-                rollback(tid.getId(), raf.length());
+                updates = readUpdates(tid.getId(), raf.length());
             }
+            undo(updates);
         }
     }
 
-    public void rollback(long tid, long pos) throws IOException {
-        long startPos = this.tidToFirstLogRecord.get(tid);
+    /**
+     * Collect the UPDATE records the specified transaction wrote before the
+     * log position pos, latest record first.
+     *
+     * @param tid the transaction to roll back
+     * @param pos the end of the last log record to consider
+     * @throws NoSuchElementException if the transaction is not active
+     */
+    List<UpdateRecord> readUpdates(long tid, long pos) throws IOException {
+        Long startPos = this.tidToFirstLogRecord.get(tid);
+        if (startPos == null) {
+            throw new NoSuchElementException("transaction " + tid + " is not active");
+        }
+        List<UpdateRecord> updates = new ArrayList<>();
         raf.seek(pos - LONG_SIZE);
         pos = raf.readLong();
         while (pos > startPos) {
@@ -489,15 +885,45 @@ public class LogFile {
             if(type == UPDATE_RECORD) {
                 long myTid = raf.readLong();
                 if(tid == myTid) {
-                    Page beforePg = readPageData(raf);
-                    Database.getCatalog().getDatabaseFile(beforePg.getId().getTableId()).writePage(beforePg);
-                    Database.getBufferPool().removePage(beforePg.getId());
+                    updates.add(readUpdate(raf));
                 }
             }
             raf.seek(pos - LONG_SIZE);
-            pos = raf.readInt();
+            pos = raf.readLong();
         }
         raf.seek(end);
+        return updates;
+    }
+
+    /**
+     * Undo the given updates, latest first, both on disk and in the buffer
+     * pool. A cached page is undone from the version that was last logged,
+     * since its newer changes were never logged; any other page is undone
+     * from the version on disk, which is always one that was logged. The
+     * files are forced before this returns: once the ABORT record is logged,
+     * a checkpoint no longer leads recovery to these updates.
+     */
+    void undo(List<UpdateRecord> updates) throws IOException {
+        Map<PageId, byte[]> pages = new LinkedHashMap<>();
+        Map<PageId, UpdateRecord> firstUpdates = new HashMap<>();
+        for (UpdateRecord update : updates) {
+            byte[] data = pages.get(update.pid);
+            if (data == null) {
+                Page logged = Database.getBufferPool().removeLoggedPage(update.pid);
+                data = logged != null ? logged.getPageData() : update.readPage();
+                pages.put(update.pid, data);
+                firstUpdates.put(update.pid, update);
+            }
+            update.delta.undo(data);
+        }
+        Set<Integer> tableIds = new HashSet<>();
+        for (Map.Entry<PageId, byte[]> e : pages.entrySet()) {
+            firstUpdates.get(e.getKey()).writePage(e.getValue());
+            tableIds.add(e.getKey().getTableId());
+        }
+        for (int tableId : tableIds) {
+            Database.getCatalog().getDatabaseFile(tableId).force();
+        }
     }
 
     /**
@@ -505,105 +931,154 @@ public class LogFile {
      * is necessary so that start up can happen quickly (without
      * extensive recovery.)
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         try {
+            setCheckpointInterval(0);
+            // with every page on disk, the checkpoint's dirty page table is
+            // empty and recovery has nothing to redo
+            Database.getBufferPool().flushAllPages();
             logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
+            synchronized (this) {
+                raf.close();
+            }
         } catch (IOException e) {
             System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
             e.printStackTrace();
         }
     }
 
+    /**
+     * @return true if the change a log record at pos made to the specified
+     * page was already on disk when the checkpoint at cpPos was taken
+     */
+    private static boolean isOnDisk(PageId pid, long pos, long cpPos, Map<PageId, Long> dirtyPages) {
+        if(pos >= cpPos) {
+            return false;
+        }
+        Long recLsn = dirtyPages.get(pid);
+        return recLsn == null || pos < recLsn;
+    }
+
+    /**
+     * Set the number of threads recover() uses to write pages.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("need at least one recovery thread");
+        }
+        this.recoveryThreads = threads;
+    }
+
     /**
      * Recover the database system by ensuring that the updates of
      * committed transactions are installed and that the
      * updates of uncommitted transactions are not installed.
+     * <p>
+     * A single pass over the log, starting at the smallest recLSN in the
+     * last checkpoint's dirty page table, collects for every page the
+     * updates of committed transactions and the rollbacks of aborted ones,
+     * skipping changes that were on disk at the checkpoint;
+     * the transactions that never finished are rolled back at the end.
+     * The changes of every page are put in log order, those that
+     * PAGE_WRITE records show on disk are dropped, and a pool
+     * of threads brings the other pages up to date, reading and writing
+     * each page only once (see {@link RecoveryPlan}). Finally an
+     * ABORT record is logged for every rolled back transaction, so that a
+     * later recovery does not roll it back again on top of newer updates.
      */
     public void recover() throws IOException {
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
                 // TODO: some code goes here
-                Set<Long> commitTids = new HashSet<>();
-                Set<Long> undoTids = new HashSet<>();
+                Set<Long> losers = new HashSet<>();
+                Map<Long, List<UpdateRecord>> updates = new HashMap<>();
+                Map<PageId, Long> dirtyPages = new HashMap<>();
+                RecoveryPlan plan = new RecoveryPlan();
                 end = raf.length();
 
                 raf.seek(0);
                 long cpPos = raf.readLong();
-                long redoBeg;
+                long pos;
                 if(cpPos != NO_CHECKPOINT_ID) {
-                    raf.seek(cpPos);
+                    // skip the record type and the (unused) tid
+                    raf.seek(cpPos + INT_SIZE + LONG_SIZE);
                     int cnt = raf.readInt();
                     for(int i = 0; i < cnt; i++) {
                         long tid = raf.readLong();
                         long tidPos = raf.readLong();
                         tidToFirstLogRecord.put(tid, tidPos);
-                        undoTids.add(tid);
+                        losers.add(tid);
                     }
-                    redoBeg = cpPos;
-                } else {
-                    redoBeg = LONG_SIZE;
-                }
-
-                // ANALYSIS
-                raf.seek(raf.length() - LONG_SIZE);
-                long pos = raf.readLong();
-                while(pos >= redoBeg) {
-                    raf.seek(pos);
-                    long tid;
-                    int type = raf.readInt();
-                    switch(type) {
-                        case COMMIT_RECORD:
-                            tid = raf.readLong();
-                            commitTids.add(tid);
-                            break;
-                        case BEGIN_RECORD:
-                            tid = raf.readLong();
-                            undoTids.add(tid);
-                            break;
-                        case ABORT_RECORD:
-                        case UPDATE_RECORD:
-                        case CHECKPOINT_RECORD:
-                            break;
+                    // pages outside the dirty page table were on disk when
+                    // the checkpoint was taken; redo the others from their recLSN
+                    pos = cpPos;
+                    int numDirty = raf.readInt();
+                    for(int i = 0; i < numDirty; i++) {
+                        PageLsn dirtyPage = readPageLsn(raf);
+                        dirtyPages.put(dirtyPage.pid, dirtyPage.lsn);
+                        pos = Math.min(pos, dirtyPage.lsn);
                     }
-                    raf.seek(pos - LONG_SIZE);
-                    pos = raf.readLong();
+                } else {
+                    cpPos = LONG_SIZE;
+                    pos = LONG_SIZE;
                 }
 
-                // REDO
-                pos = redoBeg;
+                // ANALYSIS and REDO
                 while(pos < end) {
                     raf.seek(pos);
                     int type = raf.readInt();
                     long tid = raf.readLong();
                     switch(type) {
                         case ABORT_RECORD:
-                            rollback(tid, pos);
-                            pos += INT_SIZE * LONG_SIZE;
+                            // a transaction we know nothing about ended
+                            // before the checkpoint, rolled back on disk
+                            if(tidToFirstLogRecord.containsKey(tid)) {
+                                List<UpdateRecord> rollback = new ArrayList<>();
+                                for(UpdateRecord update: readUpdates(tid, pos)) {
+                                    if(!isOnDisk(update.pid, pos, cpPos, dirtyPages)) {
+                                        rollback.add(update);
+                                    }
+                                }
+                                plan.undo(rollback, pos);
+                            }
+                            pos += INT_SIZE + LONG_SIZE;
                             tidToFirstLogRecord.remove(tid);
-                            undoTids.remove(tid);
+                            losers.remove(tid);
+                            updates.remove(tid);
                             break;
                         case COMMIT_RECORD:
+                            plan.redo(updates.getOrDefault(tid, Collections.emptyList()));
                             tidToFirstLogRecord.remove(tid);
-                            undoTids.remove(tid);
+                            losers.remove(tid);
+                            updates.remove(tid);
                             pos = raf.getFilePointer();
                             break;
                         case UPDATE_RECORD:
-                            Page beforePg = readPageData(raf);
-                            Page afterPg = readPageData(raf);
-                            if(commitTids.contains(tid)) {
-                                Database.getCatalog().getDatabaseFile(afterPg.getId().getTableId()).writePage(afterPg);
-                                Database.getBufferPool().removePage(beforePg.getId());
+                            UpdateRecord update = readUpdate(raf);
+                            if(!isOnDisk(update.pid, pos, cpPos, dirtyPages)) {
+                                updates.computeIfAbsent(tid, k -> new ArrayList<>()).add(update);
                             }
                             pos = raf.getFilePointer();
                             break;
                         case BEGIN_RECORD:
                             tidToFirstLogRecord.put(tid, pos);
+                            losers.add(tid);
                             pos = raf.getFilePointer();
                             break;
                         case CHECKPOINT_RECORD:
-                            pos = raf.getFilePointer() + (long) raf.readInt() * LONG_SIZE * 2;
+                            int numXactions = raf.readInt();
+                            raf.seek(raf.getFilePointer() + (long) numXactions * LONG_SIZE * 2);
+                            int numDirty = raf.readInt();
+                            while(numDirty-- > 0) {
+                                readPageLsn(raf);
+                            }
+                            pos = raf.getFilePointer();
+                            break;
+                        case PAGE_WRITE_RECORD:
+                            PageLsn written = readPageLsn(raf);
+                            plan.written(written.pid, written.lsn);
+                            pos = raf.getFilePointer();
                             break;
                         default:
                             break;
@@ -612,9 +1087,20 @@ public class LogFile {
                 }
 
                 // UNDO
-                for(long tid: undoTids) {
-                    rollback(tid, raf.length());
+                for(long tid: losers) {
+                    plan.undo(readUpdates(tid, end), end);
+                }
+
+                plan.skipWritten();
+                plan.apply(recoveryThreads);
+
+                raf.seek(end);
+                for(long tid: losers) {
+                    preAppend();
+                    writeAbortRecord(tid);
+                    tidToFirstLogRecord.remove(tid);
                 }
+                force();
             }
         }
     }
@@ -662,6 +1148,13 @@ public class LogFile {
                             System.out.println((raf.getFilePointer() - (LONG_SIZE + LONG_SIZE)) + ": TID: " + tid);
                             System.out.println((raf.getFilePointer() - LONG_SIZE) + ": FIRST LOG RECORD: " + firstRecord);
                         }
+                        int numDirty = raf.readInt();
+                        System.out.println((raf.getFilePointer() - INT_SIZE) + ": NUMBER OF DIRTY PAGES: " + numDirty);
+                        while (numDirty-- > 0) {
+                            long dirtyStart = raf.getFilePointer();
+                            PageLsn dirtyPage = readPageLsn(raf);
+                            System.out.println(dirtyStart + ": PAGE: " + dirtyPage.pid + ", RECLSN: " + dirtyPage.lsn);
+                        }
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
                         break;
@@ -669,21 +1162,23 @@ public class LogFile {
                         System.out.println(" (UPDATE)");
 
                         long start = raf.getFilePointer();
-                        Page before = readPageData(raf);
-
-                        long middle = raf.getFilePointer();
-                        Page after = readPageData(raf);
+                        UpdateRecord update = readUpdate(raf);
 
-                        System.out.println(start + ": before image table id " + before.getId().getTableId());
-                        System.out.println((start + INT_SIZE) + ": before image page number " + before.getId().getPageNumber());
-                        System.out.println((start + INT_SIZE) + " TO " + (middle - INT_SIZE) + ": page data");
-
-                        System.out.println(middle + ": after image table id " + after.getId().getTableId());
-                        System.out.println((middle + INT_SIZE) + ": after image page number " + after.getId().getPageNumber());
-                        System.out.println((middle + INT_SIZE) + " TO " + (raf.getFilePointer()) + ": page data");
+                        System.out.println(start + ": page class " + PageTypeRegistry.pageClassOf(update.pageType).getName());
+                        System.out.println(start + ": table id " + update.pid.getTableId());
+                        System.out.println(start + ": page number " + update.pid.getPageNumber());
+                        System.out.println(start + " TO " + raf.getFilePointer() + ": page delta, "
+                                + update.delta.numRanges() + " changed ranges");
 
                         System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
 
+                        break;
+                    case PAGE_WRITE_RECORD:
+                        System.out.println(" (PAGE WRITE)");
+                        long writeStart = raf.getFilePointer();
+                        PageLsn written = readPageLsn(raf);
+                        System.out.println(writeStart + ": PAGE: " + written.pid + ", PAGELSN: " + written.lsn);
+                        System.out.println(raf.getFilePointer() + ": RECORD START OFFSET: " + raf.readLong());
                         break;
                 }
 
@@ -698,7 +1193,27 @@ public class LogFile {
     }
 
     public synchronized void force() throws IOException {
+        long lsn = currentLsn();
         raf.getChannel().force(true);
+        forcedTo(lsn);
+    }
+
+    /**
+     * Force the log to disk unless the record with the specified LSN is
+     * already there. This is how the write-ahead rule is kept before a page
+     * with that pageLSN is written: a page whose records were forced by an
+     * earlier commit or page write does not cost another force.
+     */
+    public void forceTo(long lsn) throws IOException {
+        if (lsn < flushedLsn.get()) {
+            return;
+        }
+        force();
+    }
+
+    // record that every log record before lsn is on disk
+    private void forcedTo(long lsn) {
+        flushedLsn.accumulateAndGet(lsn, Math::max);
     }
 
 }
@@ -0,0 +1,166 @@
+package simpledb.storage;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * LRU-K replacement (O'Neil, O'Neil and Weikum). The victim is the page whose
+ * K-th most recent access lies furthest in the past; pages that have been
+ * referenced fewer than K times count as infinitely distant and go first, in
+ * LRU order. A page touched once by a sequential scan therefore never pushes
+ * out a page that is referenced over and over, such as a B+ tree internal page.
+ * <p>
+ * Hits only update the per-page history. The eviction queue is ordered by the
+ * key each page had when it was last queued; since keys only grow, the queue
+ * head is re-keyed lazily until its key is current, which makes it the true
+ * victim. The history of recently evicted pages is retained so that a page
+ * that comes straight back is not treated as new.
+ */
+public class LruKPolicy implements ReplacementPolicy {
+
+    /**
+     * Default number of references tracked per page.
+     */
+    public static final int DEFAULT_K = 2;
+
+    private static class History {
+        final PageId pid;
+        final long[] times; // most recent access first
+        int count;
+        Key queued; // protected by the policy
+
+        History(PageId pid, int k) {
+            this.pid = pid;
+            this.times = new long[k];
+        }
+
+        synchronized void access(long now) {
+            System.arraycopy(times, 0, times, 1, times.length - 1);
+            times[0] = now;
+            count++;
+        }
+
+        synchronized Key key() {
+            long kth = count >= times.length ? times[times.length - 1] : Long.MIN_VALUE;
+            return new Key(pid, kth, times[0]);
+        }
+    }
+
+    private static class Key implements Comparable<Key> {
+        final PageId pid;
+        final long kth;
+        final long last;
+
+        Key(PageId pid, long kth, long last) {
+            this.pid = pid;
+            this.kth = kth;
+            this.last = last;
+        }
+
+        boolean sameAs(Key other) {
+            return kth == other.kth && last == other.last;
+        }
+
+        // access times are unique, so two pages never compare as equal
+        @Override
+        public int compareTo(Key o) {
+            if (kth != o.kth) {
+                return Long.compare(kth, o.kth);
+            }
+            return Long.compare(last, o.last);
+        }
+    }
+
+    private final int k;
+    private final AtomicLong clock;
+    private final Map<PageId, History> resident;
+    private final TreeSet<Key> queue; // protected by this
+    private final Map<PageId, History> retained; // protected by this
+
+    /**
+     * @param capacity the expected number of resident pages; this many
+     *                 evicted histories are retained as well
+     */
+    public LruKPolicy(int capacity) {
+        this(capacity, DEFAULT_K);
+    }
+
+    /**
+     * @param capacity the expected number of resident pages
+     * @param k        the number of references tracked per page
+     */
+    public LruKPolicy(int capacity, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be at least 1");
+        }
+        final int retainedPages = Math.max(1, capacity);
+        this.k = k;
+        this.clock = new AtomicLong();
+        this.resident = new ConcurrentHashMap<>();
+        this.queue = new TreeSet<>();
+        this.retained = new LinkedHashMap<PageId, History>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, History> eldest) {
+                return size() > retainedPages;
+            }
+        };
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            return;
+        }
+        History h = retained.remove(pid);
+        if (h == null) {
+            h = new History(pid, k);
+        }
+        h.access(clock.incrementAndGet());
+        h.queued = h.key();
+        queue.add(h.queued);
+        resident.put(pid, h);
+    }
+
+    public void pageAccessed(PageId pid) {
+        History h = resident.get(pid);
+        if (h != null) {
+            h.access(clock.incrementAndGet());
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        History h = resident.remove(pid);
+        if (h != null) {
+            queue.remove(h.queued);
+            retained.put(pid, h);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        // pages that are currently in use are set aside and requeued afterwards
+        TreeSet<Key> skipped = new TreeSet<>();
+        PageId victim = null;
+        while (!queue.isEmpty()) {
+            Key head = queue.pollFirst();
+            History h = resident.get(head.pid);
+            Key current = h.key();
+            if (!current.sameAs(head)) {
+                h.queued = current;
+                queue.add(current);
+                continue;
+            }
+            if (evictable.test(head.pid)) {
+                victim = head.pid;
+                resident.remove(victim);
+                retained.put(victim, h);
+                break;
+            }
+            skipped.add(head);
+        }
+        queue.addAll(skipped);
+        return victim;
+    }
+}
@@ -59,4 +59,19 @@ public interface Page {
      * copy current content to the before image.
      */
     void setBeforeImage();
+
+    /**
+     * Return the LSN of the last log record that changed this page, its
+     * pageLSN. The pageLSN lives only in memory: a page read from disk has
+     * none until it is logged again.
+     *
+     * @return the pageLSN, or LogFile.NO_LSN if the page was not logged
+     * since it was read
+     */
+    long getLsn();
+
+    /**
+     * Set the pageLSN, after a log record describing this page was written.
+     */
+    void setLsn(long lsn);
 }
@@ -0,0 +1,174 @@
+package simpledb.storage;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * PageDelta is the difference between two versions of a page: the byte
+ * ranges that changed, with their contents before and after the change. An
+ * UPDATE log record holds a PageDelta instead of two full page images, so
+ * inserting or deleting a tuple costs the slot header bits plus the tuple
+ * bytes rather than two pages.
+ * <p>
+ * Because a delta covers every byte that differs, redoing a sequence of
+ * deltas in log order brings a page from any version in that sequence to the
+ * last one, and undoing them in reverse order brings it back to the first.
+ * Both operations are therefore idempotent, which recovery relies on.
+ * <p>
+ * Undo only restores the bits that the change flipped. Under record locking
+ * several transactions change different slots of one page, and their slot
+ * header bits share bytes; undoing one transaction must leave the others'
+ * bits alone.
+ */
+public class PageDelta {
+
+    /**
+     * Two changed ranges closer than this are logged as one range, since
+     * every range costs an offset and a length.
+     */
+    private static final int MIN_GAP = 8;
+
+    private final int pageSize;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(int pageSize, int[] offsets, byte[][] before, byte[][] after) {
+        this.pageSize = pageSize;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Compute the delta that turns one version of a page into another.
+     *
+     * @param before the page data before the change
+     * @param after  the page data after the change
+     */
+    public static PageDelta diff(byte[] before, byte[] after) {
+        if (before.length != after.length) {
+            throw new IllegalArgumentException("page sizes differ: " + before.length + " and " + after.length);
+        }
+        List<int[]> ranges = new ArrayList<>();
+        int i = 0;
+        while (i < before.length) {
+            if (before[i] == after[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int last = i;
+            // extend the range until MIN_GAP equal bytes follow its last change
+            for (i++; i < before.length && i - last <= MIN_GAP; i++) {
+                if (before[i] != after[i]) {
+                    last = i;
+                }
+            }
+            ranges.add(new int[]{start, last + 1});
+            i = last + 1;
+        }
+
+        int[] offsets = new int[ranges.size()];
+        byte[][] beforeBytes = new byte[ranges.size()][];
+        byte[][] afterBytes = new byte[ranges.size()][];
+        for (int r = 0; r < ranges.size(); r++) {
+            int[] range = ranges.get(r);
+            offsets[r] = range[0];
+            beforeBytes[r] = Arrays.copyOfRange(before, range[0], range[1]);
+            afterBytes[r] = Arrays.copyOfRange(after, range[0], range[1]);
+        }
+        return new PageDelta(before.length, offsets, beforeBytes, afterBytes);
+    }
+
+    /**
+     * @return the size in bytes of the pages this delta applies to
+     */
+    public int getPageSize() {
+        return this.pageSize;
+    }
+
+    /**
+     * @return the number of changed byte ranges
+     */
+    public int numRanges() {
+        return this.offsets.length;
+    }
+
+    /**
+     * Apply the change to the specified page data, in place.
+     */
+    public void redo(byte[] data) {
+        apply(data, this.after);
+    }
+
+    /**
+     * Revert the change on the specified page data, in place. Bits that the
+     * change did not flip are left as they are.
+     */
+    public void undo(byte[] data) {
+        checkSize(data);
+        for (int r = 0; r < this.offsets.length; r++) {
+            byte[] before = this.before[r];
+            byte[] after = this.after[r];
+            int offset = this.offsets[r];
+            for (int i = 0; i < before.length; i++) {
+                int changed = before[i] ^ after[i];
+                data[offset + i] = (byte) ((data[offset + i] & ~changed) | (before[i] & changed));
+            }
+        }
+    }
+
+    private void apply(byte[] data, byte[][] images) {
+        checkSize(data);
+        for (int r = 0; r < this.offsets.length; r++) {
+            System.arraycopy(images[r], 0, data, this.offsets[r], images[r].length);
+        }
+    }
+
+    private void checkSize(byte[] data) {
+        if (data.length != this.pageSize) {
+            throw new IllegalArgumentException("delta for " + this.pageSize + " byte pages applied to "
+                    + data.length + " bytes");
+        }
+    }
+
+    /**
+     * Serialize this delta: the page size and the number of ranges, then the
+     * offset, length, before bytes and after bytes of every range.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(this.pageSize);
+        out.writeInt(this.offsets.length);
+        for (int r = 0; r < this.offsets.length; r++) {
+            out.writeInt(this.offsets[r]);
+            out.writeInt(this.before[r].length);
+            out.write(this.before[r]);
+            out.write(this.after[r]);
+        }
+    }
+
+    /**
+     * Read a delta written by {@link #write}.
+     */
+    public static PageDelta read(DataInput in) throws IOException {
+        int pageSize = in.readInt();
+        int numRanges = in.readInt();
+        int[] offsets = new int[numRanges];
+        byte[][] before = new byte[numRanges][];
+        byte[][] after = new byte[numRanges][];
+        for (int r = 0; r < numRanges; r++) {
+            offsets[r] = in.readInt();
+            int length = in.readInt();
+            before[r] = new byte[length];
+            in.readFully(before[r]);
+            after[r] = new byte[length];
+            in.readFully(after[r]);
+        }
+        return new PageDelta(pageSize, offsets, before, after);
+    }
+}
@@ -0,0 +1,125 @@
+package simpledb.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * PageFile reads and writes the pages of a database file with positional
+ * I/O on one FileChannel, which is opened once and shared by all threads.
+ * Positional reads and writes neither move nor depend on a file position,
+ * so concurrent readers and writers need no lock, and reading a page never
+ * opens the file.
+ * <p>
+ * Memory-mapping the file would save a copy per page, but a mapping does
+ * not grow with the file and cannot be unmapped before it is garbage
+ * collected; since pages are copied into page objects anyway, a positional
+ * read costs about the same.
+ * <p>
+ * When a thread is interrupted during I/O, the JDK closes the channel for
+ * everybody. PageFile then opens it again and retries the operation, and
+ * the interrupted thread gets its interrupt status back when it is done.
+ *
+ * @Threadsafe
+ */
+public class PageFile {
+    private final File file;
+    private volatile FileChannel channel;
+
+    private interface ChannelOp<T> {
+        T apply(FileChannel channel) throws IOException;
+    }
+
+    /**
+     * Open a file for reading and writing pages, creating it if it does not
+     * exist.
+     */
+    public PageFile(File file) throws IOException {
+        this.file = file;
+        this.channel = open();
+    }
+
+    private FileChannel open() throws IOException {
+        return FileChannel.open(this.file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+    }
+
+    // run an operation, reopening the channel if an interrupt closed it
+    private <T> T run(ChannelOp<T> op) throws IOException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                FileChannel current = this.channel;
+                try {
+                    return op.apply(current);
+                } catch (ClosedChannelException e) {
+                    interrupted |= Thread.interrupted();
+                    reopen(current);
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private synchronized void reopen(FileChannel closed) throws IOException {
+        if (this.channel == closed) {
+            this.channel = open();
+        }
+    }
+
+    /**
+     * Read bytes from the given offset on, up to the length of the array or
+     * the end of the file.
+     *
+     * @return the number of bytes read; the rest of the array is untouched
+     */
+    public int read(long position, byte[] data) throws IOException {
+        return run(channel -> {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                if (channel.read(buf, position + buf.position()) < 0) {
+                    break;
+                }
+            }
+            return buf.position();
+        });
+    }
+
+    /**
+     * Write all the bytes of the array at the given offset, growing the file
+     * if needed.
+     */
+    public void write(long position, byte[] data) throws IOException {
+        run(channel -> {
+            ByteBuffer buf = ByteBuffer.wrap(data);
+            while (buf.hasRemaining()) {
+                channel.write(buf, position + buf.position());
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Force the pages written so far to the disk, so that they survive a
+     * crash of the operating system and not only of the process.
+     */
+    public void force() throws IOException {
+        run(channel -> {
+            channel.force(true);
+            return null;
+        });
+    }
+
+    /**
+     * @return the size of the file in bytes
+     */
+    public long size() throws IOException {
+        return run(FileChannel::size);
+    }
+}
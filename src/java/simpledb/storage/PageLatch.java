@@ -0,0 +1,40 @@
+package simpledb.storage;
+
+/**
+ * PageLatch is an optimistic read of a buffered page, taken without any
+ * transactional lock. The page may change under the reader at any time, so
+ * whatever is read from it only counts once {@link #validate} says that no
+ * writer latched the frame, and no other version of the page replaced it,
+ * since the latch was taken. Until then the reader must be ready for the
+ * page to be inconsistent, and even to throw.
+ *
+ * @see BufferPool#readOptimistic
+ */
+public class PageLatch {
+
+    private final BufferFrame frame;
+    private final long stamp;
+    private final Page page;
+
+    PageLatch(BufferFrame frame) {
+        this.frame = frame;
+        this.stamp = frame.tryOptimisticRead();
+        this.page = frame.getPage();
+    }
+
+    /**
+     * @return the page as it was when the latch was taken
+     */
+    public Page getPage() {
+        return this.page;
+    }
+
+    /**
+     * @return true if the page has not changed since the latch was taken,
+     * so that everything read from it so far is consistent
+     */
+    public boolean validate() {
+        return this.stamp != 0 && this.frame.validate(this.stamp)
+                && !this.frame.isEvicted() && this.frame.getPage() == this.page;
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.index.*;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * PageTypeRegistry maps the page classes that can appear in the log to
+ * one-byte tags, and each tag to factories that rebuild the page id and the
+ * page from their serialized form. The log stores the tag instead of class
+ * names, and recovery creates pages without any reflection.
+ * <p>
+ * The built-in page types are registered when the class is loaded; a new
+ * Page implementation must be registered before its pages are logged.
+ *
+ * @Threadsafe
+ */
+public class PageTypeRegistry {
+
+    /**
+     * Rebuilds a page id from the ints returned by {@link PageId#serialize}.
+     */
+    @FunctionalInterface
+    public interface PageIdFactory {
+        PageId create(int[] serialized);
+    }
+
+    /**
+     * Rebuilds a page from its id and the bytes returned by
+     * {@link Page#getPageData}.
+     */
+    @FunctionalInterface
+    public interface PageFactory {
+        Page create(PageId pid, byte[] data) throws IOException;
+    }
+
+    private static class PageType {
+        final byte tag;
+        final Class<? extends Page> pageClass;
+        final PageIdFactory idFactory;
+        final PageFactory pageFactory;
+
+        PageType(byte tag, Class<? extends Page> pageClass, PageIdFactory idFactory, PageFactory pageFactory) {
+            this.tag = tag;
+            this.pageClass = pageClass;
+            this.idFactory = idFactory;
+            this.pageFactory = pageFactory;
+        }
+    }
+
+    public static final byte HEAP_PAGE = 1;
+    public static final byte BTREE_ROOT_PTR_PAGE = 2;
+    public static final byte BTREE_INTERNAL_PAGE = 3;
+    public static final byte BTREE_LEAF_PAGE = 4;
+    public static final byte BTREE_HEADER_PAGE = 5;
+    public static final byte SLOTTED_HEAP_PAGE = 6;
+
+    private static final AtomicReferenceArray<PageType> byTag = new AtomicReferenceArray<>(256);
+    private static final Map<Class<?>, PageType> byClass = new ConcurrentHashMap<>();
+
+    static {
+        register(HEAP_PAGE, HeapPage.class,
+                ids -> new HeapPageId(ids[0], ids[1]),
+                (pid, data) -> new HeapPage((HeapPageId) pid, data));
+        register(BTREE_ROOT_PTR_PAGE, BTreeRootPtrPage.class, PageTypeRegistry::newBTreePageId,
+                (pid, data) -> new BTreeRootPtrPage((BTreePageId) pid, data));
+        register(BTREE_INTERNAL_PAGE, BTreeInternalPage.class, PageTypeRegistry::newBTreePageId,
+                (pid, data) -> new BTreeInternalPage((BTreePageId) pid, data, keyField(pid)));
+        register(BTREE_LEAF_PAGE, BTreeLeafPage.class, PageTypeRegistry::newBTreePageId,
+                (pid, data) -> new BTreeLeafPage((BTreePageId) pid, data, keyField(pid)));
+        register(BTREE_HEADER_PAGE, BTreeHeaderPage.class, PageTypeRegistry::newBTreePageId,
+                (pid, data) -> new BTreeHeaderPage((BTreePageId) pid, data));
+        register(SLOTTED_HEAP_PAGE, SlottedHeapPage.class,
+                ids -> new HeapPageId(ids[0], ids[1]),
+                (pid, data) -> new SlottedHeapPage((HeapPageId) pid, data));
+    }
+
+    private static PageId newBTreePageId(int[] ids) {
+        return new BTreePageId(ids[0], ids[1], ids[2]);
+    }
+
+    // B+ tree leaf and internal pages also need the field the tree is keyed on
+    private static int keyField(PageId pid) {
+        return ((BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId())).keyField();
+    }
+
+    /**
+     * Register a page class under the specified tag.
+     *
+     * @throws IllegalArgumentException if the tag or the class is already registered
+     */
+    public static synchronized void register(byte tag, Class<? extends Page> pageClass,
+                                             PageIdFactory idFactory, PageFactory pageFactory) {
+        if (byTag.get(tag & 0xff) != null || byClass.containsKey(pageClass)) {
+            throw new IllegalArgumentException("page type " + tag + " or " + pageClass.getName()
+                    + " is already registered");
+        }
+        PageType type = new PageType(tag, pageClass, idFactory, pageFactory);
+        byTag.set(tag & 0xff, type);
+        byClass.put(pageClass, type);
+    }
+
+    /**
+     * @return the tag of the specified page's class
+     * @throws IllegalArgumentException if the class is not registered
+     */
+    public static byte tagOf(Page page) {
+        PageType type = byClass.get(page.getClass());
+        if (type == null) {
+            throw new IllegalArgumentException("unregistered page type " + page.getClass().getName());
+        }
+        return type.tag;
+    }
+
+    private static PageType typeOf(byte tag) {
+        PageType type = byTag.get(tag & 0xff);
+        if (type == null) {
+            throw new IllegalArgumentException("unknown page type " + tag);
+        }
+        return type;
+    }
+
+    /**
+     * Rebuild the id of a page with the specified tag.
+     */
+    public static PageId newPageId(byte tag, int[] serialized) {
+        return typeOf(tag).idFactory.create(serialized);
+    }
+
+    /**
+     * Rebuild a page with the specified tag from its data.
+     */
+    public static Page newPage(byte tag, PageId pid, byte[] data) throws IOException {
+        return typeOf(tag).pageFactory.create(pid, data);
+    }
+
+    /**
+     * @return the class registered under the specified tag
+     */
+    public static Class<? extends Page> pageClassOf(byte tag) {
+        return typeOf(tag).pageClass;
+    }
+}
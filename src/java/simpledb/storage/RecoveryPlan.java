@@ -0,0 +1,197 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * RecoveryPlan collects the changes that {@link LogFile#recover} has to make,
+ * page by page, puts them in log order, and then applies them with a pool of
+ * threads. The pages are partitioned among the threads by PageId, so each
+ * page is read once, brought up to date in memory and written once, no matter
+ * how many log records touch it.
+ * <p>
+ * Every change happened at a position in the log: an update where it was
+ * logged, a rollback where the transaction aborted. Recovery only learns
+ * that an update is to be redone at its transaction's COMMIT, and
+ * transactions need not commit in the order of their updates, so the
+ * changes of a page are sorted by position before they are applied: bytes
+ * that several transactions wrote, such as a header, end up as the last
+ * update left them. Changes at or before the pageLSN a page was last written
+ * with are already on disk and are skipped, and a page with nothing left to
+ * change is not read at all.
+ */
+class RecoveryPlan {
+
+    private static class Step {
+        final LogFile.UpdateRecord update;
+        final boolean undo;
+        final long pos;
+
+        Step(LogFile.UpdateRecord update, boolean undo, long pos) {
+            this.update = update;
+            this.undo = undo;
+            this.pos = pos;
+        }
+    }
+
+    private final Map<PageId, List<Step>> pages = new LinkedHashMap<>();
+    private final Map<PageId, Long> written = new HashMap<>();
+
+    private void add(LogFile.UpdateRecord update, boolean undo, long pos) {
+        this.pages.computeIfAbsent(update.pid, pid -> new ArrayList<>()).add(new Step(update, undo, pos));
+    }
+
+    /**
+     * Redo the given updates of a committed transaction, each where it was
+     * logged.
+     */
+    void redo(List<LogFile.UpdateRecord> updates) {
+        for (LogFile.UpdateRecord update : updates) {
+            add(update, false, update.offset);
+        }
+    }
+
+    /**
+     * Undo the given updates of an aborted transaction, latest first.
+     *
+     * @param pos where in the log the transaction was rolled back
+     */
+    void undo(List<LogFile.UpdateRecord> updates, long pos) {
+        for (LogFile.UpdateRecord update : updates) {
+            add(update, true, pos);
+        }
+    }
+
+    /**
+     * Note that a page was written to disk with every change up to the log
+     * record at pageLsn.
+     */
+    void written(PageId pid, long pageLsn) {
+        this.written.merge(pid, pageLsn, Math::max);
+    }
+
+    /**
+     * Sort the changes of every page into log order, and drop the changes
+     * that are already on disk. Must be called before {@link #apply}.
+     *
+     * @return the number of pages the plan writes
+     */
+    int skipWritten() {
+        Iterator<Map.Entry<PageId, List<Step>>> it = this.pages.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<PageId, List<Step>> page = it.next();
+            List<Step> steps = page.getValue();
+            // stable, so that the rollback of a transaction stays latest first
+            steps.sort(Comparator.comparingLong(step -> step.pos));
+            Long pageLsn = this.written.get(page.getKey());
+            if (pageLsn == null) {
+                continue;
+            }
+            int first = 0;
+            while (first < steps.size() && steps.get(first).pos <= pageLsn) {
+                first++;
+            }
+            if (first == steps.size()) {
+                it.remove();
+            } else {
+                page.setValue(new ArrayList<>(steps.subList(first, steps.size())));
+            }
+        }
+        return this.pages.size();
+    }
+
+    /**
+     * @return the number of pages the plan writes
+     */
+    int numPages() {
+        return this.pages.size();
+    }
+
+    /**
+     * Apply the plan to disk, and drop the pages it writes from the buffer pool.
+     * The files written are forced before this returns.
+     *
+     * @param threads the number of threads to write pages with
+     */
+    void apply(int threads) throws IOException {
+        if (this.pages.isEmpty()) {
+            return;
+        }
+        threads = Math.min(threads, this.pages.size());
+        List<List<Map.Entry<PageId, List<Step>>>> partitions = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (Map.Entry<PageId, List<Step>> page : this.pages.entrySet()) {
+            partitions.get(Math.floorMod(page.getKey().hashCode(), threads)).add(page);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (List<Map.Entry<PageId, List<Step>>> partition : partitions) {
+                futures.add(pool.submit(() -> {
+                    for (Map.Entry<PageId, List<Step>> page : partition) {
+                        applyPage(page.getKey(), page.getValue());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted during recovery");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException(cause);
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // the log records written after recovery must not outlive the pages
+        Set<Integer> tableIds = new HashSet<>();
+        for (PageId pid : this.pages.keySet()) {
+            tableIds.add(pid.getTableId());
+        }
+        for (int tableId : tableIds) {
+            Database.getCatalog().getDatabaseFile(tableId).force();
+        }
+    }
+
+    private static void applyPage(PageId pid, List<Step> steps) throws IOException {
+        LogFile.UpdateRecord first = steps.get(0).update;
+        byte[] data = first.readPage();
+        for (Step step : steps) {
+            if (step.undo) {
+                step.update.delta.undo(data);
+            } else {
+                step.update.delta.redo(data);
+            }
+        }
+        first.writePage(data);
+        Database.getBufferPool().removePage(pid);
+    }
+}
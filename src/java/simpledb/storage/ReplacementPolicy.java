@@ -0,0 +1,55 @@
+package simpledb.storage;
+
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool gives up when it
+ * needs room for a new one. The BufferPool reports every page that enters or
+ * leaves the page table and every cache hit; the policy only tracks PageIds
+ * and never touches the pages themselves.
+ * <p>
+ * Implementations must be thread safe. {@link #pageAccessed} is called on
+ * every cache hit and must not take a policy-wide lock, so that hits can
+ * proceed in parallel; the other methods may synchronize.
+ *
+ * @see BufferPool
+ * @see ClockPolicy
+ * @see LruKPolicy
+ * @see TwoQueuePolicy
+ */
+public interface ReplacementPolicy {
+
+    /**
+     * Record that a page was brought into the buffer pool.
+     *
+     * @param pid the id of the page that is now resident
+     */
+    void pageLoaded(PageId pid);
+
+    /**
+     * Record a cache hit on a resident page. Ids that are not tracked by the
+     * policy must be ignored.
+     *
+     * @param pid the id of the page that was accessed
+     */
+    void pageAccessed(PageId pid);
+
+    /**
+     * Forget a page that left the buffer pool without going through
+     * {@link #chooseVictim}, e.g. because it was discarded on abort.
+     *
+     * @param pid the id of the page that is no longer resident
+     */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Pick the next page to evict and stop tracking it. Candidates are
+     * offered to {@code evictable} in replacement order; the first one it
+     * accepts is the victim. The predicate claims the candidate as a side
+     * effect when it accepts it, so an accepted candidate must be returned.
+     *
+     * @param evictable decides whether a candidate can be evicted right now
+     * @return the id of the evicted page, or null if no candidate was accepted
+     */
+    PageId chooseVictim(Predicate<PageId> evictable);
+}
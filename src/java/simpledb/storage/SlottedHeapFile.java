@@ -0,0 +1,189 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SlottedHeapFile is a DbFile that, like HeapFile, stores tuples in no
+ * particular order, but on {@link SlottedHeapPage}s, which keep each tuple
+ * in as many bytes as it needs instead of in a slot of the largest possible
+ * size. A table of short strings takes a fraction of the pages, and so of
+ * the I/O, that a HeapFile takes. A table is stored in a SlottedHeapFile if
+ * its catalog entry is followed by "slotted" (see
+ * {@link simpledb.common.Catalog#loadSchema}).
+ * <p>
+ * Its pages are numbered with HeapPageIds and locked as whole pages; unlike
+ * a HeapFile, it does not lock records. Inserts find a page with room
+ * through the file's {@link FreeSpaceMap}, in which a page counts as full
+ * once a tuple of the largest size the TupleDesc allows may not fit any
+ * more, so that an insert never has to try several pages that look free.
+ *
+ * @see SlottedHeapPage
+ */
+public class SlottedHeapFile implements DbFile {
+
+    private final File file;
+    private final TupleDesc tupleDesc;
+    private final PageFile pages;
+    private volatile FreeSpaceMap freeSpaceMap;
+
+    /**
+     * Constructs a slotted heap file backed by the specified file.
+     *
+     * @param f the file that stores the on-disk backing store for this file
+     */
+    public SlottedHeapFile(File f, TupleDesc td) {
+        this.file = f;
+        this.tupleDesc = td;
+        try {
+            this.pages = new PageFile(this.file);
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the File backing this SlottedHeapFile on disk.
+     */
+    public File getFile() {
+        return this.file;
+    }
+
+    /**
+     * Returns an ID uniquely identifying this file, the hash of its absolute
+     * file name as for a HeapFile.
+     */
+    public int getId() {
+        return this.file.getAbsoluteFile().hashCode();
+    }
+
+    public TupleDesc getTupleDesc() {
+        return this.tupleDesc;
+    }
+
+    // whether a page counts as full in the free-space map
+    private boolean isFull(SlottedHeapPage page) {
+        return page.getFreeSpace() < this.tupleDesc.getSize() + SlottedHeapPage.SLOT_SIZE;
+    }
+
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid) {
+        byte[] toRead = new byte[BufferPool.getPageSize()];
+        try {
+            // past the end of the file, the page is empty
+            this.pages.read((long) pid.getPageNumber() * BufferPool.getPageSize(), toRead);
+            SlottedHeapPage page = new SlottedHeapPage((HeapPageId) pid, toRead);
+            FreeSpaceMap fsm = this.freeSpaceMap;
+            if (fsm != null && !isFull(page)) {
+                fsm.setFull(pid.getPageNumber(), false);
+            }
+            return page;
+        } catch (Exception e) {
+            throw new IllegalArgumentException(e.getMessage());
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void writePage(Page page) throws IOException {
+        byte[] data = page.getPageData();
+        this.pages.write((long) page.getId().getPageNumber() * BufferPool.getPageSize(), data);
+        FreeSpaceMap fsm = this.freeSpaceMap;
+        if (fsm != null) {
+            fsm.setFull(page.getId().getPageNumber(), isFull((SlottedHeapPage) page));
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public void force() throws IOException {
+        this.pages.force();
+    }
+
+    /**
+     * Returns the number of pages in this SlottedHeapFile.
+     */
+    public int numPages() {
+        try {
+            return (int) Math.ceil(this.pages.size() * 1.0 / BufferPool.getPageSize());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return the free-space map of this file, opened on first use
+     */
+    public FreeSpaceMap getFreeSpaceMap() throws IOException {
+        FreeSpaceMap fsm = this.freeSpaceMap;
+        if (fsm == null) {
+            synchronized (this) {
+                if (this.freeSpaceMap == null) {
+                    this.freeSpaceMap = new FreeSpaceMap(this.file);
+                }
+                fsm = this.freeSpaceMap;
+            }
+        }
+        return fsm;
+    }
+
+    // the id of the first page from pgNo on that may have room; a page past
+    // the end of the file is appended first
+    private HeapPageId nextFreePage(FreeSpaceMap fsm, int pgNo) throws IOException {
+        synchronized (this) {
+            int numPages = numPages();
+            int next = Math.min(fsm.nextFree(pgNo), numPages);
+            HeapPageId pid = new HeapPageId(getId(), next);
+            if (next == numPages) {
+                writePage(new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData()));
+            }
+            return pid;
+        }
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> insertTuple(TransactionId tid, Tuple t)
+            throws DbException, IOException, TransactionAbortedException {
+        FreeSpaceMap fsm = getFreeSpaceMap();
+        SlottedHeapPage page;
+        for (int i = 0; ; i++) {
+            HeapPageId pid = nextFreePage(fsm, i);
+            i = pid.getPageNumber();
+            page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_ONLY);
+            if (page.hasRoomFor(t))
+                break;
+            if (page.getNumTuples() == 0)
+                throw new DbException("The tuple does not fit on a page");
+            fsm.setFull(i, true);
+            Database.getBufferPool().getLockManager().unlock(tid, pid, Permissions.READ_ONLY);
+        }
+        // upgrade through the buffer pool, which may hand out a private copy
+        page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, page.getId(), Permissions.READ_WRITE);
+        page.insertTuple(t);
+        fsm.setFull(page.getId().getPageNumber(), isFull(page));
+        return Collections.singletonList(page);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> deleteTuple(TransactionId tid, Tuple t) throws DbException,
+            TransactionAbortedException, IOException {
+        if (t.getRecordId().getPageId().getTableId() != getId())
+            throw new DbException("Not a member of the file");
+        PageId pid = t.getRecordId().getPageId();
+        SlottedHeapPage page = (SlottedHeapPage) Database.getBufferPool().getPage(tid, pid, Permissions.READ_WRITE);
+        page.deleteTuple(t);
+        getFreeSpaceMap().setFull(pid.getPageNumber(), isFull(page));
+        return Collections.singletonList(page);
+    }
+
+    // see DbFile.java for javadocs
+    public DbFileIterator iterator(TransactionId tid) {
+        return new HeapFileIterator(this, tid);
+    }
+}
@@ -0,0 +1,400 @@
+package simpledb.storage;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.transaction.TransactionId;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * SlottedHeapPage is a page of a {@link SlottedHeapFile}. A {@link HeapPage}
+ * gives every tuple a slot of the largest size its TupleDesc allows, so that
+ * a string always takes Type.STRING_LEN + 4 bytes; a SlottedHeapPage stores
+ * each tuple in just the bytes it needs.
+ * <p>
+ * The page starts with two unsigned shorts: the number of entries in the
+ * slot directory, and the offset of the first record. The slot directory
+ * follows, with the offset and the length of each slot's record as two
+ * unsigned shorts, both 0 for an empty slot. Records are stored from the
+ * end of the page towards the directory, and the free space is the gap
+ * between the two. A record holds its fields one after the other as a
+ * HeapPage slot does, except that strings are not padded. An all-zero page
+ * is empty.
+ * <p>
+ * Deletes compact the page at once: the records stored before the deleted
+ * one move up over it, so that the free space stays in one piece. A tuple
+ * keeps its slot, and so its RecordId, while it is on the page. Inserts
+ * reuse empty slots, and empty slots at the end of the directory are
+ * dropped.
+ * <p>
+ * Like a HeapPage, the page copies its bytes on write, so that iterators and
+ * the before image see the page as it was when they were created. The
+ * offsets are unsigned shorts, so pages may be at most 64KB.
+ *
+ * @see SlottedHeapFile
+ */
+public class SlottedHeapPage implements Page, Iterable<Tuple> {
+
+    // the number of slots and the offset of the first record
+    private static final int HEADER_SIZE = 4;
+    /**
+     * The bytes of the slot directory taken by each slot.
+     */
+    public static final int SLOT_SIZE = 4;
+
+    final HeapPageId pid;
+    final TupleDesc td;
+    private byte[] data; // changed under this
+    // whether anything besides this page may refer to data
+    private boolean shared; // protected by this
+    private volatile byte[] oldData;
+    private TransactionId dirtyTrans; // protected by this
+    private volatile long lsn = LogFile.NO_LSN;
+
+    /**
+     * Create a SlottedHeapPage from a set of bytes of data read from disk,
+     * in the format described above.
+     * <p>
+     * The page takes over the array without copying it, and never changes
+     * it; the caller must not change it either.
+     */
+    public SlottedHeapPage(HeapPageId id, byte[] data) {
+        if (BufferPool.getPageSize() > 0x10000) {
+            throw new IllegalStateException("slotted pages can be at most 64KB");
+        }
+        this.pid = id;
+        this.td = Database.getCatalog().getTupleDesc(id.getTableId());
+        this.data = data.length >= BufferPool.getPageSize() ? data : Arrays.copyOf(data, BufferPool.getPageSize());
+        this.shared = true;
+        this.oldData = this.data;
+    }
+
+    // another version of a page, sharing the bytes and the layout
+    private SlottedHeapPage(SlottedHeapPage page, byte[] data) {
+        this.pid = page.pid;
+        this.td = page.td;
+        this.data = data;
+        this.shared = true;
+        this.oldData = data;
+    }
+
+    private static int getShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    private static void putShort(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >> 8);
+        data[pos + 1] = (byte) value;
+    }
+
+    private static int getInt(byte[] data, int pos) {
+        return (getShort(data, pos) << 16) | getShort(data, pos + 2);
+    }
+
+    private static int numSlots(byte[] data) {
+        return getShort(data, 0);
+    }
+
+    // 0 stands for the end of the page, which a 64KB page cannot store
+    private static int recordStart(byte[] data) {
+        int start = getShort(data, 2);
+        return start == 0 ? BufferPool.getPageSize() : start;
+    }
+
+    private static void setRecordStart(byte[] data, int start) {
+        putShort(data, 2, start == BufferPool.getPageSize() ? 0 : start);
+    }
+
+    // the position of a slot's entry in the directory
+    private static int slotPos(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static boolean isUsed(byte[] data, int slot) {
+        return slot < numSlots(data) && getShort(data, slotPos(slot)) != 0;
+    }
+
+    /**
+     * @return the PageId associated with this page.
+     */
+    public HeapPageId getId() {
+        return this.pid;
+    }
+
+    // the bytes to change, copied first if anything else may refer to them
+    private byte[] writableData() {
+        if (this.shared) {
+            this.data = this.data.clone();
+            this.shared = false;
+        }
+        return this.data;
+    }
+
+    /**
+     * @return the number of bytes a tuple takes on this page, without its
+     *         slot
+     */
+    public int getRecordSize(Tuple t) {
+        int size = 0;
+        for (int i = 0; i < this.td.numFields(); i++) {
+            if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                size += 4 + Math.min(((StringField) t.getField(i)).getValue().length(), Type.STRING_LEN);
+            } else {
+                size += this.td.getFieldType(i).getLen();
+            }
+        }
+        return size;
+    }
+
+    // the fields one after the other, strings without padding
+    private byte[] encode(Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(getRecordSize(t));
+        DataOutputStream dos = new DataOutputStream(baos);
+        try {
+            for (int i = 0; i < this.td.numFields(); i++) {
+                Field f = t.getField(i);
+                if (this.td.getFieldType(i) == Type.STRING_TYPE) {
+                    String s = ((StringField) f).getValue();
+                    if (s.length() > Type.STRING_LEN) {
+                        s = s.substring(0, Type.STRING_LEN);
+                    }
+                    dos.writeInt(s.length());
+                    dos.writeBytes(s);
+                } else {
+                    f.serialize(dos);
+                }
+            }
+        } catch (IOException e) {
+            // this really shouldn't happen
+            e.printStackTrace();
+        }
+        return baos.toByteArray();
+    }
+
+    private Tuple decode(byte[] data, int slot) {
+        Tuple t = new Tuple(this.td);
+        t.setRecordId(new RecordId(this.pid, slot));
+        int offset = getShort(data, slotPos(slot));
+        for (int i = 0; i < this.td.numFields(); i++) {
+            Type type = this.td.getFieldType(i);
+            t.setField(i, type.parse(data, offset));
+            offset += type == Type.STRING_TYPE ? 4 + getInt(data, offset) : type.getLen();
+        }
+        return t;
+    }
+
+    /**
+     * Generates a byte array representing the contents of this page.
+     * Used to serialize this page to disk.
+     * <p>
+     * The invariant here is that it should be possible to pass the byte
+     * array generated by getPageData to the SlottedHeapPage constructor and
+     * have it produce an identical SlottedHeapPage object.
+     *
+     * @return A byte array correspond to the bytes of this page.
+     */
+    public synchronized byte[] getPageData() {
+        return this.data.clone();
+    }
+
+    /**
+     * Static method to generate a byte array corresponding to an empty
+     * SlottedHeapPage.
+     *
+     * @return The returned ByteArray.
+     */
+    public static byte[] createEmptyPageData() {
+        return new byte[BufferPool.getPageSize()]; //all 0
+    }
+
+    /**
+     * Return a view of this page before it was modified
+     * -- used by recovery
+     */
+    public SlottedHeapPage getBeforeImage() {
+        return new SlottedHeapPage(this, this.oldData);
+    }
+
+    public void setBeforeImage() {
+        byte[] data;
+        synchronized (this) {
+            this.shared = true;
+            data = this.data;
+        }
+        this.oldData = data;
+    }
+
+    /**
+     * @return the number of free bytes between the slot directory and the
+     *         records
+     */
+    public synchronized int getFreeSpace() {
+        return recordStart(this.data) - slotPos(numSlots(this.data));
+    }
+
+    /**
+     * @return true if the tuple fits on this page
+     */
+    public synchronized boolean hasRoomFor(Tuple t) {
+        int numSlots = numSlots(this.data);
+        int slot = 0;
+        while (slot < numSlots && isUsed(this.data, slot)) {
+            slot++;
+        }
+        return getRecordSize(t) + (slot == numSlots ? SLOT_SIZE : 0) <= getFreeSpace();
+    }
+
+    /**
+     * Adds the specified tuple to the page; the tuple should be updated to
+     * reflect that it is now stored on this page.
+     *
+     * @param t The tuple to add.
+     * @throws DbException if the tuple does not fit on the page or tupledesc
+     *                     is mismatch.
+     */
+    public synchronized void insertTuple(Tuple t) throws DbException {
+        if (!t.getTupleDesc().equals(this.td))
+            throw new DbException("TupleDesc is mismatch");
+        if (!hasRoomFor(t))
+            throw new DbException("The page is full");
+        byte[] record = encode(t);
+        byte[] data = writableData();
+        int numSlots = numSlots(data);
+        int slot = 0;
+        while (slot < numSlots && isUsed(data, slot)) {
+            slot++;
+        }
+        int offset = recordStart(data) - record.length;
+        System.arraycopy(record, 0, data, offset, record.length);
+        putShort(data, slotPos(slot), offset);
+        putShort(data, slotPos(slot) + 2, record.length);
+        setRecordStart(data, offset);
+        if (slot == numSlots) {
+            putShort(data, 0, numSlots + 1);
+        }
+        t.setRecordId(new RecordId(this.pid, slot));
+    }
+
+    /**
+     * Delete the specified tuple from the page, moving the records before it
+     * up so that the free space stays in one piece.
+     *
+     * @param t The tuple to delete
+     * @throws DbException if this tuple is not on this page, or tuple slot is
+     *                     already empty.
+     */
+    public synchronized void deleteTuple(Tuple t) throws DbException {
+        RecordId rid = t.getRecordId();
+        if (rid == null || !this.pid.equals(rid.getPageId()) || !isUsed(this.data, rid.getTupleNumber()))
+            throw new DbException("Tuple is not on this page, or tuple slot is already empty");
+        byte[] data = writableData();
+        int slot = rid.getTupleNumber();
+        int offset = getShort(data, slotPos(slot));
+        int len = getShort(data, slotPos(slot) + 2);
+        int start = recordStart(data);
+        System.arraycopy(data, start, data, start + len, offset - start);
+        Arrays.fill(data, start, start + len, (byte) 0);
+        int numSlots = numSlots(data);
+        for (int i = 0; i < numSlots; i++) {
+            int other = getShort(data, slotPos(i));
+            if (other != 0 && other < offset) {
+                putShort(data, slotPos(i), other + len);
+            }
+        }
+        putShort(data, slotPos(slot), 0);
+        putShort(data, slotPos(slot) + 2, 0);
+        setRecordStart(data, start + len);
+        while (numSlots > 0 && !isUsed(data, numSlots - 1)) {
+            numSlots--;
+        }
+        putShort(data, 0, numSlots);
+    }
+
+    /**
+     * Marks this page as dirty/not dirty and record that transaction
+     * that did the dirtying
+     */
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
+        this.dirtyTrans = dirty ? tid : null;
+    }
+
+    /**
+     * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
+     */
+    public synchronized TransactionId isDirty() {
+        return this.dirtyTrans;
+    }
+
+    public long getLsn() {
+        return this.lsn;
+    }
+
+    public void setLsn(long lsn) {
+        this.lsn = lsn;
+    }
+
+    /**
+     * Returns the number of tuples on this page.
+     */
+    public synchronized int getNumTuples() {
+        int count = 0;
+        for (int i = 0; i < numSlots(this.data); i++) {
+            if (isUsed(this.data, i)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns true if associated slot on this page is filled.
+     */
+    public synchronized boolean isSlotUsed(int i) {
+        return isUsed(this.data, i);
+    }
+
+    /**
+     * @return an iterator over all tuples on this page (calling remove on this iterator throws an UnsupportedOperationException)
+     *         (note that this iterator shouldn't return tuples in empty slots!)
+     */
+    public Iterator<Tuple> iterator() {
+        byte[] snapshot;
+        synchronized (this) {
+            this.shared = true;
+            snapshot = this.data;
+        }
+        int numSlots = numSlots(snapshot);
+        return new Iterator<>() {
+            private int next = nextUsed(0);
+
+            // the first used slot from slot on, or numSlots
+            private int nextUsed(int slot) {
+                while (slot < numSlots && !isUsed(snapshot, slot)) {
+                    slot++;
+                }
+                return slot;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return this.next < numSlots;
+            }
+
+            @Override
+            public Tuple next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int slot = this.next;
+                this.next = nextUsed(slot + 1);
+                return decode(snapshot, slot);
+            }
+        };
+    }
+}
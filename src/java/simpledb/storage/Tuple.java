@@ -1,5 +1,7 @@
 package simpledb.storage;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -10,6 +12,12 @@ import java.util.List;
  * Tuple maintains information about the contents of a tuple. Tuples have a
  * specified schema specified by a TupleDesc object and contain Field objects
  * with the data for each field.
+ * <p>
+ * A tuple read from a page keeps a reference to the page's bytes and decodes
+ * each field the first time it is asked for, so that a scan that only looks
+ * at a few fields of each tuple, say to filter them, never decodes the rest.
+ * The page copies its bytes before it changes them, so a tuple keeps the
+ * values it was read with.
  */
 public class Tuple implements Serializable {
 
@@ -17,6 +25,10 @@ public class Tuple implements Serializable {
     private TupleDesc tupleDesc;
     private RecordId recordId;
     private final List<Field> fields;
+    // the serialized tuple and its layout, until every field is decoded
+    private transient byte[] data;
+    private transient int offset;
+    private transient TupleDesc layout;
 
     /**
      * Create a new tuple with the specified schema (type).
@@ -28,7 +40,22 @@ public class Tuple implements Serializable {
         // TODO: some code goes here
         this.tupleDesc = td;
         this.recordId = null;
-        this.fields = new ArrayList<>(Collections.nCopies(this.tupleDesc.getSize(), null));
+        this.fields = new ArrayList<>(Collections.nCopies(this.tupleDesc.numFields(), null));
+    }
+
+    /**
+     * Create a tuple whose fields are decoded from serialized bytes when
+     * they are first read.
+     *
+     * @param data   the bytes, which must not change any more
+     * @param offset where the tuple starts in data
+     */
+    Tuple(TupleDesc td, RecordId rid, byte[] data, int offset) {
+        this(td);
+        this.recordId = rid;
+        this.data = data;
+        this.offset = offset;
+        this.layout = td;
     }
 
     /**
@@ -79,7 +106,27 @@ public class Tuple implements Serializable {
         // TODO: some code goes here
         assert(i >= 0);
         assert(i < this.fields.size());
-        return this.fields.get(i);
+        Field f = this.fields.get(i);
+        if (f == null && this.data != null) {
+            // Fields are immutable, so a racing thread decoding the same one
+            // is harmless
+            f = this.layout.getFieldType(i).parse(this.data, this.offset + this.layout.getOffset(i));
+            this.fields.set(i, f);
+        }
+        return f;
+    }
+
+    private void decodeAll() {
+        if (this.data != null) {
+            for (int i = 0; i < this.fields.size(); i++) {
+                getField(i);
+            }
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        decodeAll();
+        out.defaultWriteObject();
     }
 
     /**
@@ -93,6 +140,7 @@ public class Tuple implements Serializable {
     public String toString() {
         // TODO: some code goes here
         StringBuilder result = new StringBuilder();
+        decodeAll();
         for(int i = 0; i < this.tupleDesc.numFields(); i++) {
             result.append(fields.get(i) != null ? fields.get(i).toString() : "null");
             if (i != this.tupleDesc.numFields() - 1) {
@@ -107,6 +155,7 @@ public class Tuple implements Serializable {
      */
     public Iterator<Field> fields() {
         // TODO: some code goes here
+        decodeAll();
         return this.fields.iterator();
     }
 
@@ -19,6 +19,8 @@ public class TupleDesc implements Serializable {
     private final Type[] types;
     private final String[] fields;
     private final int numFields;
+    // the offset of every field in a serialized tuple, and its size at the end
+    private final int[] offsets;
 
     /**
      * A help class to facilitate organizing the information of each field
@@ -83,6 +85,7 @@ public class TupleDesc implements Serializable {
         for (int i = 0; i < this.numFields; i++) {
             this.tdItems.add(new TDItem(typeAr[i], fieldAr[i]));
         }
+        this.offsets = offsetsOf(typeAr);
     }
 
     /**
@@ -102,6 +105,15 @@ public class TupleDesc implements Serializable {
         for (int i = 0; i < this.numFields; i++) {
             this.tdItems.add(new TDItem(typeAr[i], null));
         }
+        this.offsets = offsetsOf(typeAr);
+    }
+
+    private static int[] offsetsOf(Type[] typeAr) {
+        int[] offsets = new int[typeAr.length + 1];
+        for (int i = 0; i < typeAr.length; i++) {
+            offsets[i + 1] = offsets[i] + typeAr[i].getLen();
+        }
+        return offsets;
     }
 
     /**
@@ -172,11 +184,16 @@ public class TupleDesc implements Serializable {
     public int getSize() {
         // TODO: some code goes here
 //        return this.tdItems.stream().map(TDItem::getFieldType).mapToInt(Type::getLen).sum();
-        int sum = 0;
-        for(int i = 0; i < tdItems.size(); ++i) {
-            sum += tdItems.get(i).fieldType.getLen();
-        }
-        return sum;
+        return this.offsets[this.numFields];
+    }
+
+    /**
+     * @param i index of the field. It must be a valid index.
+     * @return the offset (in bytes) of the ith field in tuples corresponding
+     *         to this TupleDesc.
+     */
+    public int getOffset(int i) {
+        return this.offsets[i];
     }
 
     /**
@@ -0,0 +1,149 @@
+package simpledb.storage;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha). Pages enter a FIFO queue A1in; a page
+ * pushed out of A1in is remembered (by id only) in the ghost queue A1out, and
+ * only a page that is referenced again while it is in A1out is promoted to
+ * the main LRU queue Am. A sequential scan therefore cycles through A1in and
+ * leaves the hot pages in Am, such as B+ tree internal pages, alone.
+ * <p>
+ * Hits on Am pages only set a reference bit; the LRU end of Am gives a
+ * referenced page a second chance by moving it to the MRU end, so hits never
+ * take the policy lock and eviction stays O(1) amortized.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private static class Entry {
+        final PageId pid;
+        volatile boolean referenced;
+        boolean hot; // in Am rather than A1in; protected by the policy
+
+        Entry(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    private final int maxIn;
+    private final Map<PageId, Entry> resident;
+    private final LinkedHashSet<Entry> a1in; // protected by this
+    private final LinkedHashSet<Entry> am; // protected by this
+    private final Map<PageId, Boolean> a1out; // protected by this
+
+    /**
+     * Create a 2Q policy with the usual tuning: A1in holds a quarter of the
+     * pool and A1out remembers half as many pages as the pool holds.
+     *
+     * @param capacity the expected number of resident pages
+     */
+    public TwoQueuePolicy(int capacity) {
+        this(capacity, Math.max(1, capacity / 4), Math.max(1, capacity / 2));
+    }
+
+    /**
+     * @param capacity the expected number of resident pages
+     * @param maxIn    the target size of A1in
+     * @param maxOut   the number of page ids remembered in A1out
+     */
+    public TwoQueuePolicy(int capacity, int maxIn, final int maxOut) {
+        this.maxIn = maxIn;
+        this.resident = new ConcurrentHashMap<>(Math.max(16, capacity));
+        this.a1in = new LinkedHashSet<>();
+        this.am = new LinkedHashSet<>();
+        this.a1out = new LinkedHashMap<PageId, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<PageId, Boolean> eldest) {
+                return size() > maxOut;
+            }
+        };
+    }
+
+    public synchronized void pageLoaded(PageId pid) {
+        if (resident.containsKey(pid)) {
+            return;
+        }
+        Entry e = new Entry(pid);
+        if (a1out.remove(pid) != null) {
+            e.hot = true;
+            am.add(e);
+        } else {
+            a1in.add(e);
+        }
+        resident.put(pid, e);
+    }
+
+    public void pageAccessed(PageId pid) {
+        Entry e = resident.get(pid);
+        if (e != null) {
+            e.referenced = true;
+        }
+    }
+
+    public synchronized void pageRemoved(PageId pid) {
+        Entry e = resident.remove(pid);
+        if (e != null) {
+            (e.hot ? am : a1in).remove(e);
+        }
+    }
+
+    public synchronized PageId chooseVictim(Predicate<PageId> evictable) {
+        Entry victim;
+        if (a1in.size() > maxIn) {
+            victim = evictFromIn(evictable);
+            if (victim == null) {
+                victim = evictFromMain(evictable);
+            }
+        } else {
+            victim = evictFromMain(evictable);
+            if (victim == null) {
+                victim = evictFromIn(evictable);
+            }
+        }
+        if (victim == null) {
+            return null;
+        }
+        resident.remove(victim.pid);
+        if (!victim.hot) {
+            a1out.put(victim.pid, Boolean.TRUE);
+        }
+        return victim.pid;
+    }
+
+    /**
+     * A1in is a plain FIFO: hits while a page is in A1in are treated as
+     * correlated references and do not matter.
+     */
+    private Entry evictFromIn(Predicate<PageId> evictable) {
+        Iterator<Entry> it = a1in.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (evictable.test(e.pid)) {
+                it.remove();
+                return e;
+            }
+        }
+        return null;
+    }
+
+    private Entry evictFromMain(Predicate<PageId> evictable) {
+        // every entry is looked at most twice: once to clear its reference bit
+        // and once more as a candidate
+        int steps = 2 * am.size();
+        while (steps-- > 0) {
+            Entry e = am.iterator().next();
+            am.remove(e);
+            if (!e.referenced && evictable.test(e.pid)) {
+                return e;
+            }
+            e.referenced = false;
+            am.add(e);
+        }
+        return null;
+    }
+}
@@ -0,0 +1,468 @@
+package simpledb.storage;
+
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+/**
+ * VersionStore keeps the committed versions of buffered pages that snapshot
+ * transactions may still read, so that they read a consistent state of the
+ * database without taking any lock.
+ * <p>
+ * Versions are whole page objects and are never copied for readers. The
+ * first transaction that locks a page for writing swaps a private copy into
+ * the page's frame (see {@link #capture}); the page object it replaced stays
+ * untouched and serves as the committed version while the page is written.
+ * A commit stamps the pages it captured with the next value of a commit
+ * counter and keeps the versions they replaced, newest first, in the page's
+ * chain.
+ * <p>
+ * A snapshot reads as of the newest timestamp below every commit that is
+ * still being published, and takes the newest version of every page that
+ * is not newer than that. A version is dropped once no running snapshot can
+ * read it, i.e. once the version that replaced it is older than the oldest
+ * snapshot.
+ * <p>
+ * Optimistic transactions (see {@link #beginOptimistic}) read like snapshots,
+ * and write private copies of the pages they change. {@link #validate} checks
+ * that no commit changed a page they read since they started; only then are
+ * their copies installed and committed like the pages of any writer.
+ * <p>
+ * Chains are locked before the monitor of a frame, and never the other way
+ * round.
+ *
+ * @Threadsafe
+ */
+public class VersionStore {
+
+    /**
+     * A committed version of a page, valid from timestamp ts on.
+     */
+    private static class Version {
+        final long ts;
+        final Page page;
+
+        Version(long ts, Page page) {
+            this.ts = ts;
+            this.page = page;
+        }
+    }
+
+    /**
+     * The versions of one page; every field is protected by the monitor of
+     * the chain.
+     */
+    private static class Chain {
+        final PageId pid;
+        // commit timestamp of the cached committed version
+        long committed;
+        // the committed version while transactions write the page, which
+        // then holds their changes
+        Page uncommitted;
+        final Set<TransactionId> writers = new HashSet<>();
+        // replaced versions, newest first
+        final Deque<Version> older = new ArrayDeque<>();
+        boolean removed;
+
+        Chain(PageId pid) {
+            this.pid = pid;
+        }
+    }
+
+    /**
+     * Looks up the cached version of a page, reading it in if needed.
+     */
+    interface PageSource {
+        Page getPage(PageId pid) throws DbException;
+    }
+
+    private volatile boolean enabled;
+    private final Map<PageId, Chain> chains = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Set<PageId>> captured = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+    // the pages optimistic transactions read, and the copies they write
+    private final Map<TransactionId, Set<PageId>> readSets = new ConcurrentHashMap<>();
+    private final Map<TransactionId, Map<PageId, Page>> writeSets = new ConcurrentHashMap<>();
+    // commit timestamps taken by validation, released by commit or abort
+    private final Map<TransactionId, Long> validated = new ConcurrentHashMap<>();
+    // chains with older versions, which are dropped by collect
+    private final Set<Chain> versioned = ConcurrentHashMap.newKeySet();
+
+    // protected by this
+    private long clock;
+    private final TreeSet<Long> publishing = new TreeSet<>();
+
+    /**
+     * Turn versioning on or off. It must be on before the transactions whose
+     * writes snapshots must not see start, and it may only be turned off
+     * while no transaction runs.
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return this.enabled;
+    }
+
+    /**
+     * @return true if the transaction is a running snapshot
+     */
+    public boolean isSnapshot(TransactionId tid) {
+        return this.snapshots.containsKey(tid);
+    }
+
+    /**
+     * Start a snapshot transaction, which reads the database as of the last
+     * commit that has been published completely.
+     *
+     * @return the timestamp the snapshot reads at
+     */
+    public synchronized long beginSnapshot(TransactionId tid) {
+        if (!this.enabled) {
+            throw new IllegalStateException("versioning is not enabled");
+        }
+        long ts = published();
+        this.snapshots.put(tid, ts);
+        return ts;
+    }
+
+    /**
+     * Start an optimistic transaction, which reads like a snapshot that
+     * starts now and keeps its writes private until it is validated.
+     *
+     * @return the timestamp the transaction reads at
+     */
+    public synchronized long beginOptimistic(TransactionId tid) {
+        long ts = beginSnapshot(tid);
+        this.readSets.put(tid, ConcurrentHashMap.newKeySet());
+        this.writeSets.put(tid, new ConcurrentHashMap<>());
+        return ts;
+    }
+
+    /**
+     * @return true if the transaction is a running optimistic transaction
+     */
+    public boolean isOptimistic(TransactionId tid) {
+        return this.readSets.containsKey(tid);
+    }
+
+    /**
+     * End a snapshot or optimistic transaction and drop the versions only
+     * it could read.
+     *
+     * @return false if the transaction is neither
+     */
+    boolean endSnapshot(TransactionId tid) {
+        this.readSets.remove(tid);
+        this.writeSets.remove(tid);
+        if (this.snapshots.remove(tid) == null) {
+            return false;
+        }
+        collect();
+        return true;
+    }
+
+    /**
+     * @return the number of replaced page versions kept for snapshots
+     */
+    public int numVersions() {
+        int versions = 0;
+        for (Chain c : this.versioned) {
+            synchronized (c) {
+                versions += c.older.size();
+            }
+        }
+        return versions;
+    }
+
+    // the newest timestamp whose commits are all published
+    private long published() {
+        return this.publishing.isEmpty() ? this.clock : this.publishing.first() - 1;
+    }
+
+    private synchronized long nextTimestamp() {
+        long ts = ++this.clock;
+        this.publishing.add(ts);
+        return ts;
+    }
+
+    private synchronized void finishCommit(long ts) {
+        this.publishing.remove(ts);
+        notifyAll();
+    }
+
+    // the oldest timestamp any running or future snapshot reads at
+    private synchronized long horizon() {
+        long horizon = published();
+        for (long ts : this.snapshots.values()) {
+            horizon = Math.min(horizon, ts);
+        }
+        return horizon;
+    }
+
+    /**
+     * Make the page of a frame private to the writers of the page, on behalf
+     * of a transaction that just locked it for writing. The first writer
+     * swaps a copy of the page into the frame, and the page it replaced
+     * becomes the committed version.
+     *
+     * @param replacement the page to install instead of a copy, or null
+     * @return the page the transaction must change, or null if the frame was
+     * evicted and must be looked up again
+     */
+    Page capture(TransactionId tid, BufferFrame frame, Page replacement) throws DbException {
+        PageId pid = frame.getId();
+        while (true) {
+            Chain c = this.chains.computeIfAbsent(pid, Chain::new);
+            synchronized (c) {
+                if (c.removed) {
+                    continue;
+                }
+                synchronized (frame) {
+                    if (frame.isEvicted()) {
+                        removeIfIdle(c);
+                        return null;
+                    }
+                    Page live = frame.getPage();
+                    if (c.writers.isEmpty() || replacement != null) {
+                        Page page = replacement != null ? replacement : copyOf(live);
+                        page.setLsn(live.getLsn());
+                        frame.setPage(page);
+                    }
+                    if (c.writers.isEmpty()) {
+                        c.uncommitted = live;
+                    }
+                    if (c.writers.add(tid)) {
+                        this.captured.computeIfAbsent(tid, k -> ConcurrentHashMap.newKeySet()).add(pid);
+                    }
+                    return frame.getPage();
+                }
+            }
+        }
+    }
+
+    private static Page copyOf(Page page) throws DbException {
+        try {
+            return PageTypeRegistry.newPage(PageTypeRegistry.tagOf(page), page.getId(), page.getPageData());
+        } catch (IOException e) {
+            throw new DbException("could not copy page " + page.getId() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Read a page on behalf of an optimistic transaction, which sees its own
+     * writes over its snapshot. A page requested for writing is copied, and
+     * the copy stays private to the transaction.
+     */
+    Page readOptimistic(TransactionId tid, PageId pid, Permissions perm, PageSource live) throws DbException {
+        Map<PageId, Page> writes = this.writeSets.get(tid);
+        Page page = writes.get(pid);
+        if (page != null) {
+            return page;
+        }
+        this.readSets.get(tid).add(pid);
+        page = read(tid, pid, live);
+        if (perm == Permissions.READ_WRITE) {
+            page = copyOf(page);
+            writes.put(pid, page);
+        }
+        return page;
+    }
+
+    /**
+     * @return the private pages of an optimistic transaction
+     */
+    Map<PageId, Page> getWrites(TransactionId tid) {
+        return this.writeSets.get(tid);
+    }
+
+    /**
+     * Validate an optimistic transaction, which locked every page it writes
+     * exclusively. It takes its commit timestamp, waits until all earlier
+     * commits are published, and then checks that none of them changed a
+     * page it read after it started.
+     *
+     * @throws TransactionAbortedException if such a commit exists
+     */
+    void validate(TransactionId tid) throws TransactionAbortedException {
+        long start = this.snapshots.get(tid);
+        long ts;
+        synchronized (this) {
+            ts = nextTimestamp();
+            boolean interrupted = false;
+            while (this.publishing.first() != ts) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (PageId pid : this.readSets.get(tid)) {
+            Chain c = this.chains.get(pid);
+            if (c == null) {
+                continue;
+            }
+            synchronized (c) {
+                if (!c.removed && c.committed > start) {
+                    finishCommit(ts);
+                    throw new TransactionAbortedException();
+                }
+            }
+        }
+        this.validated.put(tid, ts);
+    }
+
+    /**
+     * Read a page on behalf of a snapshot transaction.
+     *
+     * @param tid  the snapshot transaction
+     * @param pid  the page to read
+     * @param live looks up the cached version of the page
+     * @return the newest version of the page the snapshot may see
+     */
+    Page read(TransactionId tid, PageId pid, PageSource live) throws DbException {
+        Long ts = this.snapshots.get(tid);
+        if (ts == null) {
+            throw new DbException("transaction " + tid + " is not a running snapshot");
+        }
+        while (true) {
+            // the chain keeps writers from swapping the page while it is read
+            Chain c = this.chains.computeIfAbsent(pid, Chain::new);
+            synchronized (c) {
+                if (c.removed) {
+                    continue;
+                }
+                try {
+                    if (c.committed <= ts) {
+                        return c.uncommitted != null ? c.uncommitted : live.getPage(pid);
+                    }
+                    for (Version v : c.older) {
+                        if (v.ts <= ts) {
+                            return v.page;
+                        }
+                    }
+                    throw new IllegalStateException("version of " + pid + " at " + ts + " was dropped");
+                } finally {
+                    removeIfIdle(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Publish the pages a committing transaction wrote, whose changes have
+     * just become their committed versions. Pages that other transactions
+     * still write under record locks keep their committed records apart.
+     *
+     * @param tid  the committing transaction
+     * @param live looks up the cached version of a page, or returns null if
+     *             it is not cached
+     */
+    void commit(TransactionId tid, Function<PageId, Page> live) {
+        Long validatedTs = this.validated.remove(tid);
+        Set<PageId> pids = this.captured.remove(tid);
+        if (pids == null) {
+            if (validatedTs != null) {
+                finishCommit(validatedTs);
+            }
+            return;
+        }
+        long ts = validatedTs != null ? validatedTs : nextTimestamp();
+        for (PageId pid : pids) {
+            Chain c = this.chains.get(pid);
+            synchronized (c) {
+                c.older.addFirst(new Version(c.committed, c.uncommitted));
+                c.committed = ts;
+                c.writers.remove(tid);
+                c.uncommitted = null;
+                if (!c.writers.isEmpty()) {
+                    Page page = live.apply(pid);
+                    if (page instanceof HeapPage) {
+                        c.uncommitted = ((HeapPage) page).getBeforeImage();
+                    }
+                }
+                this.versioned.add(c);
+            }
+        }
+        finishCommit(ts);
+        collect();
+    }
+
+    /**
+     * Forget the pages an aborting transaction wrote, once their changes
+     * have been rolled back.
+     */
+    void abort(TransactionId tid) {
+        Long validatedTs = this.validated.remove(tid);
+        if (validatedTs != null) {
+            finishCommit(validatedTs);
+        }
+        Set<PageId> pids = this.captured.remove(tid);
+        if (pids == null) {
+            return;
+        }
+        for (PageId pid : pids) {
+            Chain c = this.chains.get(pid);
+            synchronized (c) {
+                c.writers.remove(tid);
+                if (c.writers.isEmpty()) {
+                    c.uncommitted = null;
+                }
+                removeIfIdle(c);
+            }
+        }
+    }
+
+    /**
+     * Drop the versions no snapshot can read any more, and the chains of
+     * pages that are neither versioned nor written.
+     */
+    private void collect() {
+        long horizon = horizon();
+        for (Iterator<Chain> it = this.versioned.iterator(); it.hasNext(); ) {
+            Chain c = it.next();
+            synchronized (c) {
+                // a version is readable up to the timestamp of the next one
+                long validTo = c.committed;
+                Iterator<Version> versions = c.older.iterator();
+                while (versions.hasNext() && validTo > horizon) {
+                    validTo = versions.next().ts;
+                }
+                while (versions.hasNext()) {
+                    versions.next();
+                    versions.remove();
+                }
+                if (c.older.isEmpty()) {
+                    it.remove();
+                    removeIfIdle(c);
+                }
+            }
+        }
+    }
+
+    // drop a chain that neither keeps versions nor has writers; the caller
+    // holds the monitor of c
+    private void removeIfIdle(Chain c) {
+        if (!c.removed && c.writers.isEmpty() && c.older.isEmpty()) {
+            c.removed = true;
+            this.chains.remove(c.pid, c);
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package simpledb.transaction;
+
+/**
+ * Exception that is thrown when a transaction waited for a lock longer than
+ * its lock timeout allows, and has aborted.
+ */
+public class LockTimeoutException extends TransactionAbortedException {
+    private static final long serialVersionUID = 1L;
+
+    public LockTimeoutException() {
+    }
+}
@@ -1,6 +1,7 @@
 package simpledb.transaction;
 
 import simpledb.common.Database;
+import simpledb.common.DbException;
 
 import java.io.IOException;
 
@@ -12,11 +13,25 @@ import java.io.IOException;
 public class Transaction {
     private final TransactionId tid;
     volatile boolean started = false;
+    private volatile boolean snapshot = false;
+    private volatile boolean optimistic = false;
 
     public Transaction() {
         tid = new TransactionId();
     }
 
+    /**
+     * Create a transaction that retries an aborted one. It keeps the age of
+     * the aborted transaction, so that under the timestamp based deadlock
+     * policies it grows older with every retry and eventually wins.
+     *
+     * @param aborted the transaction to retry
+     * @see simpledb.common.DeadlockPolicy
+     */
+    public Transaction(Transaction aborted) {
+        tid = new TransactionId(aborted.getId().getTimestamp());
+    }
+
     /**
      * Start the transaction running
      */
@@ -29,6 +44,45 @@ public class Transaction {
         }
     }
 
+    /**
+     * Start the transaction as a read-only snapshot: it reads the database
+     * as of the last commit before it started, without taking locks, and
+     * writes no log records. The buffer pool's version store must be enabled.
+     *
+     * @see simpledb.storage.VersionStore
+     */
+    public void startSnapshot() {
+        Database.getBufferPool().getVersionStore().beginSnapshot(tid);
+        snapshot = true;
+        started = true;
+    }
+
+    /**
+     * Start the transaction in optimistic mode: it takes no locks while it
+     * runs, reads the database as of its start, and keeps its writes private
+     * until it finishes with {@link #validateAndCommit}. The buffer pool's
+     * version store must be enabled.
+     *
+     * @see simpledb.storage.BufferPool#validate
+     */
+    public void startOptimistic() {
+        Database.getBufferPool().getVersionStore().beginOptimistic(tid);
+        optimistic = true;
+        start();
+    }
+
+    /**
+     * Bound how long the transaction waits for any one lock; when a wait
+     * takes longer, the lock request throws a {@link LockTimeoutException}
+     * and the transaction must abort.
+     *
+     * @param millis the longest wait in milliseconds, or 0 to wait forever
+     * @see simpledb.common.LockManager#setLockTimeout
+     */
+    public void setLockTimeout(long millis) {
+        Database.getBufferPool().getLockManager().setLockTimeout(tid, millis);
+    }
+
     public TransactionId getId() {
         return tid;
     }
@@ -37,6 +91,28 @@ public class Transaction {
      * Finish the transaction
      */
     public void commit() throws IOException {
+        if (optimistic) {
+            throw new IllegalStateException("optimistic transactions commit with validateAndCommit()");
+        }
+        transactionComplete(false);
+    }
+
+    /**
+     * Finish the transaction. An optimistic transaction is validated first;
+     * if a page it read changed since it started, it is aborted instead.
+     *
+     * @throws TransactionAbortedException if validation failed, and the
+     *                                     transaction was aborted
+     */
+    public void validateAndCommit() throws IOException, DbException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validate(tid);
+            } catch (TransactionAbortedException | DbException e) {
+                abort();
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -52,18 +128,19 @@ public class Transaction {
      */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
-            //write abort log record and rollback transaction
+        if (started && snapshot) {
+            // nothing to log or roll back
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             if (abort) {
+                //write abort log record and rollback transaction
                 Database.getLogFile().logAbort(tid); //does rollback too
-            }
-
-            // Release locks and flush pages if needed
-            Database.getBufferPool().transactionComplete(tid, !abort); // release locks
-
-            // write commit log record
-            if (!abort) {
-                Database.getLogFile().logCommit(tid);
+                Database.getBufferPool().transactionComplete(tid, false); // release locks
+            } else {
+                // flush pages if needed, and write the commit log record
+                // before the locks are released
+                Database.getBufferPool().commitTransaction(tid);
             }
 
             //setting this here means we could possibly write multiple abort records -- OK?
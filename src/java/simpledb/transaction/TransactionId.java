@@ -12,15 +12,38 @@ public class TransactionId implements Serializable {
 
     static final AtomicLong counter = new AtomicLong(0);
     final long myid;
+    final long timestamp;
 
     public TransactionId() {
         myid = counter.getAndIncrement();
+        timestamp = myid;
+    }
+
+    /**
+     * Create the ID of a transaction that is as old as the one that was
+     * given the timestamp, such as a retry of an aborted transaction. The
+     * ID itself is new.
+     *
+     * @param timestamp the timestamp of the older transaction
+     * @see #getTimestamp
+     */
+    public TransactionId(long timestamp) {
+        myid = counter.getAndIncrement();
+        this.timestamp = timestamp;
     }
 
     public long getId() {
         return myid;
     }
 
+    /**
+     * @return when the transaction started, in the order of TransactionIds;
+     *         a smaller timestamp is an older transaction
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (this == obj)
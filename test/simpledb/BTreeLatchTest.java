@@ -0,0 +1,162 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeChecker;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreePageId;
+import simpledb.index.BTreeRootPtrPage;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.IntField;
+import simpledb.storage.PageLatch;
+import simpledb.storage.Tuple;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.transaction.TransactionId;
+
+import java.util.HashMap;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class BTreeLatchTest extends SimpleDbTestBase {
+    private static final int WAIT_TIME = 200;
+
+    private BTreeFile bf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    /**
+     * Create a B+ tree with a root page over 100 full leaf pages, so that
+     * any insert splits a leaf and changes the root.
+     */
+    @Before public void setUp() throws Exception {
+        bf = BTreeUtility.createRandomBTreeFile(2, 50200, null, null, 0);
+        bp = Database.getBufferPool();
+        tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        bp.transactionComplete(tid);
+    }
+
+    private BTreePageId rootId() throws Exception {
+        return ((BTreeRootPtrPage) bp.readOptimistic(BTreeRootPtrPage.getId(bf.getId())).getPage()).getRootId();
+    }
+
+    private int count(TransactionId tid, Op op, int key) throws Exception {
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(op, new IntField(key)));
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private void insert(TransactionId tid, int key) throws Exception {
+        bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+    }
+
+    /**
+     * A latched page fails the optimistic reads taken before and during the
+     * latch, and only those.
+     */
+    @Test public void latchInvalidatesOptimisticReads() throws Exception {
+        BTreePageId rootId = rootId();
+        PageLatch before = bp.readOptimistic(rootId);
+        assertTrue(before.validate());
+
+        bp.getPage(tid, rootId, Permissions.READ_WRITE);
+        assertSame(before.getPage(), bp.latchPage(tid, rootId));
+        bp.latchPage(tid, rootId);
+        assertFalse(before.validate());
+        assertFalse(bp.readOptimistic(rootId).validate());
+
+        bp.unlatchPages(tid);
+        assertFalse(before.validate());
+        assertTrue(bp.readOptimistic(rootId).validate());
+    }
+
+    /**
+     * Searches lock the leaf pages they read, but neither the root pointer
+     * nor the internal pages on the way down.
+     */
+    @Test public void searchLocksOnlyLeaves() throws Exception {
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        Tuple first = it.next();
+        it.close();
+
+        BTreePageId leafId = new BTreePageId(bf.getId(),
+                first.getRecordId().getPageId().getPageNumber(), BTreePageId.LEAF);
+        assertTrue(bp.holdsLock(tid, leafId));
+        assertFalse(bp.holdsLock(tid, BTreeRootPtrPage.getId(bf.getId())));
+        assertFalse(bp.holdsLock(tid, rootId()));
+    }
+
+    /**
+     * A search goes through the root that an uncommitted split changed, as
+     * long as the leaves it reads are not part of the split.
+     */
+    @Test(timeout = 10000) public void searchPassesUncommittedSplit() throws Exception {
+        int key = BTreeUtility.MAX_RAND_VALUE - 1000;
+        int before = count(tid, Op.GREATER_THAN_OR_EQ, key);
+        bp.transactionComplete(tid);
+
+        TransactionId writer = new TransactionId();
+        insert(writer, 0);
+        assertTrue(bp.holdsLock(writer, rootId()));
+
+        tid = new TransactionId();
+        assertEquals(before, count(tid, Op.GREATER_THAN_OR_EQ, key));
+        assertFalse(bp.holdsLock(tid, rootId()));
+        bp.transactionComplete(writer);
+    }
+
+    /**
+     * A search that waits for the leaf of a split which is then rolled back
+     * starts over, and finds the tuples where the rollback left them.
+     */
+    @Test public void searchRestartsAfterAbortedSplit() throws Exception {
+        int before = count(tid, Op.EQUALS, 0);
+        bp.transactionComplete(tid);
+
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 10; i++) {
+            insert(writer, 0);
+        }
+
+        TransactionId reader = new TransactionId();
+        FutureTask<Integer> search = new FutureTask<>(() -> count(reader, Op.EQUALS, 0));
+        new Thread(search).start();
+        Thread.sleep(WAIT_TIME);
+        assertFalse(search.isDone());
+
+        bp.transactionComplete(writer, false);
+        assertEquals(before, (int) search.get(10, TimeUnit.SECONDS));
+        bp.transactionComplete(reader);
+
+        tid = new TransactionId();
+        BTreeChecker.checkRep(bf, tid, new HashMap<>(), false);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeLatchTest.class);
+    }
+}
@@ -347,6 +347,28 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeLeafPage.getBeforeImage() and setBeforeImage()
+	 */
+	@Test public void beforeImage() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, EXAMPLE_DATA, 0);
+		assertArrayEquals(EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+		page.deleteTuple(page.iterator().next());
+		byte[] deleted = page.getPageData();
+		assertFalse(Arrays.equals(EXAMPLE_DATA, deleted));
+		assertArrayEquals(EXAMPLE_DATA, page.getBeforeImage().getPageData());
+
+		// the before image is the page as it is when it is set, until the
+		// next change
+		page.setBeforeImage();
+		assertArrayEquals(deleted, page.getBeforeImage().getPageData());
+		page.insertTuple(BTreeUtility.getBTreeTuple(1, 2));
+		page.setRightSiblingId(new BTreePageId(pid.getTableId(), 2, BTreePageId.LEAF));
+		assertArrayEquals(deleted, page.getBeforeImage().getPageData());
+		assertFalse(Arrays.equals(deleted, page.getPageData()));
+	}
+
 	/**
 	 * JUnit suite target
 	 */
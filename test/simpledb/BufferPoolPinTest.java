@@ -0,0 +1,125 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Page;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolPinTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+    private TransactionId tid;
+
+    /**
+     * Create a three page heap file and a buffer pool that holds two pages.
+     */
+    @Before public void setUp() throws Exception {
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * 3, null, null);
+        assertEquals(3, hf.numPages());
+        bp = Database.resetBufferPool(2);
+        tid = new TransactionId();
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * Pinned pages stay in the pool; the pool refuses new pages instead.
+     */
+    @Test public void pinnedPagesAreNotEvicted() throws Exception {
+        Page first = bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        Page second = bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, page(2), Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+
+        bp.unpinPage(tid, page(0));
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+        assertSame(second, bp.getPage(tid, page(1), Permissions.READ_ONLY));
+        assertNotSame(first, bp.getPage(tid, page(0), Permissions.READ_ONLY));
+    }
+
+    /**
+     * A page pinned twice needs two unpins before it can be evicted.
+     */
+    @Test public void pinsAreCounted() throws Exception {
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+
+        bp.unpinPage(tid, page(0));
+        try {
+            bp.getPage(tid, page(2), Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+        bp.unpinPage(tid, page(0));
+        bp.getPage(tid, page(2), Permissions.READ_ONLY);
+    }
+
+    /**
+     * Completing a transaction releases the pins it still holds.
+     */
+    @Test public void transactionCompleteReleasesPins() throws Exception {
+        bp.pinPage(tid, page(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+
+        TransactionId other = new TransactionId();
+        bp.getPage(other, page(2), Permissions.READ_ONLY);
+        bp.transactionComplete(other);
+    }
+
+    /**
+     * A heap file iterator pins only the page it is reading.
+     */
+    @Test public void iteratorPinsCurrentPage() throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        for (int i = 0; i < 504 + 1; i++) {
+            assertTrue(it.hasNext());
+            it.next();
+        }
+
+        // the iterator is on page 1, so page 0 can make room for page 2
+        Page current = bp.getPage(tid, page(1), Permissions.READ_ONLY);
+        bp.pinPage(tid, page(2), Permissions.READ_ONLY);
+        assertSame(current, bp.getPage(tid, page(1), Permissions.READ_ONLY));
+        try {
+            bp.getPage(tid, page(0), Permissions.READ_ONLY);
+            fail("expected the pool to be full of pinned pages");
+        } catch (DbException e) {
+            // expected
+        }
+
+        it.close();
+        bp.getPage(tid, page(0), Permissions.READ_ONLY);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolPinTest.class);
+    }
+}
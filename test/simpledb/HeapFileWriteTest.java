@@ -90,6 +90,49 @@ public class HeapFileWriteTest extends TestUtil.CreateHeapFile {
         it.close();
     }
 
+    // fill two pages and put one tuple on a third
+    private void fillTwoPages(FreeSpaceMap fsm) throws Exception {
+        fsm.getFile().deleteOnExit();
+        for (int i = 0; i < 2 * 504 + 1; ++i) {
+            empty.insertTuple(tid, Utility.getHeapTuple(i, 2));
+        }
+        assertTrue(fsm.isFull(0));
+        assertTrue(fsm.isFull(1));
+        assertFalse(fsm.isFull(2));
+    }
+
+    /**
+     * Inserts go to the first page with a free slot, skipping full pages.
+     */
+    @Test public void insertReusesFreedSlots() throws Exception {
+        FreeSpaceMap fsm = empty.getFreeSpaceMap();
+        fillTwoPages(fsm);
+
+        DbFileIterator it = empty.iterator(tid);
+        it.open();
+        empty.deleteTuple(tid, it.next());
+        it.close();
+        assertFalse(fsm.isFull(0));
+
+        Tuple t = Utility.getHeapTuple(0, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(0, t.getRecordId().getPageId().getPageNumber());
+        assertTrue(fsm.isFull(0));
+        t = Utility.getHeapTuple(1, 2);
+        empty.insertTuple(tid, t);
+        assertEquals(2, t.getRecordId().getPageId().getPageNumber());
+        assertEquals(3, empty.numPages());
+    }
+
+    /**
+     * The free-space map outlives the HeapFile object.
+     */
+    @Test public void freeSpaceMapPersists() throws Exception {
+        fillTwoPages(empty.getFreeSpaceMap());
+        HeapFile reopened = new HeapFile(empty.getFile(), empty.getTupleDesc());
+        assertEquals(2, reopened.getFreeSpaceMap().nextFree(0));
+    }
+
     /**
      * JUnit suite target
      */
@@ -12,8 +12,10 @@ import simpledb.TestUtil.SkeletonFile;
 import simpledb.common.Database;
 import simpledb.common.DbException;
 import simpledb.common.Utility;
+import simpledb.storage.Field;
 import simpledb.storage.HeapPage;
 import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
 import simpledb.storage.Tuple;
 import simpledb.systemtest.SimpleDbTestBase;
 import simpledb.systemtest.SystemTestUtil;
@@ -131,6 +133,35 @@ public class HeapPageWriteTest extends SimpleDbTestBase {
         }
     }
 
+    /**
+     * Tuples and iterators read from a page keep what the page held when
+     * they were read, however the page changes afterwards.
+     */
+    @Test public void readsSurviveChanges() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        Iterator<Tuple> it = page.iterator();
+        Tuple first = it.next();
+        Field value = first.getField(1);
+        int count = 1;
+
+        page.deleteTuple(first);
+        page.insertTuple(Utility.getHeapTuple(new int[]{-1, -2}));
+        assertEquals(value, first.getField(1));
+        while (it.hasNext()) {
+            assertNotEquals(new IntField(-1), it.next().getField(0));
+            count++;
+        }
+        assertEquals(HeapPageReadTest.EXAMPLE_VALUES.length, count);
+
+        // the inserted tuple went to the first slot, and nothing else changed
+        Tuple replaced = page.iterator().next();
+        assertEquals(first.getRecordId(), replaced.getRecordId());
+        assertEquals(new IntField(-2), replaced.getField(1));
+        HeapPage copy = new HeapPage(pid, page.getPageData());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+        assertArrayEquals(HeapPageReadTest.EXAMPLE_DATA, page.getBeforeImage().getPageData());
+    }
+
     /**
      * JUnit suite target
      */
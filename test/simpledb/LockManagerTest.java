@@ -0,0 +1,656 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DeadlockPolicy;
+import simpledb.common.LockManager;
+import simpledb.common.LockMode;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageId;
+import simpledb.storage.RecordId;
+import simpledb.transaction.LockTimeoutException;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class LockManagerTest {
+
+    /** Time to wait before checking that a lock request is blocked, in ms */
+    private static final int TIMEOUT = 100;
+
+    private LockManager lm;
+    private PageId p0;
+    private PageId p1;
+
+    @Before public void setUp() {
+        lm = new LockManager();
+        p0 = new HeapPageId(1, 0);
+        p1 = new HeapPageId(1, 1);
+    }
+
+    /**
+     * Request a lock in a new thread.
+     */
+    private static class Requester extends Thread {
+        private final LockManager lm;
+        private final TransactionId tid;
+        private final PageId pid;
+        private final LockMode mode;
+        private volatile boolean acquired;
+        private volatile Exception error;
+
+        Requester(LockManager lm, TransactionId tid, PageId pid, Permissions perm) {
+            this(lm, tid, pid, LockMode.of(perm));
+        }
+
+        Requester(LockManager lm, TransactionId tid, PageId pid, LockMode mode) {
+            this.lm = lm;
+            this.tid = tid;
+            this.pid = pid;
+            this.mode = mode;
+            setDaemon(true);
+            start();
+        }
+
+        public void run() {
+            try {
+                lm.lock(tid, pid, mode);
+                acquired = true;
+            } catch (Exception e) {
+                error = e;
+            }
+        }
+
+        boolean acquired() throws InterruptedException {
+            join(TIMEOUT);
+            return acquired;
+        }
+    }
+
+    private Requester request(TransactionId tid, PageId pid, Permissions perm) throws InterruptedException {
+        Requester r = new Requester(lm, tid, pid, perm);
+        // let the request reach the queue before the next one
+        r.join(TIMEOUT);
+        return r;
+    }
+
+    /**
+     * Waiting requests are granted in the order they arrived.
+     */
+    @Test public void grantsInFifoOrder() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        Requester w2 = request(t2, p0, Permissions.READ_WRITE);
+        Requester r3 = request(t3, p0, Permissions.READ_ONLY);
+        assertFalse(w2.acquired());
+        assertFalse(r3.acquired());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(w2.acquired());
+        assertFalse(r3.acquired());
+        assertTrue(lm.hasWriteLock(p0));
+
+        lm.releaseAllLocks(t2);
+        assertTrue(r3.acquired());
+        assertTrue(lm.holdsLock(t3, p0));
+        assertFalse(lm.hasWriteLock(p0));
+    }
+
+    /**
+     * A shared request does not pass an exclusive request queued before it,
+     * and compatible requests at the head of the queue are granted together.
+     */
+    @Test public void sharedRequestsQueueBehindWriters() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        TransactionId t4 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        Requester w2 = request(t2, p0, Permissions.READ_WRITE);
+        Requester r3 = request(t3, p0, Permissions.READ_ONLY);
+        Requester r4 = request(t4, p0, Permissions.READ_ONLY);
+        assertFalse(w2.acquired());
+        assertFalse(r3.acquired());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(w2.acquired());
+        lm.releaseAllLocks(t2);
+        assertTrue(r3.acquired());
+        assertTrue(r4.acquired());
+    }
+
+    /**
+     * An upgrade goes ahead of the requests that were already waiting.
+     */
+    @Test public void upgradeGoesFirst() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        lm.lock(t2, p0, Permissions.READ_ONLY);
+        Requester w3 = request(t3, p0, Permissions.READ_WRITE);
+        Requester up1 = request(t1, p0, Permissions.READ_WRITE);
+        assertFalse(up1.acquired());
+
+        lm.releaseAllLocks(t2);
+        assertTrue(up1.acquired());
+        assertFalse(w3.acquired());
+
+        lm.releaseAllLocks(t1);
+        assertTrue(w3.acquired());
+    }
+
+    /**
+     * Two transactions upgrading the same page deadlock, and one of them is
+     * aborted.
+     */
+    @Test public void upgradeDeadlockAborts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        lm.lock(t2, p0, Permissions.READ_ONLY);
+        Requester up1 = request(t1, p0, Permissions.READ_WRITE);
+        Requester up2 = request(t2, p0, Permissions.READ_WRITE);
+        assertFalse(up1.acquired());
+        assertFalse(up2.acquired());
+        assertNotNull(up2.error);
+
+        lm.releaseAllLocks(t2);
+        assertTrue(up1.acquired());
+    }
+
+    /**
+     * The youngest transaction of a cycle is aborted, and the others go on.
+     */
+    @Test public void youngestTransactionOfCycleAborts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        PageId p2 = new HeapPageId(1, 2);
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        lm.lock(t2, p1, Permissions.READ_WRITE);
+        lm.lock(t3, p2, Permissions.READ_WRITE);
+        Requester w3 = request(t3, p0, Permissions.READ_WRITE);
+        Requester w1 = request(t1, p1, Permissions.READ_WRITE);
+        Requester w2 = request(t2, p2, Permissions.READ_WRITE);
+        assertFalse(w2.acquired());
+        assertFalse(w1.acquired());
+        assertFalse(w3.acquired());
+        assertNotNull(w3.error);
+        assertNull(w1.error);
+        assertNull(w2.error);
+        assertEquals(1, lm.getDeadlocks());
+
+        // the victim rolls back and releases its locks
+        lm.releaseAllLocks(t3);
+        assertTrue(w2.acquired());
+        lm.releaseAllLocks(t2);
+        assertTrue(w1.acquired());
+    }
+
+    /**
+     * Under wait-die, a transaction waits for younger transactions only, and
+     * is aborted rather than wait for an older one.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        lm.lock(t2, p1, Permissions.READ_WRITE);
+        Requester w1 = request(t1, p1, Permissions.READ_WRITE);
+        assertFalse(w1.acquired());
+        assertNull(w1.error);
+
+        Requester w2 = request(t2, p0, Permissions.READ_WRITE);
+        assertFalse(w2.acquired());
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlocks());
+
+        lm.releaseAllLocks(t2);
+        assertTrue(w1.acquired());
+    }
+
+    /**
+     * Under wait-die, a waiting transaction that comes to wait for an older
+     * one, because that one upgraded its lock, dies then.
+     */
+    @Test public void waitDieAfterUpgrade() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.lock(t1, p0, LockMode.IS);
+        lm.lock(t3, p0, LockMode.S);
+        Requester w2 = new Requester(lm, t2, p0, LockMode.IX);
+        assertFalse(w2.acquired());
+        assertNull(w2.error);
+
+        lm.lock(t1, p0, LockMode.S);
+        w2.join(TIMEOUT);
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlocks());
+    }
+
+    /**
+     * Under wound-wait, an older transaction aborts the younger transactions
+     * in its way, and a younger transaction waits for older ones.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+        TransactionId t0 = new TransactionId();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t0, p1, Permissions.READ_WRITE);
+        lm.lock(t2, p0, Permissions.READ_WRITE);
+        Requester w2 = request(t2, p1, Permissions.READ_WRITE);
+        assertFalse(w2.acquired());
+        assertNull(w2.error);
+
+        // t2 is waiting, so it is aborted right away
+        Requester w1 = request(t1, p0, Permissions.READ_WRITE);
+        assertFalse(w1.acquired());
+        assertTrue(w2.error instanceof TransactionAbortedException);
+        assertEquals(1, lm.getDeadlocks());
+        try {
+            lm.lock(t2, p0, Permissions.READ_ONLY);
+            fail("a wounded transaction should not get more locks");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        lm.releaseAllLocks(t2);
+        assertTrue(w1.acquired());
+    }
+
+    /**
+     * A retried transaction keeps the age of its first attempt, so it waits
+     * for, or wounds, the transactions that started after that attempt.
+     */
+    @Test public void retriesKeepTheirAge() throws Exception {
+        TransactionId first = new TransactionId();
+        TransactionId t1 = new TransactionId();
+        TransactionId retry = new TransactionId(first.getTimestamp());
+        assertNotEquals(first, retry);
+
+        lm.setDeadlockPolicy(DeadlockPolicy.WAIT_DIE);
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        Requester w = request(retry, p0, Permissions.READ_WRITE);
+        assertFalse(w.acquired());
+        assertNull(w.error);
+        lm.releaseAllLocks(t1);
+        assertTrue(w.acquired());
+        lm.releaseAllLocks(retry);
+
+        lm.setDeadlockPolicy(DeadlockPolicy.WOUND_WAIT);
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        w = request(retry, p0, Permissions.READ_WRITE);
+        assertFalse(w.acquired());
+        assertEquals(1, lm.getDeadlocks());
+        try {
+            lm.lock(t1, p1, Permissions.READ_ONLY);
+            fail("a wounded transaction should not get more locks");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t1);
+        assertTrue(w.acquired());
+    }
+
+    /**
+     * A shared table lock covers its pages, lets other transactions read
+     * pages under IS, and keeps writers out.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.lockTable(t1, p0.getTableId(), LockMode.S);
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        assertEquals(0, lm.getLockCount(t1, p0.getTableId()));
+
+        lm.lock(t2, p1, Permissions.READ_ONLY);
+        assertEquals(LockMode.IS, lm.getTableLockMode(t2, p1.getTableId()));
+        Requester w3 = request(t3, p1, Permissions.READ_WRITE);
+        assertFalse(w3.acquired());
+
+        lm.releaseAllLocks(t1);
+        assertFalse(w3.acquired());
+        lm.releaseAllLocks(t2);
+        assertTrue(w3.acquired());
+        assertEquals(LockMode.IX, lm.getTableLockMode(t3, p1.getTableId()));
+        assertNull(lm.getTableLockMode(t1, p0.getTableId()));
+    }
+
+    /**
+     * Past the threshold, page locks are traded for a table lock in the
+     * mode they need.
+     */
+    @Test public void pageLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(3);
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        int tableId = p0.getTableId();
+        for (int i = 0; i < 4; i++) {
+            lm.lock(t1, new HeapPageId(tableId, i), Permissions.READ_ONLY);
+        }
+        assertEquals(LockMode.S, lm.getTableLockMode(t1, tableId));
+        assertEquals(0, lm.getLockCount(t1, tableId));
+        assertEquals(1, lm.getEscalations());
+        lm.lock(t1, new HeapPageId(tableId, 10), Permissions.READ_ONLY);
+        assertEquals(0, lm.getLockCount(t1, tableId));
+
+        // writing under a shared table lock takes SIX and page locks again
+        for (int i = 0; i < 4; i++) {
+            lm.lock(t1, new HeapPageId(tableId, i), Permissions.READ_WRITE);
+        }
+        assertEquals(LockMode.X, lm.getTableLockMode(t1, tableId));
+        assertEquals(2, lm.getEscalations());
+        assertEquals(4, lm.getDirtyPages(t1).size());
+        assertTrue(lm.hasWriteLock(new HeapPageId(tableId, 20)));
+
+        Requester r2 = request(t2, new HeapPageId(tableId, 20), Permissions.READ_ONLY);
+        assertFalse(r2.acquired());
+        lm.releaseAllLocks(t1);
+        assertTrue(r2.acquired());
+    }
+
+    /**
+     * Record locks on one page are taken under IX and only conflict on the
+     * same record; a page lock in S mode waits for the record writers.
+     */
+    @Test public void recordLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        RecordId r0 = new RecordId(p0, 0);
+        RecordId r1 = new RecordId(p0, 1);
+        lm.lock(t1, r0, Permissions.READ_WRITE);
+        lm.lock(t2, r1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t1, r0));
+        assertFalse(lm.holdsLock(t1, r1));
+        assertTrue(lm.getDirtyPages(t2).contains(p0));
+
+        Requester w3 = new Requester(lm, t3, p0, Permissions.READ_ONLY);
+        assertFalse(w3.acquired());
+        TransactionId t4 = new TransactionId();
+        Thread w4 = new Thread(() -> {
+            try {
+                lm.lock(t4, r0, Permissions.READ_WRITE);
+            } catch (TransactionAbortedException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        w4.setDaemon(true);
+        w4.start();
+        w4.join(TIMEOUT);
+        assertTrue(w4.isAlive());
+
+        // the shared page request was queued before t4's IX
+        lm.releaseAllLocks(t1);
+        lm.releaseAllLocks(t2);
+        assertTrue(w3.acquired());
+        // a shared page lock covers the page's records
+        assertTrue(lm.holdsLock(t3, r1));
+        assertTrue(w4.isAlive());
+
+        lm.releaseAllLocks(t3);
+        w4.join(TIMEOUT);
+        assertFalse(w4.isAlive());
+        assertTrue(lm.holdsLock(t4, r0));
+    }
+
+    /**
+     * Record locks count toward escalation like page locks.
+     */
+    @Test public void recordLocksEscalate() throws Exception {
+        lm.setEscalationThreshold(3);
+        TransactionId t1 = new TransactionId();
+        int tableId = p0.getTableId();
+        // the IX lock on the page and three records
+        for (int i = 0; i < 3; i++) {
+            lm.lock(t1, new RecordId(p0, i), Permissions.READ_WRITE);
+        }
+        assertEquals(LockMode.X, lm.getTableLockMode(t1, tableId));
+        assertEquals(0, lm.getLockCount(t1, tableId));
+        assertEquals(1, lm.getEscalations());
+        assertTrue(lm.holdsLock(t1, new RecordId(p1, 5)));
+        assertEquals(1, lm.getNumLocks());
+    }
+
+    /**
+     * A lock leaves the lock table once nobody holds or waits for it.
+     */
+    @Test public void freeLocksAreDropped() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        for (int i = 0; i < 100; i++) {
+            lm.lock(t1, new RecordId(p0, i), Permissions.READ_ONLY);
+        }
+        lm.lock(t1, p1, Permissions.READ_WRITE);
+        assertEquals(103, lm.getNumLocks());
+        lm.unlock(t1, p1, Permissions.READ_WRITE);
+        assertEquals(102, lm.getNumLocks());
+        lm.lock(t1, p1, Permissions.READ_WRITE);
+
+        // a request that times out leaves nothing behind either
+        lm.setLockTimeout(t2, TIMEOUT);
+        try {
+            lm.lock(t2, new RecordId(p1, 0), Permissions.READ_ONLY);
+            fail("expected a lock timeout");
+        } catch (LockTimeoutException e) {
+            // expected
+        }
+        lm.releaseAllLocks(t2);
+        assertEquals(103, lm.getNumLocks());
+
+        lm.releaseAllLocks(t1);
+        assertEquals(0, lm.getNumLocks());
+        // and a dropped lock can be taken again
+        lm.lock(t2, p1, Permissions.READ_WRITE);
+        assertTrue(lm.holdsLock(t2, p1));
+    }
+
+    /**
+     * Locks are reentrant, and every unlock gives back one acquisition.
+     */
+    @Test public void reentrantLocks() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        lm.unlock(t1, p0, Permissions.READ_ONLY);
+        assertTrue(lm.holdsLock(t1, p0));
+        Requester w2 = request(t2, p0, Permissions.READ_WRITE);
+        assertFalse(w2.acquired());
+
+        lm.unlock(t1, p0, Permissions.READ_ONLY);
+        assertFalse(lm.holdsLock(t1, p0));
+        assertTrue(w2.acquired());
+        assertTrue(lm.getDirtyPages(t2).contains(p0));
+    }
+
+    /**
+     * Waits are counted per page, and the counts outlive the locks.
+     */
+    @Test public void contentionMetrics() throws Exception {
+        TransactionId t1 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        lm.lock(t1, p1, Permissions.READ_WRITE);
+        List<Requester> requesters = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            requesters.add(request(new TransactionId(), p0, Permissions.READ_ONLY));
+        }
+        requesters.add(request(new TransactionId(), p1, Permissions.READ_ONLY));
+        assertEquals(0, lm.getWaitTimes().getCount());
+
+        lm.releaseAllLocks(t1);
+        for (Requester r : requesters) {
+            assertTrue(r.acquired());
+        }
+        assertEquals(4, lm.getWaits());
+        assertEquals(4, lm.getWaitTimes().getCount());
+        assertTrue(lm.getWaitTimes().getMax() >= TIMEOUT * 1000L * 1000L);
+
+        for (Requester r : requesters) {
+            lm.releaseAllLocks(r.tid);
+        }
+        assertEquals(0, lm.getNumLocks());
+        Map<PageId, Long> hot = lm.getHotPages(1);
+        assertEquals(1, hot.size());
+        assertEquals(Long.valueOf(3), hot.get(p0));
+        assertEquals(2, lm.getHotPages(10).size());
+    }
+
+    /**
+     * An asynchronous request completes when the lock is granted, and no
+     * thread waits for it in the meantime.
+     */
+    @Test public void asyncLockCompletesWhenGranted() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        assertTrue(lm.lockAsync(t1, p1, Permissions.READ_ONLY).isDone());
+
+        CompletableFuture<Void> w2 = lm.lockAsync(t2, p0, Permissions.READ_WRITE);
+        Thread.sleep(TIMEOUT);
+        assertFalse(w2.isDone());
+        assertEquals(1, lm.getNumWaiting());
+
+        lm.releaseAllLocks(t1);
+        w2.get(TIMEOUT, TimeUnit.MILLISECONDS);
+        assertTrue(lm.holdsLock(t2, p0));
+        assertTrue(lm.hasWriteLock(p0));
+    }
+
+    /**
+     * Asynchronous requests take part in deadlock detection and lock
+     * timeouts like waiting threads.
+     */
+    @Test public void asyncLockAborts() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        lm.lock(t2, p1, Permissions.READ_WRITE);
+        CompletableFuture<Void> r1 = lm.lockAsync(t1, p1, Permissions.READ_ONLY);
+        CompletableFuture<Void> r2 = lm.lockAsync(t2, p0, Permissions.READ_ONLY);
+        try {
+            r2.get(10 * TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("the younger transaction was not aborted");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof TransactionAbortedException);
+        }
+        assertFalse(r1.isDone());
+        lm.releaseAllLocks(t2);
+        r1.get(TIMEOUT, TimeUnit.MILLISECONDS);
+
+        TransactionId t3 = new TransactionId();
+        lm.setLockTimeout(t3, TIMEOUT);
+        try {
+            lm.lockAsync(t3, p0, Permissions.READ_ONLY).get(10 * TIMEOUT, TimeUnit.MILLISECONDS);
+            fail("the lock timeout did not expire");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof LockTimeoutException);
+        }
+        assertEquals(1, lm.getTimeouts());
+    }
+
+    /**
+     * A request that waits longer than the transaction's lock timeout aborts
+     * it and leaves the lock to the next request.
+     */
+    @Test public void lockTimeout() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_ONLY);
+        lm.setLockTimeout(t2, TIMEOUT);
+        Requester w2 = request(t2, p0, Permissions.READ_WRITE);
+        Requester r3 = request(t3, p0, Permissions.READ_ONLY);
+        assertFalse(w2.acquired());
+        assertTrue(w2.error instanceof LockTimeoutException);
+        assertEquals(1, lm.getTimeouts());
+        assertTrue(r3.acquired());
+
+        // the timeout ends with the transaction
+        lm.releaseAllLocks(t2);
+        assertEquals(0, lm.getLockTimeout(t2));
+        lm.setDefaultLockTimeout(TIMEOUT);
+        assertEquals(TIMEOUT, lm.getLockTimeout(t2));
+    }
+
+    /**
+     * Holders and waiters are reported per lock, and every waiter with the
+     * transactions it waits for.
+     */
+    @Test public void lockSnapshots() throws Exception {
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        lm.lock(t1, p0, Permissions.READ_WRITE);
+        Requester r2 = request(t2, p0, Permissions.READ_ONLY);
+        assertFalse(r2.acquired());
+
+        // the table lock, then the page lock
+        List<LockManager.LockInfo> locks = lm.getLocks();
+        assertEquals(2, locks.size());
+        assertEquals(2, locks.get(0).getHolders().length);
+        LockManager.LockInfo page = locks.get(1);
+        assertEquals(List.of(t1.getId() + " X"), List.of(page.getHolders()));
+        assertEquals(List.of(t2.getId() + " S"), List.of(page.getWaiters()));
+        assertEquals(2, lm.getLocks(t2).size());
+
+        List<LockManager.WaitInfo> waiters = lm.getWaiters();
+        assertEquals(1, waiters.size());
+        assertEquals(1, lm.getNumWaiting());
+        assertEquals(t2.getId(), waiters.get(0).getTransactionId());
+        assertArrayEquals(new long[]{t1.getId()}, waiters.get(0).getBlockers());
+        assertTrue(waiters.get(0).getWaitedMillis() >= TIMEOUT);
+
+        lm.releaseAllLocks(t1);
+        assertTrue(r2.acquired());
+        assertTrue(lm.getWaiters().isEmpty());
+        lm.releaseAllLocks(t2);
+        assertTrue(lm.getLocks().isEmpty());
+    }
+
+    /**
+     * The lock manager of the database is published over JMX.
+     */
+    @Test public void mbean() throws Exception {
+        Database.reset();
+        LockManager dblm = Database.getBufferPool().getLockManager();
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName(LockManager.MBEAN_NAME);
+        assertEquals(0L, server.getAttribute(name, "Waits"));
+        dblm.setDefaultLockTimeout(TIMEOUT);
+        assertEquals((long) TIMEOUT, server.getAttribute(name, "DefaultLockTimeout"));
+        assertTrue(server.getAttribute(name, "Locks") instanceof CompositeData[]);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
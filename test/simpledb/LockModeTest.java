@@ -0,0 +1,58 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.LockMode;
+import simpledb.common.Permissions;
+
+import static org.junit.Assert.*;
+
+public class LockModeTest {
+
+    @Test public void compatibility() {
+        assertTrue(LockMode.IS.isCompatible(LockMode.SIX));
+        assertTrue(LockMode.IX.isCompatible(LockMode.IX));
+        assertTrue(LockMode.S.isCompatible(LockMode.S));
+        assertFalse(LockMode.IX.isCompatible(LockMode.S));
+        assertFalse(LockMode.SIX.isCompatible(LockMode.IX));
+        assertFalse(LockMode.IS.isCompatible(LockMode.X));
+        for (LockMode a : LockMode.values()) {
+            for (LockMode b : LockMode.values()) {
+                assertEquals(a + " " + b, a.isCompatible(b), b.isCompatible(a));
+            }
+        }
+    }
+
+    @Test public void combine() {
+        assertEquals(LockMode.SIX, LockMode.IX.combine(LockMode.S));
+        assertEquals(LockMode.SIX, LockMode.S.combine(LockMode.IX));
+        assertEquals(LockMode.S, LockMode.IS.combine(LockMode.S));
+        assertEquals(LockMode.X, LockMode.SIX.combine(LockMode.X));
+        // a combined mode conflicts with whatever either part conflicts with
+        for (LockMode a : LockMode.values()) {
+            for (LockMode b : LockMode.values()) {
+                LockMode c = a.combine(b);
+                assertTrue(c.covers(a) && c.covers(b));
+                for (LockMode o : LockMode.values()) {
+                    assertEquals(a.isCompatible(o) && b.isCompatible(o), c.isCompatible(o));
+                }
+            }
+        }
+    }
+
+    @Test public void pageModes() {
+        assertEquals(LockMode.S, LockMode.of(Permissions.READ_ONLY));
+        assertEquals(LockMode.X, LockMode.of(Permissions.READ_WRITE));
+        assertEquals(LockMode.IS, LockMode.S.intention());
+        assertEquals(LockMode.IX, LockMode.X.intention());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockModeTest.class);
+    }
+}
@@ -0,0 +1,156 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.PageDelta;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class PageDeltaTest extends SimpleDbTestBase {
+
+    private HeapPageId pid;
+
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, Utility.getTupleDesc(2)), SystemTestUtil.getUUID());
+    }
+
+    private static byte[] serialize(PageDelta delta) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        delta.write(new DataOutputStream(bytes));
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Redo turns the old page into the new one, and undo turns it back.
+     */
+    @Test public void redoAndUndo() {
+        Random rand = new Random(42);
+        byte[] before = new byte[BufferPool.getPageSize()];
+        rand.nextBytes(before);
+        byte[] after = before.clone();
+        after[0]++;
+        after[100]++;
+        after[103]++;
+        for (int i = 2000; i < 2100; i++) {
+            after[i] = (byte) rand.nextInt();
+        }
+        after[after.length - 1]++;
+
+        PageDelta delta = PageDelta.diff(before, after);
+        // the changes at 100 and 103 are close enough to share a range
+        assertEquals(4, delta.numRanges());
+
+        byte[] data = before.clone();
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        delta.redo(data);
+        assertArrayEquals(after, data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+        delta.undo(data);
+        assertArrayEquals(before, data);
+    }
+
+    /**
+     * Redoing a chain of deltas from any page version in the chain ends at
+     * the last version, and undoing it ends at the first.
+     */
+    @Test public void chainsAreIdempotent() {
+        byte[] v0 = new byte[256];
+        byte[] v1 = v0.clone();
+        Arrays.fill(v1, 10, 20, (byte) 1);
+        byte[] v2 = v1.clone();
+        Arrays.fill(v2, 15, 40, (byte) 2);
+        PageDelta d1 = PageDelta.diff(v0, v1);
+        PageDelta d2 = PageDelta.diff(v1, v2);
+
+        for (byte[] start : new byte[][]{v0, v1, v2}) {
+            byte[] data = start.clone();
+            d1.redo(data);
+            d2.redo(data);
+            assertArrayEquals(v2, data);
+            d2.undo(data);
+            d1.undo(data);
+            assertArrayEquals(v0, data);
+        }
+    }
+
+    /**
+     * Undo restores the bits the change flipped only, so that a later change
+     * to other bits of the same bytes survives it.
+     */
+    @Test public void undoLeavesOtherBitsAlone() {
+        byte[] v0 = new byte[64];
+        byte[] v1 = v0.clone();
+        v1[0] = 0x01;
+        v1[10] = 5;
+        PageDelta d1 = PageDelta.diff(v0, v1);
+
+        byte[] data = v1.clone();
+        // another slot's header bit, and a byte between the changed ones
+        data[0] |= 0x02;
+        data[5] = 9;
+        d1.undo(data);
+        assertEquals(0x02, data[0]);
+        assertEquals(9, data[5]);
+        assertEquals(0, data[10]);
+    }
+
+    /**
+     * A delta survives serialization.
+     */
+    @Test public void serialization() throws Exception {
+        byte[] before = new byte[512];
+        byte[] after = before.clone();
+        after[7] = 7;
+        after[300] = 3;
+        PageDelta delta = PageDelta.diff(before, after);
+        PageDelta copy = PageDelta.read(new DataInputStream(new ByteArrayInputStream(serialize(delta))));
+
+        assertEquals(512, copy.getPageSize());
+        assertEquals(2, copy.numRanges());
+        byte[] data = before.clone();
+        copy.redo(data);
+        assertArrayEquals(after, data);
+    }
+
+    /**
+     * Inserting a tuple into a heap page changes only a few bytes, so its
+     * delta is a small fraction of a full page image.
+     */
+    @Test public void insertIsSmall() throws Exception {
+        HeapPage page = new HeapPage(pid, HeapPageReadTest.EXAMPLE_DATA);
+        byte[] before = page.getPageData();
+        page.insertTuple(Utility.getHeapTuple(new int[]{1, 2}));
+        PageDelta delta = PageDelta.diff(before, page.getPageData());
+
+        assertEquals(2, delta.numRanges());
+        assertTrue(serialize(delta).length < BufferPool.getPageSize() / 50);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
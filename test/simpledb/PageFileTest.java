@@ -0,0 +1,103 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.storage.PageFile;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PageFileTest {
+    private static final int PAGE = 4096;
+    private static final int PAGES = 16;
+
+    private PageFile pages;
+
+    // page i is filled with the byte i
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("pages", ".dat");
+        f.deleteOnExit();
+        pages = new PageFile(f);
+        for (int i = 0; i < PAGES; i++) {
+            byte[] data = new byte[PAGE];
+            Arrays.fill(data, (byte) i);
+            pages.write((long) i * PAGE, data);
+        }
+    }
+
+    private void checkPage(int i) throws Exception {
+        byte[] data = new byte[PAGE];
+        assertEquals(PAGE, pages.read((long) i * PAGE, data));
+        for (byte b : data) {
+            assertEquals((byte) i, b);
+        }
+    }
+
+    /**
+     * Reads past the end of the file stop there.
+     */
+    @Test public void readPastEnd() throws Exception {
+        assertEquals((long) PAGES * PAGE, pages.size());
+        byte[] data = new byte[PAGE];
+        assertEquals(PAGE / 2, pages.read((long) PAGES * PAGE - PAGE / 2, data));
+        assertEquals(0, pages.read((long) PAGES * PAGE, data));
+    }
+
+    /**
+     * Threads reading different pages at the same time each get their own.
+     */
+    @Test public void concurrentReads() throws Exception {
+        List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            int first = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int n = 0; n < 200; n++) {
+                        checkPage((first + n) % PAGES);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+    }
+
+    /**
+     * An interrupted reader neither fails nor breaks the file for others,
+     * and keeps its interrupt.
+     */
+    @Test public void interruptedRead() throws Exception {
+        Thread.currentThread().interrupt();
+        try {
+            checkPage(3);
+            assertTrue(Thread.currentThread().isInterrupted());
+        } finally {
+            Thread.interrupted();
+        }
+        checkPage(4);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageFileTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.index.*;
+import simpledb.storage.*;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class PageTypeRegistryTest extends SimpleDbTestBase {
+
+    // rebuild the page from its tag, serialized id and data
+    private static void assertRoundTrip(Page page, byte expectedTag) throws Exception {
+        byte tag = PageTypeRegistry.tagOf(page);
+        assertEquals(expectedTag, tag);
+        PageId pid = PageTypeRegistry.newPageId(tag, page.getId().serialize());
+        assertEquals(page.getId(), pid);
+        Page copy = PageTypeRegistry.newPage(tag, pid, page.getPageData());
+        assertEquals(page.getClass(), copy.getClass());
+        assertArrayEquals(page.getPageData(), copy.getPageData());
+    }
+
+    /**
+     * Heap pages survive the round trip.
+     */
+    @Test public void heapPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 100, null, null);
+        assertRoundTrip(hf.readPage(new HeapPageId(hf.getId(), 0)), PageTypeRegistry.HEAP_PAGE);
+    }
+
+    /**
+     * Slotted heap pages survive the round trip.
+     */
+    @Test public void slottedHeapPage() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 1, null, null);
+        SlottedHeapPage page = new SlottedHeapPage(new HeapPageId(hf.getId(), 0),
+                SlottedHeapPage.createEmptyPageData());
+        page.insertTuple(((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0))).iterator().next());
+        assertRoundTrip(page, PageTypeRegistry.SLOTTED_HEAP_PAGE);
+    }
+
+    /**
+     * Every kind of B+ tree page survives the round trip.
+     */
+    @Test public void btreePages() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+        BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) bf.readPage(BTreeRootPtrPage.getId(bf.getId()));
+        assertRoundTrip(rootPtr, PageTypeRegistry.BTREE_ROOT_PTR_PAGE);
+
+        BTreeInternalPage root = (BTreeInternalPage) bf.readPage(rootPtr.getRootId());
+        assertRoundTrip(root, PageTypeRegistry.BTREE_INTERNAL_PAGE);
+
+        BTreePageId child = root.iterator().next().getLeftChild();
+        while (child.pgcateg() == BTreePageId.INTERNAL) {
+            child = ((BTreeInternalPage) bf.readPage(child)).iterator().next().getLeftChild();
+        }
+        assertRoundTrip(bf.readPage(child), PageTypeRegistry.BTREE_LEAF_PAGE);
+
+        BTreePageId headerId = new BTreePageId(bf.getId(), 1, BTreePageId.HEADER);
+        assertRoundTrip(new BTreeHeaderPage(headerId, BTreeHeaderPage.createEmptyPageData()),
+                PageTypeRegistry.BTREE_HEADER_PAGE);
+    }
+
+    /**
+     * Unknown tags and duplicate registrations are rejected.
+     */
+    @Test public void rejectsUnknownAndDuplicateTypes() {
+        try {
+            PageTypeRegistry.newPageId((byte) 99, new int[]{0, 0});
+            fail("expected an unknown page type");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            PageTypeRegistry.register(PageTypeRegistry.HEAP_PAGE, HeapPage.class,
+                    ids -> new HeapPageId(ids[0], ids[1]), (pid, data) -> new HeapPage((HeapPageId) pid, data));
+            fail("expected a duplicate page type");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageTypeRegistryTest.class);
+    }
+}
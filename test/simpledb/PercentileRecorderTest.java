@@ -0,0 +1,71 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.PercentileRecorder;
+
+import static org.junit.Assert.*;
+
+public class PercentileRecorderTest {
+
+    /**
+     * Small values are counted exactly.
+     */
+    @Test public void smallValuesAreExact() {
+        PercentileRecorder r = new PercentileRecorder();
+        for (int i = 1; i <= 10; i++) {
+            r.record(i);
+        }
+        assertEquals(10, r.getCount());
+        assertEquals(55, r.getTotal());
+        assertEquals(5.5, r.getMean(), 0.0001);
+        assertEquals(5, r.getPercentile(50));
+        assertEquals(9, r.getPercentile(90));
+        assertEquals(10, r.getPercentile(100));
+        assertEquals(1, r.getPercentile(0));
+    }
+
+    /**
+     * Large values are reported a little high, but never above the maximum.
+     */
+    @Test public void largeValuesAreClose() {
+        PercentileRecorder r = new PercentileRecorder();
+        for (int i = 1; i <= 100000; i++) {
+            r.record(i);
+        }
+        assertEquals(100000, r.getMax());
+        for (double p : new double[]{10, 50, 90, 99, 99.9}) {
+            long expected = (long) (p * 1000);
+            long actual = r.getPercentile(p);
+            assertTrue(p + ": " + actual, actual >= expected);
+            assertTrue(p + ": " + actual, actual <= expected * 1.07);
+        }
+        assertEquals(100000, r.getPercentile(100));
+
+        r.record(Long.MAX_VALUE);
+        assertEquals(Long.MAX_VALUE, r.getPercentile(100));
+    }
+
+    /**
+     * Reset forgets everything.
+     */
+    @Test public void reset() {
+        PercentileRecorder r = new PercentileRecorder();
+        r.record(-5);
+        r.record(1000);
+        assertEquals(0, r.getPercentile(50));
+        r.reset();
+        assertEquals(0, r.getCount());
+        assertEquals(0, r.getMax());
+        assertEquals(0, r.getPercentile(99));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PercentileRecorderTest.class);
+    }
+}
@@ -0,0 +1,144 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.storage.ClockPolicy;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LruKPolicy;
+import simpledb.storage.PageId;
+import simpledb.storage.ReplacementPolicy;
+import simpledb.storage.TwoQueuePolicy;
+import simpledb.systemtest.SimpleDbTestBase;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ReplacementPolicyTest extends SimpleDbTestBase {
+
+    private static final int CAPACITY = 16;
+    private static final int HOT_PAGES = 4;
+
+    /**
+     * A cache of PageIds that evicts through the policy, the way BufferPool does.
+     */
+    private static class SimulatedPool {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<>();
+
+        SimulatedPool(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+
+        boolean access(PageId pid) {
+            if (resident.contains(pid)) {
+                policy.pageAccessed(pid);
+                return true;
+            }
+            if (resident.size() == CAPACITY) {
+                PageId victim = policy.chooseVictim(p -> true);
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+            }
+            resident.add(pid);
+            policy.pageLoaded(pid);
+            return false;
+        }
+    }
+
+    /**
+     * Touch a small hot set interleaved with short scans, then run a scan
+     * much larger than the pool, and count how many hot pages survived it.
+     */
+    private int hotHitsAfterScan(ReplacementPolicy policy) {
+        SimulatedPool pool = new SimulatedPool(policy);
+        int scanPage = 0;
+        for (int round = 0; round < 30; round++) {
+            for (int i = 0; i < HOT_PAGES; i++) {
+                pool.access(new HeapPageId(0, i));
+            }
+            for (int i = 0; i < 5; i++) {
+                pool.access(new HeapPageId(1, scanPage++));
+            }
+        }
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            pool.access(new HeapPageId(1, scanPage++));
+        }
+        int hits = 0;
+        for (int i = 0; i < HOT_PAGES; i++) {
+            if (pool.access(new HeapPageId(0, i))) {
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * 2Q and LRU-K keep frequently used pages resident across a long scan.
+     */
+    @Test public void scanResistance() {
+        assertEquals(HOT_PAGES, hotHitsAfterScan(new TwoQueuePolicy(CAPACITY)));
+        assertEquals(HOT_PAGES, hotHitsAfterScan(new LruKPolicy(CAPACITY)));
+    }
+
+    /**
+     * CLOCK only approximates LRU, so a long scan flushes the hot pages.
+     */
+    @Test public void clockIsNotScanResistant() {
+        assertEquals(0, hotHitsAfterScan(new ClockPolicy(CAPACITY)));
+    }
+
+    /**
+     * Pages the predicate rejects are skipped but stay tracked.
+     */
+    @Test public void skipsPagesThatCannotBeEvicted() {
+        for (ReplacementPolicy policy : new ReplacementPolicy[]{
+                new ClockPolicy(CAPACITY), new LruKPolicy(CAPACITY), new TwoQueuePolicy(CAPACITY)}) {
+            HeapPageId pinned = new HeapPageId(0, 0);
+            for (int i = 0; i < 3; i++) {
+                policy.pageLoaded(new HeapPageId(0, i));
+            }
+
+            assertNull(policy.chooseVictim(p -> false));
+
+            Set<PageId> victims = new HashSet<>();
+            PageId victim;
+            while ((victim = policy.chooseVictim(p -> !p.equals(pinned))) != null) {
+                assertTrue(victims.add(victim));
+            }
+            assertEquals(2, victims.size());
+            assertFalse(victims.contains(pinned));
+
+            assertEquals(pinned, policy.chooseVictim(p -> true));
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * Removed pages are never offered again, and hits on them are ignored.
+     */
+    @Test public void removedPagesAreForgotten() {
+        for (ReplacementPolicy policy : new ReplacementPolicy[]{
+                new ClockPolicy(CAPACITY), new LruKPolicy(CAPACITY), new TwoQueuePolicy(CAPACITY)}) {
+            HeapPageId first = new HeapPageId(0, 0);
+            HeapPageId second = new HeapPageId(0, 1);
+            policy.pageLoaded(first);
+            policy.pageLoaded(second);
+            policy.pageRemoved(first);
+            policy.pageAccessed(first);
+
+            assertEquals(second, policy.chooseVictim(p -> true));
+            assertNull(policy.chooseVictim(p -> true));
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
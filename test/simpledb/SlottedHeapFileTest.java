@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.DbFileIterator;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.RecordId;
+import simpledb.storage.SlottedHeapFile;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+public class SlottedHeapFileTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+
+    private SlottedHeapFile file;
+    private TransactionId tid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void setUp() throws Exception {
+        File f = File.createTempFile("slotted", ".dat");
+        f.deleteOnExit();
+        new File(f.getPath() + ".fsm").deleteOnExit();
+        this.file = new SlottedHeapFile(f, TD);
+        Database.getCatalog().addTable(this.file, SystemTestUtil.getUUID());
+        this.tid = new TransactionId();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().transactionComplete(this.tid);
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private List<Tuple> scan() throws Exception {
+        List<Tuple> result = new ArrayList<>();
+        DbFileIterator it = this.file.iterator(this.tid);
+        it.open();
+        while (it.hasNext()) {
+            result.add(it.next());
+        }
+        it.close();
+        return result;
+    }
+
+    /**
+     * Short tuples fill far fewer pages than a HeapFile needs for them, and
+     * come back from a scan.
+     */
+    @Test public void insertAndScan() throws Exception {
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(this.tid, this.file.getId(), tuple(i, "name" + i));
+        }
+        int heapPages = (int) Math.ceil(count / (double) (BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1)));
+        assertTrue(this.file.numPages() * 4 <= heapPages);
+
+        List<Tuple> read = scan();
+        assertEquals(count, read.size());
+        boolean[] seen = new boolean[count];
+        for (Tuple t : read) {
+            int i = ((IntField) t.getField(0)).getValue();
+            assertFalse(seen[i]);
+            seen[i] = true;
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), t.getField(1));
+        }
+    }
+
+    /**
+     * Deleted tuples leave the scan, and their room is used again.
+     */
+    @Test public void deleteAndReuse() throws Exception {
+        for (int i = 0; i < 500; i++) {
+            Database.getBufferPool().insertTuple(this.tid, this.file.getId(), tuple(i, "name" + i));
+        }
+        int pages = this.file.numPages();
+        for (Tuple t : scan()) {
+            if (((IntField) t.getField(0)).getValue() % 2 == 0) {
+                Database.getBufferPool().deleteTuple(this.tid, t);
+            }
+        }
+        assertEquals(250, scan().size());
+
+        for (int i = 0; i < 250; i++) {
+            Database.getBufferPool().insertTuple(this.tid, this.file.getId(), tuple(i, "name" + i));
+        }
+        assertEquals(500, scan().size());
+        assertEquals(pages, this.file.numPages());
+    }
+
+    /**
+     * Pages survive being flushed and read back from disk.
+     */
+    @Test public void flushAndReread() throws Exception {
+        for (int i = 0; i < 300; i++) {
+            Database.getBufferPool().insertTuple(this.tid, this.file.getId(), tuple(i, "x".repeat(i % 50)));
+        }
+        Database.getBufferPool().transactionComplete(this.tid);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        this.tid = new TransactionId();
+
+        List<Tuple> read = scan();
+        assertEquals(300, read.size());
+        for (Tuple t : read) {
+            int i = ((IntField) t.getField(0)).getValue();
+            assertEquals(new StringField("x".repeat(i % 50), Type.STRING_LEN), t.getField(1));
+        }
+    }
+
+    /**
+     * A file rejects tuples that belong to other tables.
+     */
+    @Test(expected = DbException.class) public void deleteForeignTuple() throws Exception {
+        Tuple t = tuple(0, "foreign");
+        t.setRecordId(new RecordId(new HeapPageId(this.file.getId() + 1, 0), 0));
+        this.file.deleteTuple(this.tid, t);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapFileTest.class);
+    }
+}
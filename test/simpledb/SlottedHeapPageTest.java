@@ -0,0 +1,181 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.TestUtil.SkeletonFile;
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Type;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.IntField;
+import simpledb.storage.SlottedHeapPage;
+import simpledb.storage.StringField;
+import simpledb.storage.Tuple;
+import simpledb.storage.TupleDesc;
+import simpledb.systemtest.SimpleDbTestBase;
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+
+public class SlottedHeapPageTest extends SimpleDbTestBase {
+
+    private static final TupleDesc TD = new TupleDesc(
+            new Type[]{Type.INT_TYPE, Type.STRING_TYPE}, new String[]{"id", "name"});
+
+    private HeapPageId pid;
+
+    /**
+     * Set up initial resources for each unit test.
+     */
+    @Before public void addTable() {
+        this.pid = new HeapPageId(-1, -1);
+        Database.getCatalog().addTable(new SkeletonFile(-1, TD), SystemTestUtil.getUUID());
+    }
+
+    private static Tuple tuple(int id, String name) {
+        Tuple t = new Tuple(TD);
+        t.setField(0, new IntField(id));
+        t.setField(1, new StringField(name, Type.STRING_LEN));
+        return t;
+    }
+
+    private static List<Tuple> tuples(SlottedHeapPage page) {
+        List<Tuple> result = new ArrayList<>();
+        for (Tuple t : page) {
+            result.add(t);
+        }
+        return result;
+    }
+
+    /**
+     * Tuples come back from the page, and from its serialized bytes, as
+     * they were inserted.
+     */
+    @Test public void insertAndRead() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        assertEquals(0, page.getNumTuples());
+        for (int i = 0; i < 10; i++) {
+            Tuple t = tuple(i, "name" + i);
+            page.insertTuple(t);
+            assertEquals(pid, t.getRecordId().getPageId());
+            assertEquals(i, t.getRecordId().getTupleNumber());
+        }
+        assertEquals(10, page.getNumTuples());
+
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        List<Tuple> read = tuples(copy);
+        assertEquals(10, read.size());
+        for (int i = 0; i < 10; i++) {
+            assertEquals(new IntField(i), read.get(i).getField(0));
+            assertEquals(new StringField("name" + i, Type.STRING_LEN), read.get(i).getField(1));
+            assertEquals(i, read.get(i).getRecordId().getTupleNumber());
+        }
+    }
+
+    /**
+     * Short strings take only the bytes they need, so a page holds many more
+     * of them than a HeapPage has slots.
+     */
+    @Test public void storesShortStringsCompactly() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        int count = 0;
+        while (page.hasRoomFor(tuple(count, "ab"))) {
+            page.insertTuple(tuple(count, "ab"));
+            count++;
+        }
+        // an int, a length and two bytes, plus the slot
+        assertEquals((BufferPool.getPageSize() - 4) / (4 + 4 + 2 + SlottedHeapPage.SLOT_SIZE), count);
+        assertTrue(count > 4 * (BufferPool.getPageSize() * 8 / (TD.getSize() * 8 + 1)));
+
+        try {
+            page.insertTuple(tuple(count, "ab"));
+            fail("page should be full");
+        } catch (DbException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Deleting a tuple gives its bytes back at once and leaves the other
+     * tuples in their slots.
+     */
+    @Test public void deleteCompacts() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        int empty = page.getFreeSpace();
+        List<Tuple> inserted = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            Tuple t = tuple(i, "x".repeat(i * 10));
+            page.insertTuple(t);
+            inserted.add(t);
+        }
+        int free = page.getFreeSpace();
+
+        page.deleteTuple(inserted.get(2));
+        assertEquals(free + page.getRecordSize(inserted.get(2)), page.getFreeSpace());
+        assertFalse(page.isSlotUsed(2));
+        SlottedHeapPage copy = new SlottedHeapPage(pid, page.getPageData());
+        List<Tuple> read = tuples(copy);
+        assertEquals(4, read.size());
+        for (Tuple t : read) {
+            int i = ((IntField) t.getField(0)).getValue();
+            assertNotEquals(2, i);
+            assertEquals(i, t.getRecordId().getTupleNumber());
+            assertEquals(new StringField("x".repeat(i * 10), Type.STRING_LEN), t.getField(1));
+        }
+
+        try {
+            page.deleteTuple(inserted.get(2));
+            fail("deleting a tuple twice should fail");
+        } catch (DbException e) {
+            // expected
+        }
+
+        // the empty slot is reused
+        Tuple t = tuple(5, "reused");
+        page.insertTuple(t);
+        assertEquals(2, t.getRecordId().getTupleNumber());
+
+        for (Tuple u : tuples(page)) {
+            page.deleteTuple(u);
+        }
+        assertEquals(0, page.getNumTuples());
+        assertEquals(empty, page.getFreeSpace());
+        assertArrayEquals(SlottedHeapPage.createEmptyPageData(), page.getPageData());
+    }
+
+    /**
+     * Iterators and the before image see the page as it was.
+     */
+    @Test public void snapshots() throws Exception {
+        SlottedHeapPage page = new SlottedHeapPage(pid, SlottedHeapPage.createEmptyPageData());
+        Tuple first = tuple(1, "one");
+        page.insertTuple(first);
+        page.setBeforeImage();
+        byte[] before = page.getPageData();
+
+        Iterator<Tuple> it = page.iterator();
+        page.deleteTuple(first);
+        page.insertTuple(tuple(2, "two"));
+
+        assertTrue(it.hasNext());
+        assertEquals(new IntField(1), it.next().getField(0));
+        assertFalse(it.hasNext());
+        assertArrayEquals(before, page.getBeforeImage().getPageData());
+        assertEquals(new IntField(2), tuples(page).get(0).getField(0));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SlottedHeapPageTest.class);
+    }
+}
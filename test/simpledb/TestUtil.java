@@ -216,6 +216,10 @@ public class TestUtil {
             throw new RuntimeException("not implemented");
         }
 
+        public void force() {
+            throw new RuntimeException("not implemented");
+        }
+
         public List<Page> insertTuple(TransactionId tid, Tuple t) {
             throw new RuntimeException("not implemented");
         }
@@ -0,0 +1,80 @@
+package simpledb;
+
+import junit.framework.JUnit4TestAdapter;
+
+import org.junit.Test;
+
+import simpledb.common.WaitsForGraph;
+import simpledb.transaction.TransactionId;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class WaitsForGraphTest {
+
+    private static void waits(WaitsForGraph graph, TransactionId tid, TransactionId... blockers) {
+        graph.setWaits(tid, new HashSet<>(Arrays.asList(blockers)));
+    }
+
+    /**
+     * Chains and trees of waiting transactions are not cycles.
+     */
+    @Test public void noCycle() {
+        WaitsForGraph graph = new WaitsForGraph();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        TransactionId t4 = new TransactionId();
+        assertNull(graph.findCycle());
+        waits(graph, t1, t2, t3);
+        waits(graph, t2, t3);
+        waits(graph, t3, t4);
+        assertNull(graph.findCycle());
+        assertEquals(3, graph.numWaiting());
+    }
+
+    /**
+     * A cycle is found with its edges in order, and disappears once one of
+     * its transactions stops waiting.
+     */
+    @Test public void findsCycle() {
+        WaitsForGraph graph = new WaitsForGraph();
+        TransactionId t1 = new TransactionId();
+        TransactionId t2 = new TransactionId();
+        TransactionId t3 = new TransactionId();
+        TransactionId t4 = new TransactionId();
+        waits(graph, t4, t1);
+        waits(graph, t1, t2);
+        waits(graph, t2, t3);
+        waits(graph, t3, t1);
+        List<TransactionId> cycle = graph.findCycle();
+        assertNotNull(cycle);
+        assertEquals(new HashSet<>(Arrays.asList(t1, t2, t3)), new HashSet<>(cycle));
+        assertTrue(graph.isCycle(cycle));
+
+        graph.removeWaits(t2);
+        assertFalse(graph.isCycle(cycle));
+        assertNull(graph.findCycle());
+    }
+
+    /**
+     * A transaction waiting for itself, e.g. through an upgrade, is a cycle.
+     */
+    @Test public void selfLoop() {
+        WaitsForGraph graph = new WaitsForGraph();
+        TransactionId t1 = new TransactionId();
+        waits(graph, t1, t1);
+        assertEquals(Collections.singletonList(t1), graph.findCycle());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WaitsForGraphTest.class);
+    }
+}
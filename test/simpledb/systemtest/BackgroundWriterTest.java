@@ -0,0 +1,169 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test the NO-FORCE / STEAL mode of the BufferPool: commits only log their
+ * pages, the background writer writes them later, and recovery redoes
+ * whatever was not written before a crash.
+ */
+public class BackgroundWriterTest extends SimpleDbTestBase {
+    private static final long NEVER = 3600 * 1000;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("bgwriter", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    private void insert(Transaction t, int v) throws DbException, IOException, TransactionAbortedException {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, 0}));
+    }
+
+    // count the tuples with the given first field, through the buffer pool
+    private int count(int v) throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        int count = 0;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        while (it.hasNext()) {
+            if (((IntField) it.next().getField(0)).getValue() == v) {
+                count++;
+            }
+        }
+        it.close();
+        t.commit();
+        return count;
+    }
+
+    // count the tuples on the first page as it is on disk
+    private int tuplesOnDisk() {
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        int count = 0;
+        for (Iterator<Tuple> it = page.iterator(); it.hasNext(); it.next()) {
+            count++;
+        }
+        return count;
+    }
+
+    private void crash() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void commitOnlyWritesTheLog() throws Exception {
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        t.commit();
+
+        assertEquals(0, tuplesOnDisk());
+        assertEquals(1, count(1));
+
+        // the committed insert is redone from the log
+        crash();
+        assertEquals(1, tuplesOnDisk());
+        assertEquals(1, count(1));
+    }
+
+    @Test public void writerFlushesCommittedPages() throws Exception {
+        Database.getBufferPool().startBackgroundWriter(10);
+        Transaction t = new Transaction();
+        t.start();
+        insert(t, 1);
+        insert(t, 2);
+        t.commit();
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (tuplesOnDisk() != 2 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(2, tuplesOnDisk());
+    }
+
+    @Test public void abortKeepsUnflushedCommittedPage() throws Exception {
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        // the committed version of the page is only in the buffer pool now
+        Transaction t2 = new Transaction();
+        t2.start();
+        insert(t2, 2);
+        t2.abort();
+
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    @Test public void stealDirtyPagesAndAbort() throws Exception {
+        Database.resetBufferPool(3);
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+
+        // fill more pages than the pool holds within one transaction
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < 504 * 5; i++) {
+            insert(t, 1);
+        }
+        assertTrue(hf.numPages() >= 5);
+        t.abort();
+
+        assertEquals(0, count(1));
+        crash();
+        assertEquals(0, count(1));
+    }
+
+    @Test public void stealDirtyPagesAndCrash() throws Exception {
+        Database.resetBufferPool(3);
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+
+        Transaction t1 = new Transaction();
+        t1.start();
+        insert(t1, 1);
+        t1.commit();
+
+        // the uncommitted transaction wrote pages to disk before the crash
+        Transaction t2 = new Transaction();
+        t2.start();
+        for (int i = 0; i < 504 * 5; i++) {
+            insert(t2, 2);
+        }
+        crash();
+
+        assertEquals(1, count(1));
+        assertEquals(0, count(2));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(BackgroundWriterTest.class);
+    }
+}
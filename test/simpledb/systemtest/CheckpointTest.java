@@ -0,0 +1,201 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that checkpoints don't write pages, that recovery redoes the pages
+ * which were dirty at the last checkpoint, that the log takes checkpoints
+ * by itself as it grows, and that only an explicit truncation shrinks it.
+ */
+public class CheckpointTest extends SimpleDbTestBase {
+    private static final long NEVER = 3600 * 1000;
+    private static final long NO_CHECKPOINT = -1;
+
+    private File file;
+    private File loserFile;
+    private HeapFile hf;
+    private HeapFile loserHf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("checkpoint", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        loserFile = File.createTempFile("checkpointloser", ".dat");
+        loserFile.deleteOnExit();
+        loserHf = Utility.createEmptyHeapFile(loserFile.getAbsolutePath(), 2);
+        // committed pages stay dirty in the buffer pool
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+        Database.getLogFile().setCheckpointInterval(0);
+    }
+
+    private void insert(int v, int count, boolean commit) throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, i}));
+        }
+        if (commit) {
+            t.commit();
+        } else {
+            t.abort();
+        }
+    }
+
+    // count the tuples with the given first field, on disk
+    private int countOnDisk(int v) {
+        return countOnDisk(hf, v);
+    }
+
+    private static int countOnDisk(HeapFile hf, int v) {
+        int count = 0;
+        for (int pgNo = 0; pgNo < hf.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            for (Tuple t : (Iterable<Tuple>) page::iterator) {
+                if (((IntField) t.getField(0)).getValue() == v) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // the offset of the last checkpoint, as recorded in the log header
+    private static long lastCheckpoint() throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile("log", "r")) {
+            return raf.readLong();
+        }
+    }
+
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        loserHf = Utility.openHeapFile(2, loserFile);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void checkpointDoesNotFlushPages() throws Exception {
+        insert(1, 10, true);
+        Database.getLogFile().logCheckpoint();
+        assertEquals(0, countOnDisk(1));
+        assertTrue(lastCheckpoint() != NO_CHECKPOINT);
+
+        // the page is in the checkpoint's dirty page table, so its committed
+        // change is redone although the log record precedes the checkpoint
+        crashAndRecover();
+        assertEquals(10, countOnDisk(1));
+    }
+
+    @Test public void recoveryAcrossCheckpoints() throws Exception {
+        insert(1, 10, true);
+        Database.getBufferPool().flushAllPages();
+        Database.getLogFile().logCheckpoint();
+
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), loserHf.getId(), Utility.getHeapTuple(new int[]{2, 0}));
+        insert(3, 10, true);
+        Database.getLogFile().logCheckpoint();
+        insert(4, 10, false);
+        insert(5, 10, true);
+        // the loser's page was written with its change, right before the crash
+        Database.getBufferPool().flushAllPages();
+
+        crashAndRecover();
+        assertEquals(10, countOnDisk(1));
+        assertEquals(0, countOnDisk(loserHf, 2));
+        assertEquals(10, countOnDisk(3));
+        assertEquals(0, countOnDisk(4));
+        assertEquals(10, countOnDisk(5));
+    }
+
+    @Test public void unforcedPagesStayInTheDirtyPageTable() throws Exception {
+        insert(1, 10, true);
+        // the page reaches the OS, but the file cannot be forced
+        HeapFile unforced = new HeapFile(file, hf.getTupleDesc()) {
+            @Override
+            public void force() throws IOException {
+                throw new IOException("not forced");
+            }
+        };
+        Database.getCatalog().addTable(unforced, SystemTestUtil.getUUID());
+        try {
+            Database.getBufferPool().flushAllPages();
+            fail("expected the force to fail");
+        } catch (IOException e) {
+            // expected
+        }
+        Database.getLogFile().logCheckpoint();
+
+        // the OS crashes before the page reaches the disk
+        hf.writePage(new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData()));
+
+        crashAndRecover();
+        assertEquals(10, countOnDisk(1));
+    }
+
+    @Test public void logGrowthTakesCheckpoints() throws Exception {
+        Database.getLogFile().setCheckpointInterval(16 * 1024);
+        insert(1, 10, true);
+        assertEquals(NO_CHECKPOINT, lastCheckpoint());
+
+        // every commit logs the first page again
+        long deadline = System.currentTimeMillis() + 10 * 1000;
+        int v = 2;
+        while (lastCheckpoint() == NO_CHECKPOINT && System.currentTimeMillis() < deadline) {
+            insert(v++, 10, true);
+        }
+        assertTrue(lastCheckpoint() != NO_CHECKPOINT);
+        assertEquals(0, countOnDisk(1));
+
+        crashAndRecover();
+        for (int i = 1; i < v; i++) {
+            assertEquals(10, countOnDisk(i));
+        }
+    }
+
+    @Test public void checkpointDoesNotTruncateTheLog() throws Exception {
+        insert(1, 10, true);
+        Database.getBufferPool().flushAllPages();
+        long before = new File("log").length();
+        Database.getLogFile().logCheckpoint();
+        assertTrue(new File("log").length() > before);
+
+        // a transaction running across the truncation can still roll back
+        Transaction loser = new Transaction();
+        loser.start();
+        Database.getBufferPool().insertTuple(loser.getId(), loserHf.getId(), Utility.getHeapTuple(new int[]{2, 0}));
+        Database.getLogFile().logTruncate();
+        assertTrue(new File("log").length() < before);
+        loser.abort();
+        insert(3, 10, true);
+
+        crashAndRecover();
+        assertEquals(10, countOnDisk(1));
+        assertEquals(0, countOnDisk(loserHf, 2));
+        assertEquals(10, countOnDisk(3));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(CheckpointTest.class);
+    }
+}
@@ -0,0 +1,132 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+import simpledb.common.Database;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.BufferPool;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.Tuple;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+/**
+ * Compare the throughput of optimistic transactions with two-phase locking
+ * at increasing contention. Every transaction reads a few pages of a hot set
+ * and rewrites a tuple on one of them; the smaller the hot set, the more
+ * transactions conflict. Run with {@code ant concurrencybenchmark}, or with
+ * the number of threads and the seconds per run as arguments.
+ */
+public class ConcurrencyBenchmark {
+    private static final int PAGES = 32;
+    private static final int READS = 4;
+    private static final int[] HOT_PAGES = {32, 8, 2, 1};
+
+    private final HeapFile hf;
+    private final boolean optimistic;
+    private final int hotPages;
+    private final LongAdder commits = new LongAdder();
+    private final LongAdder aborts = new LongAdder();
+
+    private ConcurrencyBenchmark(boolean optimistic, int hotPages) throws Exception {
+        Database.reset();
+        BufferPool bp = Database.getBufferPool();
+        bp.getVersionStore().setEnabled(optimistic);
+        // commits force the log only, as they would in production
+        bp.startBackgroundWriter(100);
+        int rows = PAGES * ((BufferPool.getPageSize() * 8) / (2 * 4 * 8 + 1));
+        this.hf = SystemTestUtil.createRandomHeapFile(2, rows, null, null);
+        this.optimistic = optimistic;
+        this.hotPages = hotPages;
+    }
+
+    private void runTransaction(Random random) throws Exception {
+        Transaction t = new Transaction();
+        if (this.optimistic) {
+            t.startOptimistic();
+        } else {
+            t.start();
+        }
+        try {
+            BufferPool bp = Database.getBufferPool();
+            for (int i = 0; i < READS; i++) {
+                HeapPageId pid = new HeapPageId(this.hf.getId(), random.nextInt(this.hotPages));
+                Iterator<Tuple> it = ((HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY)).iterator();
+                while (it.hasNext()) {
+                    it.next();
+                }
+            }
+            HeapPageId pid = new HeapPageId(this.hf.getId(), random.nextInt(this.hotPages));
+            HeapPage page = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+            page.deleteTuple(page.iterator().next());
+            page.insertTuple(Utility.getHeapTuple(new int[]{random.nextInt(), random.nextInt()}));
+            page.markDirty(true, t.getId());
+            if (this.optimistic) {
+                t.validateAndCommit();
+            } else {
+                t.commit();
+            }
+            this.commits.increment();
+        } catch (TransactionAbortedException e) {
+            if (!this.optimistic) {
+                t.abort();
+            }
+            this.aborts.increment();
+        }
+    }
+
+    private void run(int threads, long millis) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> errors = new ArrayList<>();
+        List<Thread> workers = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Random random = new Random(i);
+            workers.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        runTransaction(random);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        workers.forEach(Thread::start);
+        Thread.sleep(millis);
+        done.set(true);
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        Database.getBufferPool().stopBackgroundWriter();
+        if (!errors.isEmpty()) {
+            throw new RuntimeException(errors.get(0));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+        long millis = (args.length > 1 ? Long.parseLong(args[1]) : 3) * 1000;
+        System.out.printf("%d threads, %d reads and 1 write per transaction, %d s per run%n",
+                threads, READS, millis / 1000);
+        System.out.printf("%-10s %-11s %12s %10s%n", "hot pages", "mode", "commits/s", "aborts");
+        for (int hotPages : HOT_PAGES) {
+            for (boolean optimistic : new boolean[]{false, true}) {
+                ConcurrencyBenchmark benchmark = new ConcurrencyBenchmark(optimistic, hotPages);
+                benchmark.run(threads, millis);
+                System.out.printf("%-10d %-11s %12.0f %9.1f%%%n", hotPages, optimistic ? "optimistic" : "2PL",
+                        benchmark.commits.sum() * 1000.0 / millis,
+                        100.0 * benchmark.aborts.sum() / Math.max(1, benchmark.commits.sum() + benchmark.aborts.sum()));
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package simpledb.systemtest;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DeadlockPolicy;
+import simpledb.common.LockManager;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run the concurrent counter workload of TransactionTestUtil under every
+ * deadlock policy, retrying aborted transactions with their first
+ * timestamp. Under every policy the oldest transaction wins its conflicts,
+ * so it is never aborted, and no transaction waits out a lock timeout. How
+ * long each run took and how many attempts were aborted is printed for
+ * comparing the policies.
+ */
+public class DeadlockPolicyTest extends SimpleDbTestBase {
+    private static final int THREADS = 10;
+
+    private static void run(DeadlockPolicy policy) throws Exception {
+        LockManager lm = Database.getBufferPool().getLockManager();
+        lm.setDeadlockPolicy(policy);
+        long timeouts = lm.getTimeouts();
+        long start = System.nanoTime();
+        int[] aborts = TransactionTestUtil.validateTransactionsByAge(THREADS);
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%s: %d commits in %.3f s (%.1f/s), %d aborts, %d waits%n",
+                policy, THREADS, seconds, THREADS / seconds, Arrays.stream(aborts).sum(), lm.getWaits());
+
+        assertEquals("the oldest transaction was aborted", 0, aborts[0]);
+        assertEquals(timeouts, lm.getTimeouts());
+    }
+
+    @Test public void detect() throws Exception {
+        run(DeadlockPolicy.DETECT);
+    }
+
+    @Test public void waitDie() throws Exception {
+        run(DeadlockPolicy.WAIT_DIE);
+    }
+
+    @Test public void woundWait() throws Exception {
+        run(DeadlockPolicy.WOUND_WAIT);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(DeadlockPolicyTest.class);
+    }
+}
@@ -0,0 +1,136 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.PercentileRecorder;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that group commit forces the log once for several concurrent commits,
+ * and that those commits are still durable.
+ */
+public class GroupCommitTest extends SimpleDbTestBase {
+    private static final int THREADS = 16;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("groupcommit", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    // commit THREADS empty transactions at (roughly) the same time
+    private void commitConcurrently() throws Exception {
+        final CyclicBarrier barrier = new CyclicBarrier(THREADS);
+        final List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    Transaction t = new Transaction();
+                    t.start();
+                    barrier.await();
+                    t.commit();
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(new ArrayList<Throwable>(), errors);
+    }
+
+    @Test public void everyCommitForcesWithoutGroupCommit() throws Exception {
+        commitConcurrently();
+
+        PercentileRecorder batches = Database.getLogFile().getCommitBatchSizes();
+        assertEquals(THREADS, batches.getCount());
+        assertEquals(1, batches.getMax());
+        assertEquals(THREADS, Database.getLogFile().getCommitLatencies().getCount());
+    }
+
+    @Test public void concurrentCommitsShareForces() throws Exception {
+        Database.getLogFile().setGroupCommit(50 * 1000, 4);
+        commitConcurrently();
+
+        PercentileRecorder batches = Database.getLogFile().getCommitBatchSizes();
+        assertEquals(THREADS, batches.getTotal());
+        assertTrue(batches.getCount() < THREADS);
+        assertTrue(batches.getMax() > 1);
+        assertEquals(THREADS, Database.getLogFile().getCommitLatencies().getCount());
+    }
+
+    @Test public void groupCommitIsDurable() throws Exception {
+        // with NO-FORCE, only the log makes the insert durable
+        Database.getLogFile().setGroupCommit(1000, 8);
+        Database.getBufferPool().startBackgroundWriter(3600 * 1000);
+        Transaction t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+        t.commit();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0));
+        assertTrue(page.iterator().hasNext());
+    }
+
+    @Test public void locksAreHeldUntilTheCommitIsDurable() throws Exception {
+        // the leader waits out the window, since no other commit comes
+        Database.getLogFile().setGroupCommit(500 * 1000, 8);
+        Database.getBufferPool().startBackgroundWriter(3600 * 1000);
+        Transaction t1 = new Transaction();
+        t1.start();
+        Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 0}));
+        Thread committer = new Thread(() -> {
+            try {
+                t1.commit();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        });
+        committer.start();
+
+        // a reader that gets the page must not see a commit that a crash
+        // would still undo
+        Thread.sleep(100);
+        Transaction t2 = new Transaction();
+        t2.start();
+        Database.getBufferPool().getPage(t2.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        assertEquals(1, Database.getLogFile().getCommitBatchSizes().getCount());
+        t2.commit();
+        committer.join();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
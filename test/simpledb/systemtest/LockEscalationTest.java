@@ -0,0 +1,72 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.LockManager;
+import simpledb.common.LockMode;
+import simpledb.execution.Delete;
+import simpledb.execution.SeqScan;
+import simpledb.storage.HeapFile;
+import simpledb.storage.IntField;
+import simpledb.transaction.Transaction;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that scanning and deleting a table larger than the escalation
+ * threshold ends up holding one table lock instead of a lock per page.
+ */
+public class LockEscalationTest extends SimpleDbTestBase {
+    private static final int THRESHOLD = 4;
+
+    private HeapFile table;
+    private List<List<Integer>> tuples;
+    private LockManager lm;
+
+    @Before public void createTable() throws Exception {
+        tuples = new ArrayList<>();
+        // about 20 pages
+        table = SystemTestUtil.createRandomHeapFile(2, 10000, null, tuples);
+        assertTrue(table.numPages() > THRESHOLD * 2);
+        lm = Database.getBufferPool().getLockManager();
+        lm.setEscalationThreshold(THRESHOLD);
+    }
+
+    @Test public void scanEscalatesToSharedTableLock() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        SystemTestUtil.matchTuples(table, t.getId(), tuples);
+        assertEquals(LockMode.S, lm.getTableLockMode(t.getId(), table.getId()));
+        assertEquals(0, lm.getLockCount(t.getId(), table.getId()));
+        assertEquals(1, lm.getEscalations());
+        t.commit();
+        assertNull(lm.getTableLockMode(t.getId(), table.getId()));
+    }
+
+    @Test public void deleteEscalatesToExclusiveTableLock() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        Delete delete = new Delete(t.getId(), new SeqScan(t.getId(), table.getId(), ""));
+        delete.open();
+        assertEquals(tuples.size(), ((IntField) delete.next().getField(0)).getValue());
+        delete.close();
+        assertEquals(LockMode.X, lm.getTableLockMode(t.getId(), table.getId()));
+        assertTrue(lm.getLockCount(t.getId(), table.getId()) <= THRESHOLD);
+        t.commit();
+
+        Transaction check = new Transaction();
+        check.start();
+        SystemTestUtil.matchTuples(table, check.getId(), new ArrayList<>());
+        check.commit();
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockEscalationTest.class);
+    }
+}
@@ -0,0 +1,104 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.LockManager;
+import simpledb.common.Permissions;
+import simpledb.storage.HeapPageId;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Run many more concurrent transactions than there are threads: every
+ * transaction requests its locks with lockAsync, so that a waiting
+ * transaction holds no thread. The tree builds for Java 11, which has no
+ * virtual threads, so lockAsync chains stand in for them.
+ */
+public class LockLoadTest extends SimpleDbTestBase {
+    private static final int TRANSACTIONS = 10000;
+    private static final int PAGES = 64;
+    private static final int LOCKS = 3;
+
+    // lock a few random pages one after the other, then commit or abort
+    private static CompletableFuture<Void> runTransaction(LockManager lm, Random random,
+                                                          LongAdder commits, LongAdder aborts) {
+        TransactionId tid = new TransactionId();
+        CompletableFuture<Void> locked = CompletableFuture.completedFuture(null);
+        for (int i = 0; i < LOCKS; i++) {
+            HeapPageId pid = new HeapPageId(1, random.nextInt(PAGES));
+            Permissions perm = random.nextBoolean() ? Permissions.READ_ONLY : Permissions.READ_WRITE;
+            locked = locked.thenCompose(v -> lm.lockAsync(tid, pid, perm));
+        }
+        return locked.handle((v, e) -> {
+            (e == null ? commits : aborts).increment();
+            lm.releaseAllLocks(tid);
+            return null;
+        });
+    }
+
+    @Test public void tenThousandConcurrentTransactions() throws Exception {
+        LockManager lm = Database.getBufferPool().getLockManager();
+        int threadsBefore = Thread.activeCount();
+        LongAdder commits = new LongAdder();
+        LongAdder aborts = new LongAdder();
+        Random random = new Random(0);
+        List<CompletableFuture<Void>> transactions = new ArrayList<>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            transactions.add(runTransaction(lm, random, commits, aborts));
+        }
+        // most of them are waiting now, but not on threads of their own
+        assertTrue(Thread.activeCount() - threadsBefore < Runtime.getRuntime().availableProcessors() + 8);
+
+        CompletableFuture.allOf(transactions.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        assertEquals(TRANSACTIONS, commits.sum() + aborts.sum());
+        assertTrue(commits.sum() > 0);
+        assertEquals(aborts.sum(), lm.getDeadlocks());
+        assertTrue(lm.getLocks().isEmpty());
+        assertTrue(lm.getWaiters().isEmpty());
+    }
+
+    @Test public void tenThousandWaitersAtOnce() throws Exception {
+        LockManager lm = Database.getBufferPool().getLockManager();
+        int threadsBefore = Thread.activeCount();
+        TransactionId writer = new TransactionId();
+        HeapPageId pid = new HeapPageId(1, 0);
+        lm.lock(writer, pid, Permissions.READ_WRITE);
+
+        LongAdder granted = new LongAdder();
+        List<CompletableFuture<Void>> transactions = new ArrayList<>();
+        for (int i = 0; i < TRANSACTIONS; i++) {
+            TransactionId tid = new TransactionId();
+            transactions.add(lm.lockAsync(tid, pid, Permissions.READ_ONLY).thenRun(() -> {
+                granted.increment();
+                lm.releaseAllLocks(tid);
+            }));
+        }
+        // every one of them is queued behind the writer, on no thread of its own
+        assertEquals(TRANSACTIONS, lm.getNumWaiting());
+        assertEquals(0, granted.sum());
+        assertTrue(Thread.activeCount() - threadsBefore < Runtime.getRuntime().availableProcessors() + 8);
+
+        lm.releaseAllLocks(writer);
+        CompletableFuture.allOf(transactions.toArray(new CompletableFuture[0])).get(60, TimeUnit.SECONDS);
+        assertEquals(TRANSACTIONS, granted.sum());
+        assertEquals(0, lm.getDeadlocks());
+        assertTrue(lm.getLocks().isEmpty());
+        assertTrue(lm.getWaiters().isEmpty());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(LockLoadTest.class);
+    }
+}
@@ -0,0 +1,205 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that optimistic transactions run without locks, keep their writes
+ * private until they commit, and are aborted at validation when a page they
+ * read changed since they started.
+ */
+public class OptimisticConcurrencyTest extends SimpleDbTestBase {
+
+    private HeapFile hf;
+    private BufferPool bp;
+
+    @Before public void createTable() throws Exception {
+        bp = Database.getBufferPool();
+        bp.getVersionStore().setEnabled(true);
+        // a little over four pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 2100, 100, null, null);
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private static Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.startOptimistic();
+        return t;
+    }
+
+    private HeapPageId page(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    private List<Tuple> tuples(TransactionId tid, int pgNo) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        ((HeapPage) bp.getPage(tid, page(pgNo), Permissions.READ_ONLY)).iterator().forEachRemaining(tuples::add);
+        return tuples;
+    }
+
+    private int count(TransactionId tid) throws Exception {
+        DbFileIterator it = hf.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    // read a page, then delete one of its tuples
+    private void deleteFrom(Transaction t, int pgNo) throws Exception {
+        bp.deleteTuple(t.getId(), tuples(t.getId(), pgNo).get(0));
+    }
+
+    private int committedCount() throws Exception {
+        Transaction t = begin();
+        int count = count(t.getId());
+        t.commit();
+        return count;
+    }
+
+    @Test public void writesStayPrivateUntilCommit() throws Exception {
+        int before = committedCount();
+        Transaction t = optimistic();
+        deleteFrom(t, 0);
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{1, 1}));
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{2, 2}));
+        assertEquals(before + 1, count(t.getId()));
+        for (int i = 0; i < hf.numPages(); i++) {
+            assertFalse(bp.holdsLock(t.getId(), page(i)));
+        }
+
+        // a locking transaction neither waits nor sees the private writes
+        assertEquals(before, committedCount());
+
+        t.validateAndCommit();
+        assertEquals(before + 1, committedCount());
+    }
+
+    @Test public void conflictingCommitAborts() throws Exception {
+        int before = committedCount();
+        Transaction t1 = optimistic();
+        Transaction t2 = optimistic();
+        deleteFrom(t1, 0);
+        deleteFrom(t2, 0);
+
+        t1.validateAndCommit();
+        try {
+            t2.validateAndCommit();
+            fail("a lost update was committed");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertEquals(before - 1, committedCount());
+        assertEquals(0, bp.getVersionStore().numVersions());
+    }
+
+    @Test public void lockingCommitAbortsReader() throws Exception {
+        Transaction t = optimistic();
+        tuples(t.getId(), 1);
+        deleteFrom(t, 0);
+
+        Transaction writer = begin();
+        deleteFrom(writer, 1);
+        writer.commit();
+
+        try {
+            t.validateAndCommit();
+            fail("committed although a page it read changed");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    @Test public void writeSkewAborts() throws Exception {
+        // each reads both pages and writes one of them
+        Transaction t1 = optimistic();
+        Transaction t2 = optimistic();
+        tuples(t1.getId(), 1);
+        deleteFrom(t1, 0);
+        tuples(t2.getId(), 0);
+        deleteFrom(t2, 1);
+
+        t1.validateAndCommit();
+        try {
+            t2.validateAndCommit();
+            fail("write skew was committed");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+    }
+
+    @Test public void disjointTransactionsCommit() throws Exception {
+        int before = committedCount();
+        Transaction t1 = optimistic();
+        Transaction t2 = optimistic();
+        deleteFrom(t1, 0);
+        deleteFrom(t2, 1);
+        t1.validateAndCommit();
+        t2.validateAndCommit();
+        assertEquals(before - 2, committedCount());
+    }
+
+    @Test public void readersNeedNoValidation() throws Exception {
+        Transaction reader = optimistic();
+        int before = count(reader.getId());
+        Transaction writer = begin();
+        deleteFrom(writer, 0);
+        writer.commit();
+
+        // still reads what was committed when it started
+        assertEquals(before, count(reader.getId()));
+        reader.validateAndCommit();
+    }
+
+    @Test public void abortDropsPrivateWrites() throws Exception {
+        int before = committedCount();
+        Transaction t = optimistic();
+        deleteFrom(t, 0);
+        t.abort();
+        assertEquals(before, committedCount());
+    }
+
+    @Test(expected = DbException.class) public void btreesCannotBeChanged() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 100, null, null, 0);
+        // building the B+ tree replaced the buffer pool
+        Database.getBufferPool().getVersionStore().setEnabled(true);
+        Transaction t = optimistic();
+        try {
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        } finally {
+            t.abort();
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(OptimisticConcurrencyTest.class);
+    }
+}
@@ -0,0 +1,152 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that logged pages carry a pageLSN, and that recovery leaves alone the
+ * pages that were written with all their logged changes.
+ */
+public class PageLsnTest extends SimpleDbTestBase {
+    private static final long NEVER = 3600 * 1000;
+
+    private File file1;
+    private File file2;
+    private HeapFile hf1;
+    private HeapFile hf2;
+
+    @Before public void createTables() throws IOException {
+        file1 = File.createTempFile("pagelsn1", ".dat");
+        file1.deleteOnExit();
+        file2 = File.createTempFile("pagelsn2", ".dat");
+        file2.deleteOnExit();
+        hf1 = Utility.createEmptyHeapFile(file1.getAbsolutePath(), 2);
+        hf2 = Utility.createEmptyHeapFile(file2.getAbsolutePath(), 2);
+        // committed pages are only written when we say so
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    private static void insert(HeapFile hf, int v, int count) throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, i}));
+        }
+        t.commit();
+    }
+
+    // count the tuples with the given first field, on disk
+    private static int countOnDisk(HeapFile hf, int v) {
+        int count = 0;
+        for (int pgNo = 0; pgNo < hf.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            for (Tuple t : (Iterable<Tuple>) page::iterator) {
+                if (((IntField) t.getField(0)).getValue() == v) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void crashAndRecover() throws IOException {
+        Database.reset();
+        hf1 = Utility.openHeapFile(2, file1);
+        hf2 = Utility.openHeapFile(2, file2);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void loggedPagesCarryTheirLsn() throws Exception {
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        assertEquals(LogFile.NO_LSN, page.getLsn());
+        t.commit();
+
+        long before = Database.getLogFile().currentLsn();
+        insert(hf1, 1, 10);
+        long lsn = page.getLsn();
+        assertTrue(lsn >= before);
+        assertTrue(lsn < Database.getLogFile().currentLsn());
+    }
+
+    @Test public void redoSkipsPagesAlreadyOnDisk() throws Exception {
+        insert(hf1, 1, 10);
+        insert(hf2, 2, 10);
+        Database.getBufferPool().flushAllPages();
+
+        // wipe the first table behind the log's back: if recovery redid the
+        // committed insert, the tuples would come back
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        hf1.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        insert(hf2, 3, 10);
+
+        crashAndRecover();
+        assertEquals(0, countOnDisk(hf1, 1));
+        assertEquals(10, countOnDisk(hf2, 2));
+        assertEquals(10, countOnDisk(hf2, 3));
+    }
+
+    @Test public void redoResumesAfterThePageLsn() throws Exception {
+        insert(hf1, 1, 10);
+        Database.getBufferPool().flushAllPages();
+        insert(hf1, 2, 10);
+        Database.getBufferPool().flushAllPages();
+        insert(hf1, 3, 10);
+
+        crashAndRecover();
+        assertEquals(10, countOnDisk(hf1, 1));
+        assertEquals(10, countOnDisk(hf1, 2));
+        assertEquals(10, countOnDisk(hf1, 3));
+    }
+
+    @Test public void redoesPagesWhoseFileWasNotForced() throws Exception {
+        insert(hf1, 1, 10);
+        // the page reaches the OS, but the file cannot be forced
+        HeapFile unforced = new HeapFile(file1, hf1.getTupleDesc()) {
+            @Override
+            public void force() throws IOException {
+                throw new IOException("not forced");
+            }
+        };
+        Database.getCatalog().addTable(unforced, SystemTestUtil.getUUID());
+        try {
+            Database.getBufferPool().flushAllPages();
+            fail("expected the force to fail");
+        } catch (IOException e) {
+            // expected
+        }
+
+        // the OS crashes before the page reaches the disk
+        HeapPageId pid = new HeapPageId(hf1.getId(), 0);
+        hf1.writePage(new HeapPage(pid, HeapPage.createEmptyPageData()));
+        Database.getLogFile().force();
+
+        crashAndRecover();
+        assertEquals(10, countOnDisk(hf1, 1));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(PageLsnTest.class);
+    }
+}
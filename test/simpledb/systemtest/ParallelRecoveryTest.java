@@ -0,0 +1,146 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test recovery of many pages with several recovery threads, for committed,
+ * aborted and unfinished transactions.
+ */
+public class ParallelRecoveryTest extends SimpleDbTestBase {
+    private static final long NEVER = 3600 * 1000;
+    private static final int TUPLES_PER_PAGE = 504;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("parallelrecovery", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        // committed pages are only logged, so recovery has to redo them
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+    }
+
+    @After public void stopWriter() {
+        Database.getBufferPool().stopBackgroundWriter();
+    }
+
+    private void insert(int v, int count, boolean commit) throws DbException, IOException, TransactionAbortedException {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < count; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, i}));
+        }
+        if (commit) {
+            t.commit();
+        } else {
+            t.abort();
+        }
+    }
+
+    // count the tuples with the given first field, on disk
+    private int countOnDisk(int v) {
+        int count = 0;
+        for (int pgNo = 0; pgNo < hf.numPages(); pgNo++) {
+            HeapPage page = (HeapPage) hf.readPage(new HeapPageId(hf.getId(), pgNo));
+            for (Tuple t : (Iterable<Tuple>) page::iterator) {
+                if (((IntField) t.getField(0)).getValue() == v) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private void crashAndRecover(int threads) throws IOException {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+    }
+
+    @Test public void recoversManyPages() throws Exception {
+        // every transaction fills a couple of pages
+        for (int v = 1; v <= 6; v++) {
+            insert(v, 2 * TUPLES_PER_PAGE, true);
+        }
+        insert(7, TUPLES_PER_PAGE, false);
+        insert(8, 10, true);
+        assertEquals(0, countOnDisk(1));
+
+        crashAndRecover(4);
+        for (int v = 1; v <= 6; v++) {
+            assertEquals(2 * TUPLES_PER_PAGE, countOnDisk(v));
+        }
+        assertEquals(0, countOnDisk(7));
+        assertEquals(10, countOnDisk(8));
+    }
+
+    @Test public void unfinishedTransactionIsUndoneOnce() throws Exception {
+        Database.resetBufferPool(3);
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+        insert(1, 5, true);
+
+        // the unfinished transaction has pages stolen, including the first one
+        Transaction loser = new Transaction();
+        loser.start();
+        for (int i = 0; i < 5 * TUPLES_PER_PAGE; i++) {
+            Database.getBufferPool().insertTuple(loser.getId(), hf.getId(), Utility.getHeapTuple(new int[]{2, i}));
+        }
+        crashAndRecover(4);
+        assertEquals(5, countOnDisk(1));
+        assertEquals(0, countOnDisk(2));
+
+        // the rollback must not be repeated after newer updates of the same pages
+        Database.getBufferPool().startBackgroundWriter(NEVER);
+        insert(3, TUPLES_PER_PAGE, true);
+        crashAndRecover(2);
+        assertEquals(5, countOnDisk(1));
+        assertEquals(0, countOnDisk(2));
+        assertEquals(TUPLES_PER_PAGE, countOnDisk(3));
+    }
+
+    @Test public void redoesUpdatesInLogOrder() throws Exception {
+        // two transactions insert into the same page, and so change the same
+        // header byte, but commit in the opposite order
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage empty = new HeapPage(pid, HeapPage.createEmptyPageData());
+        HeapPage first = new HeapPage(pid, empty.getPageData());
+        first.insertTuple(Utility.getHeapTuple(new int[]{1, 1}));
+        HeapPage second = new HeapPage(pid, first.getPageData());
+        second.insertTuple(Utility.getHeapTuple(new int[]{2, 2}));
+
+        LogFile log = Database.getLogFile();
+        Transaction t1 = new Transaction();
+        t1.start();
+        Transaction t2 = new Transaction();
+        t2.start();
+        log.logWrite(t1.getId(), empty, first);
+        log.logWrite(t2.getId(), first, second);
+        log.logCommit(t2.getId());
+        log.logCommit(t1.getId());
+
+        crashAndRecover(2);
+        assertEquals(1, countOnDisk(1));
+        assertEquals(1, countOnDisk(2));
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(ParallelRecoveryTest.class);
+    }
+}
@@ -0,0 +1,221 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.LockMode;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that with record locking, transactions insert into and delete from
+ * the same heap page without waiting for each other, that commit and abort
+ * keep the other transactions' records, and that uncommitted records never
+ * reach the disk.
+ */
+public class RecordLockingTest extends SimpleDbTestBase {
+    private static final long TIMEOUT = 5000;
+
+    private File file;
+    private HeapFile hf;
+
+    @Before public void createTable() throws IOException {
+        file = File.createTempFile("recordlocking", ".dat");
+        file.deleteOnExit();
+        hf = Utility.createEmptyHeapFile(file.getAbsolutePath(), 2);
+        hf.setRecordLocking(true);
+    }
+
+    // run an operation in another thread, failing if it does not finish
+    private static void inThread(Runnable op) throws Exception {
+        Throwable[] error = new Throwable[1];
+        Thread thread = new Thread(() -> {
+            try {
+                op.run();
+            } catch (Throwable e) {
+                error[0] = e;
+            }
+        });
+        thread.start();
+        thread.join(TIMEOUT);
+        assertFalse("blocked on another transaction's lock", thread.isAlive());
+        if (error[0] != null) {
+            throw new RuntimeException(error[0]);
+        }
+    }
+
+    private void insert(Transaction t, int v) throws Exception {
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{v, v}));
+    }
+
+    private void insertInThread(Transaction t, int v) throws Exception {
+        inThread(() -> {
+            try {
+                insert(t, v);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    // the first fields of the tuples on a version of the first page
+    private static List<Integer> values(HeapPage page) {
+        List<Integer> values = new ArrayList<>();
+        for (Tuple t : (Iterable<Tuple>) page::iterator) {
+            values.add(((IntField) t.getField(0)).getValue());
+        }
+        values.sort(null);
+        return values;
+    }
+
+    private List<Integer> onDisk() {
+        return values((HeapPage) hf.readPage(new HeapPageId(hf.getId(), 0)));
+    }
+
+    private List<Integer> committed() throws Exception {
+        Transaction t = begin();
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        List<Integer> values = values(page);
+        t.commit();
+        return values;
+    }
+
+    @Test public void writersShareThePage() throws Exception {
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        insert(t1, 1);
+        insertInThread(t2, 2);
+        assertEquals(1, hf.numPages());
+
+        t2.abort();
+        t1.commit();
+        assertEquals(List.of(1), committed());
+        assertEquals(List.of(1), onDisk());
+    }
+
+    @Test public void uncommittedRecordsStayOffDisk() throws Exception {
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        insert(t1, 1);
+        insertInThread(t2, 2);
+        // the page is written at t1's commit, while it still holds t2's record
+        t1.commit();
+        assertEquals(List.of(1), onDisk());
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        assertEquals(List.of(1), onDisk());
+    }
+
+    @Test public void abortedDeleteKeepsItsSlot() throws Exception {
+        Transaction t0 = begin();
+        insert(t0, 1);
+        insert(t0, 2);
+        t0.commit();
+
+        Transaction t1 = begin();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage page = (HeapPage) Database.getBufferPool().getPage(t1.getId(), pid, Permissions.READ_ONLY);
+        Tuple victim = page.iterator().next();
+        // a shared page lock would keep the other writers out
+        Database.getBufferPool().unsafeReleasePage(t1.getId(), pid);
+        Database.getBufferPool().deleteTuple(t1.getId(), victim);
+
+        // the emptied slot is not reused while the delete may be undone
+        Transaction t2 = begin();
+        Tuple inserted = Utility.getHeapTuple(new int[]{3, 3});
+        inThread(() -> {
+            try {
+                Database.getBufferPool().insertTuple(t2.getId(), hf.getId(), inserted);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        assertNotEquals(victim.getRecordId(), inserted.getRecordId());
+        t1.abort();
+        t2.commit();
+        assertEquals(List.of(1, 2, 3), committed());
+        assertEquals(List.of(1, 2, 3), onDisk());
+    }
+
+    @Test public void newRecordsAreLockedBeforeTheyAreWritten() throws Exception {
+        Transaction t0 = begin();
+        insert(t0, 1);
+        t0.commit();
+
+        // a reader holds the record the next insert goes to
+        TransactionId reader = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Database.getBufferPool().getLockManager().lock(reader, new RecordId(pid, 1), Permissions.READ_ONLY);
+
+        Transaction t1 = begin();
+        Tuple inserted = Utility.getHeapTuple(new int[]{2, 2});
+        Thread writer = new Thread(() -> {
+            try {
+                Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), inserted);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        writer.start();
+        writer.join(200);
+        assertTrue(writer.isAlive());
+        // the slot stays empty while the writer waits
+        HeapPage page = (HeapPage) Database.getBufferPool().pinPage(reader, pid, LockMode.IS);
+        assertFalse(page.isSlotUsed(1));
+        Database.getBufferPool().unpinPage(reader, pid);
+
+        Database.getBufferPool().transactionComplete(reader);
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+        assertEquals(new RecordId(pid, 1), inserted.getRecordId());
+        t1.commit();
+        assertEquals(List.of(1, 2), committed());
+    }
+
+    @Test public void readersWaitForWriters() throws Exception {
+        Transaction t1 = begin();
+        insert(t1, 1);
+        TransactionId reader = new TransactionId();
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Thread scan = new Thread(() -> {
+            try {
+                Database.getBufferPool().getPage(reader, pid, Permissions.READ_ONLY);
+            } catch (Exception e) {
+                throw new RuntimeException(e);
+            }
+        });
+        scan.start();
+        scan.join(200);
+        assertTrue(scan.isAlive());
+
+        t1.commit();
+        scan.join(TIMEOUT);
+        assertFalse(scan.isAlive());
+        Database.getBufferPool().transactionComplete(reader);
+    }
+
+    /** Make test compatible with older version of ant. */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(RecordLockingTest.class);
+    }
+}
@@ -0,0 +1,93 @@
+package simpledb.systemtest;
+
+import java.io.File;
+import java.util.Random;
+
+import simpledb.common.Database;
+import simpledb.common.Utility;
+import simpledb.storage.HeapFile;
+import simpledb.storage.HeapPage;
+import simpledb.storage.HeapPageId;
+import simpledb.storage.LogFile;
+import simpledb.transaction.TransactionId;
+
+/**
+ * Measure how fast recovery replays a large log. The log is written directly,
+ * as committed transactions that each rewrite a batch of pages with random
+ * tuples, so that every UPDATE record carries close to a full page; then the
+ * database crashes before any page reaches the disk, and recovery redoes them
+ * all. Run with {@code ant recoverybenchmark}, or with the size of the log in
+ * MB and the number of pages as arguments.
+ */
+public class RecoveryBenchmark {
+    private static final int WRITES_PER_TRANSACTION = 64;
+    private static final int VERSIONS = 8;
+
+    private final File file;
+    private final int pages;
+    private final long records;
+
+    // write a log of about the specified size and crash
+    private RecoveryBenchmark(long logBytes, int pages) throws Exception {
+        Database.reset();
+        this.file = File.createTempFile("recoverybenchmark", ".dat");
+        this.file.deleteOnExit();
+        HeapFile hf = Utility.createEmptyHeapFile(this.file.getAbsolutePath(), 2);
+        this.pages = pages;
+
+        // every page is on disk, empty; the log holds all that was written
+        for (int pgNo = 0; pgNo < pages; pgNo++) {
+            hf.writePage(new HeapPage(new HeapPageId(hf.getId(), pgNo), HeapPage.createEmptyPageData()));
+        }
+        Random random = new Random(0);
+        byte[][] versions = new byte[VERSIONS][];
+        for (int i = 0; i < VERSIONS; i++) {
+            HeapPage page = new HeapPage(new HeapPageId(hf.getId(), 0), HeapPage.createEmptyPageData());
+            while (page.getNumUnusedSlots() > 0) {
+                page.insertTuple(Utility.getHeapTuple(new int[]{random.nextInt(), random.nextInt()}));
+            }
+            versions[i] = page.getPageData();
+        }
+
+        LogFile log = Database.getLogFile();
+        long records = 0;
+        while (log.currentLsn() < logBytes) {
+            TransactionId tid = new TransactionId();
+            log.logXactionBegin(tid);
+            for (int i = 0; i < WRITES_PER_TRANSACTION; i++, records++) {
+                HeapPageId pid = new HeapPageId(hf.getId(), (int) (records % pages));
+                int version = (int) (records / pages);
+                log.logWrite(tid, new HeapPage(pid, versions[version % VERSIONS]),
+                        new HeapPage(pid, versions[(version + 1) % VERSIONS]));
+            }
+            log.logCommit(tid);
+        }
+        this.records = records;
+    }
+
+    // recover with the specified number of threads, returning the seconds taken
+    private double recover(int threads) throws Exception {
+        Database.reset();
+        Utility.openHeapFile(2, this.file);
+        LogFile log = Database.getLogFile();
+        log.setRecoveryThreads(threads);
+        long start = System.nanoTime();
+        log.recover();
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    public static void main(String[] args) throws Exception {
+        long logBytes = (args.length > 0 ? Long.parseLong(args[0]) : 256) * 1024 * 1024;
+        int pages = args.length > 1 ? Integer.parseInt(args[1]) : 1024;
+        int cores = Runtime.getRuntime().availableProcessors();
+        int[] threadCounts = cores > 1 ? new int[]{1, cores} : new int[]{1};
+        System.out.printf("%-8s %10s %8s %10s %12s%n", "threads", "log MB", "pages", "seconds", "records/s");
+        for (int threads : threadCounts) {
+            RecoveryBenchmark benchmark = new RecoveryBenchmark(logBytes, pages);
+            long logLength = new File("log").length();
+            double seconds = benchmark.recover(threads);
+            System.out.printf("%-8d %10.0f %8d %10.2f %12.0f%n", threads, logLength / (1024.0 * 1024.0),
+                    benchmark.pages, seconds, benchmark.records / seconds);
+        }
+    }
+}
@@ -0,0 +1,366 @@
+package simpledb.systemtest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.common.Database;
+import simpledb.common.DbException;
+import simpledb.common.Permissions;
+import simpledb.common.Utility;
+import simpledb.execution.IndexPredicate;
+import simpledb.execution.Predicate.Op;
+import simpledb.index.BTreeFile;
+import simpledb.index.BTreeUtility;
+import simpledb.storage.*;
+import simpledb.transaction.Transaction;
+import simpledb.transaction.TransactionAbortedException;
+import simpledb.transaction.TransactionId;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test that snapshot transactions read the state of the last commit before
+ * they started, without waiting for writers or making writers wait, and that
+ * the versions they read are dropped once they end.
+ */
+public class SnapshotIsolationTest extends SimpleDbTestBase {
+    private static final long TIMEOUT = 5000;
+
+    private HeapFile hf;
+    private VersionStore versions;
+
+    @Before public void createTable() throws Exception {
+        versions = Database.getBufferPool().getVersionStore();
+        versions.setEnabled(true);
+        // a little over four pages
+        hf = SystemTestUtil.createRandomHeapFile(2, 2100, 100, null, null);
+    }
+
+    // run an operation in another thread, failing if it does not finish
+    private static <T> T inThread(Callable<T> op) throws Exception {
+        FutureTask<T> task = new FutureTask<>(op);
+        Thread thread = new Thread(task);
+        thread.start();
+        thread.join(TIMEOUT);
+        assertFalse("blocked on another transaction", thread.isAlive());
+        return task.get();
+    }
+
+    private static Transaction begin() {
+        Transaction t = new Transaction();
+        t.start();
+        return t;
+    }
+
+    private static Transaction snapshot() {
+        Transaction t = new Transaction();
+        t.startSnapshot();
+        return t;
+    }
+
+    // the sum of the second field over every tuple of the file
+    private static long sum(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        long sum = 0;
+        while (it.hasNext()) {
+            sum += ((IntField) it.next().getField(1)).getValue();
+        }
+        it.close();
+        return sum;
+    }
+
+    private static int count(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int count = 0;
+        while (it.hasNext()) {
+            it.next();
+            count++;
+        }
+        it.close();
+        return count;
+    }
+
+    private static List<Tuple> tuples(DbFile f, TransactionId tid) throws Exception {
+        List<Tuple> tuples = new ArrayList<>();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            tuples.add(it.next());
+        }
+        it.close();
+        return tuples;
+    }
+
+    // delete the tuples of the first page and insert as many at the end
+    private void rewriteFirstPage(Transaction t) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        HeapPage first = (HeapPage) bp.getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        List<Tuple> deleted = new ArrayList<>();
+        first.iterator().forEachRemaining(deleted::add);
+        for (Tuple tuple : deleted) {
+            bp.deleteTuple(t.getId(), tuple);
+        }
+        for (Tuple tuple : deleted) {
+            bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{0, 1}));
+        }
+    }
+
+    @Test public void snapshotDoesNotWaitForWriters() throws Exception {
+        Transaction before = begin();
+        long committed = sum(hf, before.getId());
+        before.commit();
+
+        Transaction writer = begin();
+        rewriteFirstPage(writer);
+        long written = sum(hf, writer.getId());
+        assertNotEquals(committed, written);
+
+        Transaction reader = snapshot();
+        assertEquals(committed, (long) inThread(() -> sum(hf, reader.getId())));
+        assertFalse(Database.getBufferPool().holdsLock(reader.getId(), new HeapPageId(hf.getId(), 0)));
+
+        // the snapshot keeps reading what was committed when it started
+        writer.commit();
+        assertEquals(committed, sum(hf, reader.getId()));
+        reader.commit();
+
+        Transaction after = snapshot();
+        assertEquals(written, sum(hf, after.getId()));
+        after.commit();
+    }
+
+    @Test public void writersDoNotWaitForSnapshots() throws Exception {
+        Transaction reader = snapshot();
+        List<Tuple> expected = tuples(hf, reader.getId());
+
+        DbFileIterator it = hf.iterator(reader.getId());
+        it.open();
+        it.next();
+        Transaction writer = begin();
+        inThread(() -> {
+            rewriteFirstPage(writer);
+            writer.commit();
+            return null;
+        });
+
+        List<Tuple> read = new ArrayList<>();
+        it.rewind();
+        while (it.hasNext()) {
+            read.add(it.next());
+        }
+        it.close();
+        assertEquals(expected.size(), read.size());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals(expected.get(i).getRecordId(), read.get(i).getRecordId());
+            assertEquals(expected.get(i).getField(1), read.get(i).getField(1));
+        }
+        reader.commit();
+    }
+
+    @Test public void abortedWritesAreNeverSeen() throws Exception {
+        Transaction before = snapshot();
+        long committed = sum(hf, before.getId());
+        before.commit();
+
+        Transaction writer = begin();
+        rewriteFirstPage(writer);
+        Transaction during = snapshot();
+        writer.abort();
+        assertEquals(committed, sum(hf, during.getId()));
+        during.commit();
+
+        Transaction after = snapshot();
+        assertEquals(committed, sum(hf, after.getId()));
+        after.commit();
+    }
+
+    @Test public void snapshotsAreReadOnly() throws Exception {
+        Transaction reader = snapshot();
+        try {
+            Database.getBufferPool().insertTuple(reader.getId(), hf.getId(),
+                    Utility.getHeapTuple(new int[]{0, 1}));
+            fail("a snapshot inserted a tuple");
+        } catch (DbException e) {
+            // expected
+        }
+        reader.commit();
+    }
+
+    @Test public void versionsAreDroppedWhenSnapshotsEnd() throws Exception {
+        Transaction writer = begin();
+        rewriteFirstPage(writer);
+        writer.commit();
+        // no snapshot could read the replaced pages
+        assertEquals(0, versions.numVersions());
+
+        Transaction reader = snapshot();
+        long committed = sum(hf, reader.getId());
+        writer = begin();
+        rewriteFirstPage(writer);
+        writer.commit();
+        assertTrue(versions.numVersions() > 0);
+        assertEquals(committed, sum(hf, reader.getId()));
+
+        reader.commit();
+        assertEquals(0, versions.numVersions());
+    }
+
+    @Test public void recordWritersKeepTheirCommitsApart() throws Exception {
+        hf.setRecordLocking(true);
+        Transaction reader = snapshot();
+        int committed = count(hf, reader.getId());
+
+        Transaction t1 = begin();
+        Transaction t2 = begin();
+        Database.getBufferPool().insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(new int[]{0, 1}));
+        inThread(() -> {
+            Database.getBufferPool().insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(new int[]{0, 2}));
+            return null;
+        });
+        t1.commit();
+
+        // sees t1's record but not t2's, which shares its page
+        Transaction between = snapshot();
+        assertEquals(committed + 1, count(hf, between.getId()));
+        t2.commit();
+        assertEquals(committed + 1, count(hf, between.getId()));
+        assertEquals(committed, count(hf, reader.getId()));
+        between.commit();
+        reader.commit();
+
+        Transaction after = snapshot();
+        assertEquals(committed + 2, count(hf, after.getId()));
+        after.commit();
+    }
+
+    @Test public void snapshotSearchesOldTree() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 10000, null, null, 0);
+        // building the B+ tree replaced the buffer pool
+        Database.getBufferPool().getVersionStore().setEnabled(true);
+        Transaction reader = snapshot();
+        IndexPredicate ipred = new IndexPredicate(Op.GREATER_THAN, new IntField(-1));
+        int committed = count(bf, reader.getId());
+
+        // enough inserts to split leaf and internal pages
+        Transaction writer = begin();
+        for (int i = 0; i < 2000; i++) {
+            Database.getBufferPool().insertTuple(writer.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        writer.commit();
+
+        DbFileIterator it = bf.indexIterator(reader.getId(), ipred);
+        it.open();
+        int found = 0;
+        while (it.hasNext()) {
+            it.next();
+            found++;
+        }
+        it.close();
+        assertEquals(committed, found);
+        reader.commit();
+
+        Transaction after = snapshot();
+        assertEquals(committed + 2000, count(bf, after.getId()));
+        after.commit();
+    }
+
+    /**
+     * Writers move value between tuples on different pages, which keeps the
+     * sum of the table the same; every snapshot must see that sum.
+     */
+    @Test public void snapshotsSeeWholeCommits() throws Exception {
+        Transaction t = snapshot();
+        long committed = sum(hf, t.getId());
+        t.commit();
+
+        AtomicBoolean done = new AtomicBoolean();
+        List<Throwable> errors = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int w = 0; w < 2; w++) {
+            Random random = new Random(w);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 40; i++) {
+                        moveValue(random);
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < 2; r++) {
+            readers.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        Transaction reader = snapshot();
+                        assertEquals(committed, sum(hf, reader.getId()));
+                        reader.commit();
+                    }
+                } catch (Throwable e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        readers.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        done.set(true);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+        if (!errors.isEmpty()) {
+            throw new AssertionError(errors.get(0));
+        }
+        t = snapshot();
+        assertEquals(committed, sum(hf, t.getId()));
+        t.commit();
+        assertEquals(0, versions.numVersions());
+    }
+
+    // replace a tuple of the first page and one of the last by tuples with
+    // the same total value, retrying on deadlocks
+    private void moveValue(Random random) throws Exception {
+        while (true) {
+            Transaction t = begin();
+            try {
+                BufferPool bp = Database.getBufferPool();
+                List<Tuple> all = tuples(hf, t.getId());
+                Tuple a = all.get(random.nextInt(all.size() / 2));
+                Tuple b = all.get(all.size() / 2 + random.nextInt(all.size() / 2));
+                int total = ((IntField) a.getField(1)).getValue() + ((IntField) b.getField(1)).getValue();
+                int moved = random.nextInt(total + 1);
+                bp.deleteTuple(t.getId(), a);
+                bp.deleteTuple(t.getId(), b);
+                bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{0, moved}));
+                bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(new int[]{0, total - moved}));
+                t.commit();
+                return;
+            } catch (TransactionAbortedException e) {
+                t.abort();
+            }
+        }
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new junit.framework.JUnit4TestAdapter(SnapshotIsolationTest.class);
+    }
+}
@@ -16,6 +16,8 @@ import simpledb.transaction.TransactionAbortedException;
 import simpledb.transaction.TransactionId;
 
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -35,7 +37,25 @@ public class TransactionTestUtil {
     // Wait up to 10 minutes for the test to complete
     private static final int TIMEOUT_MILLIS = 10 * 1000;
 
-    public static void validateTransactions(int threads)
+    /**
+     * Increment a counter from the given number of concurrent transactions,
+     * each retrying until it commits, and check the result.
+     *
+     * @return the number of attempts that were aborted
+     */
+    public static int validateTransactions(int threads)
+            throws DbException, TransactionAbortedException, IOException {
+        return Arrays.stream(validateTransactionsByAge(threads)).sum();
+    }
+
+    /**
+     * Like {@link #validateTransactions}; every transaction is retried with
+     * the timestamp of its first attempt.
+     *
+     * @return the number of aborted attempts of every transaction, oldest
+     *         first
+     */
+    public static int[] validateTransactionsByAge(int threads)
             throws DbException, TransactionAbortedException, IOException {
         // Create a table with a single integer value = 0
         Map<Integer, Integer> columnSpecification = new HashMap<>();
@@ -82,6 +102,13 @@ public class TransactionTestUtil {
         it.close();
         Database.getBufferPool().transactionComplete(tid);
         Database.getBufferPool().flushAllPages();
+
+        Arrays.sort(list, Comparator.comparingLong(tester -> tester.timestamp));
+        int[] aborts = new int[threads];
+        for (int i = 0; i < threads; i++) {
+            aborts[i] = list[i].aborts;
+        }
+        return aborts;
     }
 
     private static class XactionTester extends Thread {
@@ -89,6 +116,8 @@ public class TransactionTestUtil {
         private final ModifiableCyclicBarrier latch;
         public Exception exception = null;
         public boolean completed = false;
+        public int aborts = 0;
+        public long timestamp;
 
         public XactionTester(int tableId, ModifiableCyclicBarrier latch) {
             this.tableId = tableId;
@@ -98,10 +127,13 @@ public class TransactionTestUtil {
         public void run() {
             try {
                 // Try to increment the value until we manage to successfully commit
+                Transaction aborted = null;
                 while (true) {
                     // Wait for all threads to be ready
                     latch.await();
-                    Transaction tr = new Transaction();
+                    // a retry keeps the age of the first attempt
+                    Transaction tr = aborted == null ? new Transaction() : new Transaction(aborted);
+                    timestamp = tr.getId().getTimestamp();
                     try {
                         System.out.println("Start");
                         tr.start();
@@ -175,7 +207,9 @@ public class TransactionTestUtil {
                     } catch (TransactionAbortedException te) {
                         //System.out.println("thread " + tr.getId() + " killed");
                         // give someone else a chance: abort the transaction
+                        aborts++;
                         tr.transactionComplete(true);
+                        aborted = tr;
                         latch.stillParticipating();
                     }
                 }